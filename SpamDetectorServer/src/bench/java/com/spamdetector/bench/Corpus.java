@@ -0,0 +1,52 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.DataFolders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bundled training and test emails (resources/data), as files or loaded into memory.
+ */
+final class Corpus {
+
+    static final String[] TRAIN_FOLDERS = {"train/ham", "train/ham2", "train/spam"};
+    static final String[] TEST_FOLDERS = {"test/ham", "test/spam"};
+
+    private Corpus() {
+    }
+
+    /**
+     * @param folders data folders, e.g. "train/spam"
+     * @return every email file in the folders
+     */
+    static File[] files(String... folders) {
+        List<File> files = new ArrayList<>();
+        for (String folder : folders) {
+            File[] emails = DataFolders.getFileLocation(folder).listFiles();
+            if (emails != null)
+                files.addAll(List.of(emails));
+        }
+        return files.toArray(new File[0]);
+    }
+
+    /**
+     * @param files email files
+     * @return the raw bytes of every file
+     */
+    static byte[][] read(File[] files) {
+        byte[][] emails = new byte[files.length][];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                emails[i] = Files.readAllBytes(files[i].toPath());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return emails;
+    }
+}
@@ -0,0 +1,323 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.PercentileHistogram;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test of a running server: replays the bundled test emails (resources/data/test) against
+ * /api/spam/classify, and requests /api/spam and /api/spam/accuracy, then reports the throughput and
+ * the latency percentiles of each endpoint. Start the server first (e.g. the standalone jar), then:
+ * <pre>
+ *   mvn -Pbenchmark test-compile exec:exec@load-test -Dload.args="--rate=200 --duration=30"
+ * </pre>
+ * Two ways to apply load:
+ * - open loop (--rate=N): N requests per second, sent on schedule whether or not the earlier ones have
+ *   been answered, as independent users would. The latency of a request counts from when it was due,
+ *   not when it was sent, so a server that stalls is not flattered by requests that were held back
+ *   (coordinated omission).
+ * - closed loop (--clients=N): N clients, each sending its next request as soon as it has its answer.
+ *
+ * Options:
+ * --url=URL           the API of the server (default http://localhost:8080/api/spam)
+ * --endpoints=LIST    which of classify, results and accuracy to request, in turn (default all three)
+ * --rate=N            requests per second, open loop
+ * --clients=N         concurrent clients, closed loop (default 16, unless --rate is given)
+ * --duration=S        seconds to measure (default 30)
+ * --warmup=S          seconds of load before measuring, not counted (default 5)
+ * --maxInFlight=N     open loop: requests waiting for an answer at most; past that, new requests wait,
+ *                     and the wait counts in their latency (default 1024)
+ * --cache             classify the emails as they are; without it each email gets a header with a unique
+ *                     number, so the server's score cache never answers and every email is scored
+ *
+ * The latencies are recorded in PercentileHistograms (under 1% error at any scale). Answers other than
+ * 200 are counted by status: 429 means the server shed load, 503 that the model was not ready.
+ */
+public final class LoadGenerator {
+
+    static final String USAGE = "Usage: LoadGenerator [--url=URL] [--endpoints=classify,results,accuracy]"
+            + " [--rate=N | --clients=N] [--duration=S] [--warmup=S] [--maxInFlight=N] [--cache]";
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final String url;
+    private final List<String> endpoints;
+    private final boolean cache;
+    private final byte[][] emails;
+
+    // The number of the next request, which picks its endpoint and email
+    private final AtomicLong sequence = new AtomicLong();
+
+    // What is recorded; replaced when the warm-up ends
+    private volatile Results results = new Results();
+
+    private LoadGenerator(String url, List<String> endpoints, boolean cache) {
+        this.url = url;
+        this.endpoints = endpoints;
+        this.cache = cache;
+        this.emails = Corpus.read(Corpus.files(Corpus.TEST_FOLDERS));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String url = "http://localhost:8080/api/spam";
+        List<String> endpoints = List.of("classify", "results", "accuracy");
+        int rate = 0;
+        int clients = 0;
+        int duration = 30;
+        int warmup = 5;
+        int maxInFlight = 1024;
+        boolean cache = false;
+
+        try {
+            for (String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if (arg.startsWith("--url="))
+                    url = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+                else if (arg.startsWith("--endpoints="))
+                    endpoints = List.of(value.split(","));
+                else if (arg.startsWith("--rate="))
+                    rate = Integer.parseInt(value);
+                else if (arg.startsWith("--clients="))
+                    clients = Integer.parseInt(value);
+                else if (arg.startsWith("--duration="))
+                    duration = Integer.parseInt(value);
+                else if (arg.startsWith("--warmup="))
+                    warmup = Integer.parseInt(value);
+                else if (arg.startsWith("--maxInFlight="))
+                    maxInFlight = Integer.parseInt(value);
+                else if (arg.equals("--cache"))
+                    cache = true;
+                else
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            for (String endpoint : endpoints) {
+                if (!endpoint.equals("classify") && !endpoint.equals("results") && !endpoint.equals("accuracy"))
+                    throw new IllegalArgumentException("Unknown endpoint: " + endpoint);
+            }
+            if (rate > 0 && clients > 0)
+                throw new IllegalArgumentException("Give --rate or --clients, not both");
+            if (rate < 0 || clients < 0 || duration < 1 || warmup < 0 || maxInFlight < 1)
+                throw new IllegalArgumentException("Rates, counts and times must be positive");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(url, endpoints, cache);
+        if (!generator.awaitServer(120))
+            System.exit(1);
+
+        if (rate > 0) {
+            System.out.println("Open loop: " + rate + " requests/s to " + endpoints + " for " + duration
+                    + " s, after " + warmup + " s of warm-up");
+            generator.openLoop(rate, warmup, duration, maxInFlight);
+        } else {
+            clients = clients > 0 ? clients : 16;
+            System.out.println("Closed loop: " + clients + " clients requesting " + endpoints + " for " + duration
+                    + " s, after " + warmup + " s of warm-up");
+            generator.closedLoop(clients, warmup, duration);
+        }
+        System.out.print(generator.results.report());
+    }
+
+    /**
+     * Waits until the server answers /accuracy, which it does once the model is trained and tested.
+     * @return false if it did not within the time given
+     */
+    private boolean awaitServer(int seconds) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/accuracy")).GET().build();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        String last = null;
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200)
+                    return true;
+                last = "status " + response.statusCode();
+            } catch (IOException e) {
+                last = e.toString();
+            }
+            Thread.sleep(500);
+        }
+        System.err.println("The server at " + url + " is not ready after " + seconds + " s: " + last);
+        return false;
+    }
+
+    /**
+     * Sends rate requests per second, each on schedule, for the warm-up and then the measured seconds.
+     */
+    private void openLoop(int rate, int warmup, int duration, int maxInFlight) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long interval = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long end = measureFrom + duration * 1_000_000_000L;
+        boolean measuring = warmup == 0;
+
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due - end >= 0)
+                break;
+            if (!measuring && due - measureFrom >= 0) {
+                results = new Results();
+                measuring = true;
+            }
+
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            inFlight.acquire();
+
+            Results recordTo = results;
+            long n = sequence.getAndIncrement();
+            String endpoint = endpointOf(n);
+            client.sendAsync(request(endpoint, n), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        recordTo.record(endpoint, due, response, error);
+                        inFlight.release();
+                    });
+        }
+
+        // Wait for the last answers; the throughput is what was answered until then, not what was sent
+        inFlight.acquire(maxInFlight);
+        results.finish(measureFrom, Math.max(end, System.nanoTime()));
+    }
+
+    /**
+     * Runs clients that each send a request as soon as the one before is answered.
+     */
+    private void closedLoop(int clients, int warmup, int duration) throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long end = measureFrom + duration * 1_000_000_000L;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() - end < 0) {
+                    long n = sequence.getAndIncrement();
+                    String endpoint = endpointOf(n);
+                    HttpRequest request = request(endpoint, n);
+                    Results recordTo = results;
+                    long sent = System.nanoTime();
+                    try {
+                        recordTo.record(endpoint, sent, client.send(request, HttpResponse.BodyHandlers.discarding()), null);
+                    } catch (IOException e) {
+                        recordTo.record(endpoint, sent, null, e);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "spam-load-" + (c + 1));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long wait = measureFrom - System.nanoTime();
+        if (wait > 0)
+            Thread.sleep(wait / 1_000_000);
+        results = new Results();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        results.finish(measureFrom, System.nanoTime());
+    }
+
+    /**
+     * @return the endpoint of request number n: the endpoints take turns
+     */
+    private String endpointOf(long n) {
+        return endpoints.get((int) (n % endpoints.size()));
+    }
+
+    /**
+     * Builds request number n, to an endpoint. The emails to classify are taken in turn.
+     */
+    private HttpRequest request(String endpoint, long n) {
+        switch (endpoint) {
+            case "classify":
+                byte[] email = emails[(int) (n / endpoints.size() % emails.length)];
+                HttpRequest.BodyPublisher body = cache
+                        ? HttpRequest.BodyPublishers.ofByteArray(email)
+                        : HttpRequest.BodyPublishers.ofByteArrays(List.of(
+                                ("X-Load-Id: " + n + "\r\n").getBytes(StandardCharsets.US_ASCII), email));
+                return HttpRequest.newBuilder(URI.create(url + "/classify"))
+                        .header("Content-Type", "message/rfc822")
+                        .POST(body)
+                        .build();
+            case "results":
+                return HttpRequest.newBuilder(URI.create(url)).GET().build();
+            default:
+                return HttpRequest.newBuilder(URI.create(url + "/" + endpoint)).GET().build();
+        }
+    }
+
+    /**
+     * The latencies and statuses of the requests of one phase, per endpoint.
+     */
+    private final class Results {
+        private final Map<String, PercentileHistogram> latencies = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final PercentileHistogram all = new PercentileHistogram();
+        private double seconds;
+
+        /**
+         * Records the answer to a request, or the error that stopped it.
+         * @param since when the request was due (open loop) or sent (closed loop)
+         */
+        void record(String endpoint, long since, HttpResponse<?> response, Throwable error) {
+            long nanos = System.nanoTime() - since;
+            latencies.computeIfAbsent(endpoint, e -> new PercentileHistogram()).record(nanos);
+            all.record(nanos);
+
+            String status = response != null ? String.valueOf(response.statusCode())
+                    : error.getClass().getSimpleName();
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+
+        void finish(long from, long to) {
+            seconds = (to - from) / 1e9;
+        }
+
+        String report() {
+            StringBuilder report = new StringBuilder();
+            for (String endpoint : endpoints) {
+                PercentileHistogram latency = latencies.get(endpoint);
+                if (latency != null)
+                    report.append(line(endpoint, latency));
+            }
+            report.append(line("all", all));
+
+            Map<String, Long> counts = new TreeMap<>();
+            statuses.forEach((status, count) -> counts.put(status, count.sum()));
+            report.append("Statuses: ").append(counts).append('\n');
+            return report.toString();
+        }
+
+        private String line(String name, PercentileHistogram latency) {
+            return String.format("%-9s %8.1f requests/s  %s%n", name, latency.count() / seconds, latency.summary());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.ModelEvaluation;
+import com.spamdetector.util.SpamDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming the test results table as JSON, the body resultForGetSpam() serves for GET /api/spam,
+ * with and without gzip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultJsonBenchmark {
+
+    @Param({"ham", "all"})
+    public String actualClass;
+
+    private ModelEvaluation evaluation;
+
+    // Reused between invocations, so the benchmark measures writing rather than growing the buffer
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        evaluation = ModelEvaluation.test(SpamDetector.fromConfig());
+    }
+
+    @Benchmark
+    public int writeResults() throws IOException {
+        out.reset();
+        evaluation.writeResults(out, 0, Integer.MAX_VALUE, actualClass);
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeResultsGzip() throws IOException {
+        out.reset();
+        GZIPOutputStream compressed = new GZIPOutputStream(out, 8192);
+        evaluation.writeResults(compressed, 0, Integer.MAX_VALUE, actualClass);
+        compressed.finish();
+        return out.size();
+    }
+}
@@ -0,0 +1,102 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.HashedSpamModel;
+import com.spamdetector.util.MappedSpamModel;
+import com.spamdetector.util.ModelFile;
+import com.spamdetector.util.OnlineSpamModel;
+import com.spamdetector.util.SpamDetector;
+import com.spamdetector.util.SpamModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of scoring one test email, for each kind of model. Each call scores the next test email,
+ * so the results cover the whole mix of small and large emails; SampleTime reports the percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Model {
+        // trained: SpamDetector; mapped: MappedSpamModel from a model file; online: OnlineSpamModel;
+        // hashed: HashedSpamModel with 2^20 buckets
+        @Param({"trained", "mapped", "online", "hashed"})
+        public String kind;
+
+        SpamModel model;
+        Path modelFile;
+        Path[] paths;
+        byte[][] emails;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            SpamDetector detector = SpamDetector.fromConfig();
+            switch (kind) {
+                case "mapped":
+                    modelFile = Files.createTempFile("spam-model", ".bin");
+                    ModelFile.write(detector, modelFile);
+                    model = MappedSpamModel.load(modelFile);
+                    break;
+                case "online":
+                    model = new OnlineSpamModel(detector);
+                    break;
+                case "hashed":
+                    model = HashedSpamModel.of(detector, 20);
+                    break;
+                default:
+                    model = detector;
+            }
+
+            File[] files = Corpus.files(Corpus.TEST_FOLDERS);
+            emails = Corpus.read(files);
+            paths = new Path[files.length];
+            for (int i = 0; i < files.length; i++) {
+                paths[i] = files[i].toPath();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if (modelFile != null)
+                Files.deleteIfExists(modelFile);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance(int count) {
+            int current = next;
+            next = current + 1 == count ? 0 : current + 1;
+            return current;
+        }
+    }
+
+    /**
+     * Scores a test email file, as the evaluation does for every test email.
+     */
+    @Benchmark
+    public double scoreFile(Model model, Cursor cursor) {
+        return model.model.calculateSpamProbability(model.paths[cursor.advance(model.paths.length)]);
+    }
+
+    /**
+     * Scores a test email from memory, as /classify and the batch endpoint do.
+     */
+    @Benchmark
+    public double scoreInMemory(Model model, Cursor cursor) {
+        byte[] email = model.emails[cursor.advance(model.emails.length)];
+        return model.model.calculateSpamProbability(new ByteArrayInputStream(email));
+    }
+}
@@ -0,0 +1,89 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.EmailTokenizer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizer throughput over the whole training corpus.
+ * The "bytes" counter is reported per second, i.e. divide it by 1,000,000 for MB/s.
+ * Runs with and without MIME parsing, whatever spamdetector.tokenizer.mime is set to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Emails {
+        File[] files;
+        byte[][] bytes;
+
+        @Setup(Level.Trial)
+        public void load() {
+            files = Corpus.files(Corpus.TRAIN_FOLDERS);
+            bytes = Corpus.read(files);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tokenizer {
+        // Raw bytes, or MIME parsing first (spamdetector.tokenizer.mime)
+        @Param({"false", "true"})
+        boolean mime;
+
+        EmailTokenizer tokenizer;
+        long words;
+        final EmailTokenizer.TokenSink sink = (word, length) -> words++;
+
+        @Setup(Level.Trial)
+        public void create() {
+            tokenizer = new EmailTokenizer(mime);
+        }
+    }
+
+    /**
+     * Bytes tokenized, reported as a rate next to the benchmark's own score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Tokenizes every training email from memory: the tokenizer alone, without file I/O.
+     */
+    @Benchmark
+    public void inMemory(Emails emails, Tokenizer tokenizer, Throughput throughput, Blackhole blackhole) {
+        for (byte[] email : emails.bytes) {
+            tokenizer.tokenizer.tokenize(email, 0, email.length, tokenizer.sink);
+            throughput.bytes += email.length;
+        }
+        blackhole.consume(tokenizer.words);
+    }
+
+    /**
+     * Tokenizes every training email from its file, as training does.
+     */
+    @Benchmark
+    public void fromFiles(Emails emails, Tokenizer tokenizer, Throughput throughput, Blackhole blackhole)
+            throws IOException {
+        for (int i = 0; i < emails.files.length; i++) {
+            tokenizer.tokenizer.tokenize(emails.files[i].toPath(), tokenizer.sink);
+            throughput.bytes += emails.bytes[i].length;
+        }
+        blackhole.consume(tokenizer.words);
+    }
+}
@@ -0,0 +1,61 @@
+package com.spamdetector.bench;
+
+import com.spamdetector.util.DataFolders;
+import com.spamdetector.util.EmailParser;
+import com.spamdetector.util.SpamDetector;
+import com.spamdetector.util.Vocabulary;
+import com.spamdetector.util.WordCounts;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training time: counting the words of one training folder, and training the whole model.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TrainingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Folder {
+        @Param({"train/ham", "train/ham2", "train/spam"})
+        public String folder;
+
+        // 1 counts on the calling thread; 0 uses one worker per core
+        @Param({"1", "0"})
+        public int workers;
+
+        File directory;
+        int workerCount;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            directory = DataFolders.getFileLocation(folder);
+            workerCount = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /**
+     * EmailParser.getWordFrequency over one training folder, into a fresh vocabulary.
+     */
+    @Benchmark
+    public WordCounts wordFrequency(Folder folder) {
+        EmailParser parser = new EmailParser();
+        Vocabulary vocabulary = new Vocabulary();
+        return folder.workerCount <= 1
+                ? parser.getWordFrequencySerial(folder.directory, vocabulary)
+                : parser.getWordFrequency(folder.directory, vocabulary, folder.workerCount);
+    }
+
+    /**
+     * Trains the complete model: all training folders and the probability tables.
+     */
+    @Benchmark
+    public SpamDetector trainModel() {
+        return SpamDetector.fromConfig();
+    }
+}
@@ -0,0 +1,52 @@
+package com.spamdetector.domain;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class represents the result of classifying a single email submitted to the classifier
+ * Includes the probability of the email being spam and the resulting verdict
+ */
+public class ClassificationResult {
+    /**
+     * the probability of this email belonging to the 'spam' category/class
+     */
+    @JsonProperty("spamProbability")
+    private double spamProbability;
+
+    /**
+     * the spam probability rounded to 5 decimals, as shown in the results table
+     */
+    @JsonProperty("spamProbRounded")
+    private String spamProbRounded;
+
+    /**
+     * the predicted class of the email: 'spam' or 'ham'
+     */
+    @JsonProperty("verdict")
+    private String verdict;
+
+    public ClassificationResult(double spamProbability, String spamProbRounded, String verdict) {
+        this.spamProbability = spamProbability;
+        this.spamProbRounded = spamProbRounded;
+        this.verdict = verdict;
+    }
+
+    /**
+     * @return the probability of this email being 'spam'
+     */
+    public double getSpamProbability() { return this.spamProbability; }
+
+    /**
+     * @return the spam probability rounded to 5 decimals
+     */
+    public String getSpamProbRounded() { return this.spamProbRounded; }
+
+    /**
+     * @return the predicted class of the email
+     */
+    public String getVerdict() { return this.verdict; }
+
+    public void setSpamProbability(double value) { this.spamProbability = value; }
+    public void setSpamProbRounded(String value) { this.spamProbRounded = value; }
+    public void setVerdict(String value) { this.verdict = value; }
+}
@@ -0,0 +1,65 @@
+package com.spamdetector.domain;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * This class represents the outcome of learning from one labelled email sent as feedback
+ * Includes the label, how many words were learned and the updated email counts of the model
+ */
+public class FeedbackResult {
+    /**
+     * the class the email was labelled with: 'spam' or 'ham'
+     */
+    @JsonProperty("label")
+    private String label;
+
+    /**
+     * the number of words counted in the email
+     */
+    @JsonProperty("words")
+    private int words;
+
+    /**
+     * the number of ham emails the model has learned from, including this one
+     */
+    @JsonProperty("hamEmails")
+    private int hamEmails;
+
+    /**
+     * the number of spam emails the model has learned from, including this one
+     */
+    @JsonProperty("spamEmails")
+    private int spamEmails;
+
+    public FeedbackResult(String label, int words, int hamEmails, int spamEmails) {
+        this.label = label;
+        this.words = words;
+        this.hamEmails = hamEmails;
+        this.spamEmails = spamEmails;
+    }
+
+    /**
+     * @return the class the email was labelled with
+     */
+    public String getLabel() { return this.label; }
+
+    /**
+     * @return the number of words counted in the email
+     */
+    public int getWords() { return this.words; }
+
+    /**
+     * @return the number of ham emails the model has learned from
+     */
+    public int getHamEmails() { return this.hamEmails; }
+
+    /**
+     * @return the number of spam emails the model has learned from
+     */
+    public int getSpamEmails() { return this.spamEmails; }
+
+    public void setLabel(String value) { this.label = value; }
+    public void setWords(int value) { this.words = value; }
+    public void setHamEmails(int value) { this.hamEmails = value; }
+    public void setSpamEmails(int value) { this.spamEmails = value; }
+}
@@ -0,0 +1,355 @@
+package com.spamdetector.service;
+
+import com.spamdetector.util.BatchClassifier;
+import com.spamdetector.util.HashedSpamModel;
+import com.spamdetector.util.LearningModel;
+import com.spamdetector.util.MappedSpamModel;
+import com.spamdetector.util.ModelEvaluation;
+import com.spamdetector.util.LazyResult;
+import com.spamdetector.util.ModelFile;
+import com.spamdetector.util.OnlineSpamModel;
+import com.spamdetector.util.ParameterSweep;
+import com.spamdetector.util.RequestExecutor;
+import com.spamdetector.util.ScoreCache;
+import com.spamdetector.util.SpamConfig;
+import com.spamdetector.util.SpamDetector;
+import com.spamdetector.util.SpamModel;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.context.Initialized;
+import jakarta.enterprise.event.Observes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the single trained spam model for the whole deployment.
+ * Training is started once when the application scope is initialized and runs on a background
+ * thread, so the endpoints can answer (with 503) while the model is still being built.
+ *
+ * If the setting spamdetector.model.file names an existing model file, the model is memory-mapped from
+ * it instead of being trained, which takes milliseconds and needs no training emails. If the file does
+ * not exist yet, the model is trained and then saved there for the next start.
+ * If spamdetector.model.hashBits is set, a HashedSpamModel with a fixed number of buckets is trained
+ * instead; it has no vocabulary, so it is never saved to or loaded from the model file.
+ * Once the model is ready it is tested on the test emails for the /spam, /accuracy, /precision, /recall,
+ * /f1 and /roc endpoints. When the model changes, it is tested again on a small pool of evaluation threads
+ * (setting spamdetector.evaluation.threads, default 2), and the earlier test results are served until the
+ * new ones are ready.
+ *
+ * The first feedback email switches the deployment to an OnlineSpamModel built from the current model,
+ * which then keeps learning from every further feedback email. A HashedSpamModel learns in place.
+ */
+@ApplicationScoped
+public class SpamModelHolder {
+
+    /**
+     * Seconds a client is asked to wait before retrying while the model is still training
+     */
+    public static final int RETRY_AFTER_SECONDS = 10;
+
+    // Makes sure training is only ever started once, even if start() is called from several places
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    // The trained model; null until training (or loading) has finished
+    private volatile SpamModel model;
+
+    // The error that stopped training, if any
+    private volatile Throwable failure;
+
+    // Released once training (or loading) has finished, whether it succeeded or not
+    private final CountDownLatch trained = new CountDownLatch(1);
+
+    // The test results of the model; null until testing has finished
+    private volatile ModelEvaluation evaluation;
+
+    // The error that stopped testing, if any
+    private volatile Throwable evaluationFailure;
+
+    // Set while the model is tested again in the background after it has learned
+    private final AtomicBoolean retesting = new AtomicBoolean(false);
+
+    // Tests the model again after it has learned, and builds the slow reports, off the request threads
+    private final ExecutorService evaluationExecutor = evaluationExecutor(
+            SpamConfig.getInt("spamdetector.evaluation.threads", 2));
+
+    // Scores of emails already classified, valid until the model changes
+    private final ScoreCache scoreCache = ScoreCache.fromConfig();
+
+    // Runs the classification requests, off the container's worker threads
+    private final RequestExecutor requestExecutor = RequestExecutor.fromConfig();
+
+    // Scores batches of emails on a pool of threads shared by all batch requests
+    private final BatchClassifier batchClassifier = BatchClassifier.fromConfig(scoreCache);
+
+    // The cross-validation sweep over the training emails as JSON; run once, on first use
+    private final LazyResult<String> sweep = new LazyResult<>();
+
+    // The model of single words compared with one with bigrams as JSON; built once, on first use
+    private final LazyResult<String> bigrams = new LazyResult<>();
+
+    // The model keeping every word compared with pruned ones as JSON; built once, on first use
+    private final LazyResult<String> pruning = new LazyResult<>();
+
+    /**
+     * Starts training as soon as the container has initialized the application scope (deploy time).
+     * @param event the container's initialization event (unused)
+     */
+    void onStartup(@Observes @Initialized(ApplicationScoped.class) Object event) {
+        start();
+    }
+
+    /**
+     * Starts training the model on a background thread. Calling this more than once has no effect.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread trainer = new Thread(this::train, "spam-model-trainer");
+        trainer.setDaemon(true);
+        trainer.start();
+    }
+
+    /**
+     * Trains (or loads) the model and publishes it for the endpoints, then tests it.
+     */
+    private void train() {
+        long start = System.nanoTime();
+        String modelFile = SpamConfig.getString("spamdetector.model.file", null);
+        int hashBits = SpamConfig.getInt("spamdetector.model.hashBits", 0);
+
+        try {
+            if (hashBits > 0) {
+                System.out.println("Training the model into 2^" + hashBits + " hash buckets, please wait");
+                model = HashedSpamModel.train(hashBits);
+            } else if (modelFile != null && Files.exists(Paths.get(modelFile))) {
+                System.out.println("Loading the model from " + modelFile);
+                model = MappedSpamModel.load(Paths.get(modelFile));
+            } else {
+                System.out.println("Training the model, please wait");
+                SpamDetector detector = SpamDetector.fromConfig();
+                if (modelFile != null)
+                    save(detector, Paths.get(modelFile));
+                model = detector;
+            }
+            System.out.println("Model ready in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("Loading the model failed: " + e);
+            return;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            System.err.println("Training the model failed: " + e);
+            throw e;
+        } finally {
+            trained.countDown();
+        }
+
+        start = System.nanoTime();
+        try {
+            evaluation = ModelEvaluation.test(model);
+            System.out.println("Model tested in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (RuntimeException | Error e) {
+            evaluationFailure = e;
+            System.err.println("Testing the model failed: " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * Saves a freshly trained model. A model that cannot be saved is still used, it is just trained again
+     * on the next start.
+     * @param detector the trained model
+     * @param file where to save it
+     */
+    private void save(SpamDetector detector, Path file) {
+        try {
+            ModelFile.write(detector, file);
+            System.out.println("Model saved to " + file);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Saving the model to " + file + " failed: " + e);
+        }
+    }
+
+    /**
+     * Starts training if nobody has done so yet, and waits until the model is trained (or loaded).
+     * @return true once the model is ready, false if training failed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitModel() throws InterruptedException {
+        start();
+        trained.await();
+        return model != null;
+    }
+
+    /**
+     * @return true once the trained model can serve requests
+     */
+    public boolean isReady() { return model != null; }
+
+    /**
+     * @return the error that stopped training, or null if training succeeded or is still running
+     */
+    public Throwable getFailure() { return failure; }
+
+    /**
+     * @return the error that stopped testing the model, or null if testing succeeded or is still running
+     */
+    public Throwable getEvaluationFailure() { return evaluationFailure; }
+
+    /**
+     * @return the cache of email scores shared by all classification requests
+     */
+    public ScoreCache getScoreCache() { return scoreCache; }
+
+    /**
+     * @return the executor the classification requests run on
+     */
+    public RequestExecutor getRequestExecutor() { return requestExecutor; }
+
+    /**
+     * @return the few threads that test the model and build the reports that score the test emails again,
+     *         so those never take the request executor's slots from classification requests
+     */
+    public Executor getEvaluationExecutor() { return evaluationExecutor; }
+
+    /**
+     * @return the parallel batch scorer shared by all requests
+     */
+    public BatchClassifier getBatchClassifier() { return batchClassifier; }
+
+    /**
+     * Returns the ranked results of the cross-validation sweep of the model settings. The sweep runs once,
+     * on the evaluation threads, when first asked for; later calls get the same results.
+     * @return the ranked settings as JSON, once the sweep is done
+     */
+    public CompletableFuture<String> getSweep() {
+        return sweep.get(() -> ParameterSweep.fromConfig().sweepJson(), evaluationExecutor);
+    }
+
+    /**
+     * Returns what bigrams gain in accuracy and cost in scoring time. The comparison retrains from the
+     * training emails and only depends on whether the model uses bigrams, so it is built once, on the
+     * evaluation threads, when first asked for, and kept when the model learns from feedback.
+     * @param evaluation the test results of the model, which build the comparison
+     * @return the comparison as JSON, once it is built
+     */
+    public CompletableFuture<String> getBigrams(ModelEvaluation evaluation) {
+        return bigrams.get(evaluation::bigramsJson, evaluationExecutor);
+    }
+
+    /**
+     * Returns what pruning the vocabulary saves and costs. The comparison retrains from the training emails
+     * and only depends on whether the model uses bigrams, so like getBigrams it is built once, on the
+     * evaluation threads, and kept when the model learns from feedback.
+     * @param evaluation the test results of the model, which build the comparison
+     * @return the comparison as JSON, once it is built
+     */
+    public CompletableFuture<String> getPruning(ModelEvaluation evaluation) {
+        return pruning.get(evaluation::pruningJson, evaluationExecutor);
+    }
+
+    /**
+     * Stops the request, batch scoring and evaluation threads when the application is undeployed.
+     */
+    @PreDestroy
+    void shutdown() {
+        requestExecutor.shutdown();
+        batchClassifier.shutdown();
+        evaluationExecutor.shutdownNow();
+    }
+
+    /**
+     * Creates the pool of daemon threads that test the model again.
+     * @param threads the number of threads
+     * @return the executor
+     */
+    private static ExecutorService evaluationExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "spam-evaluation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the trained model, starting training first if nobody has done so yet.
+     * @return the trained model, or null if it is not ready yet
+     */
+    public SpamModel getModel() {
+        start();
+        return model;
+    }
+
+    /**
+     * Returns the model that learns from feedback. A hashed model learns itself; otherwise the first call
+     * copies the trained (or loaded) model into an OnlineSpamModel and makes it the model of the deployment.
+     * @return the learning model, or null if the model is not ready yet
+     */
+    public synchronized LearningModel getLearningModel() {
+        SpamModel current = getModel();
+        if (current == null || current instanceof LearningModel)
+            return (LearningModel) current;
+
+        OnlineSpamModel online = current instanceof MappedSpamModel
+                ? new OnlineSpamModel((MappedSpamModel) current)
+                : new OnlineSpamModel((SpamDetector) current);
+        model = online;
+        return online;
+    }
+
+    /**
+     * Returns the test results of the model, starting training first if nobody has done so yet.
+     * If the model has learned from feedback since it was tested, it is tested again in the background and
+     * the earlier results are returned meanwhile, so no request waits for the test set to be scored.
+     * @return the latest test results, or null if the model has not been trained and tested yet
+     */
+    public ModelEvaluation getEvaluation() {
+        start();
+        ModelEvaluation current = evaluation;
+        if (current != null && !current.isFor(model))
+            retest();
+        return current;
+    }
+
+    /**
+     * Tests the current model again on the evaluation threads, unless that is already under way.
+     */
+    private void retest() {
+        if (!retesting.compareAndSet(false, true))
+            return;
+
+        try {
+            evaluationExecutor.execute(() -> {
+                try {
+                    SpamModel current = model;
+                    long start = System.nanoTime();
+                    evaluation = ModelEvaluation.test(current);
+                    System.out.println("Model tested again in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                } catch (RuntimeException e) {
+                    // The earlier results are still served; the next request tries again
+                    System.err.println("Testing the model again failed: " + e);
+                } finally {
+                    retesting.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            retesting.set(false);
+        }
+    }
+}
@@ -1,55 +1,447 @@
 package com.spamdetector.service;
 
-import com.spamdetector.domain.TestFile;
-import com.spamdetector.util.SpamDetector;
+import com.spamdetector.util.LearningModel;
+import com.spamdetector.util.ModelEvaluation;
+import com.spamdetector.util.MultipartReader;
+import com.spamdetector.util.SpamMetrics;
+import com.spamdetector.util.SpamModel;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
 
-import java.io.File;
-import java.util.List;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 
 @Path("/spam")
 public class SpamResource {
 
-    SpamDetector detector = new SpamDetector();
+    // Application-scoped holder of the trained model, so training happens once per deployment
+    @Inject
+    SpamModelHolder modelHolder;
 
 
-
-    SpamResource(){
-//        TODO: load resources, train and test to improve performance on the endpoint calls
-        System.out.print("Training and testing the model, please wait");
-        //detector.wordFrequency()
-
-//      TODO: call  this.trainAndTest();
+    public SpamResource(){
+        // Nothing to do here: the model is loaded or trained, and tested, once by SpamModelHolder
     }
+
+    /**
+     * Returns the spam probability of the test emails as a JSON array, one page at a time.
+     * The response is streamed, and gzipped if the client accepts it; X-Total-Count holds the number of
+     * emails matching the class filter. Without parameters it lists all the ham test emails, as it always has.
+     * @param offset number of emails to skip
+     * @param limit maximum number of emails to return (default: all of them)
+     * @param actualClass which test emails to list: ham (default), spam or all
+     * @param acceptEncoding the Accept-Encoding header of the request
+     * @return the results as JSON
+     */
     @GET
     @Produces("application/json")
-    public Response getSpamResults() {
-//       TODO: return the test results list of TestFile, return in a Response object
+    public Response getSpamResults(@QueryParam("offset") @DefaultValue("0") int offset,
+                                   @QueryParam("limit") @DefaultValue("2147483647") int limit,
+                                   @QueryParam("class") @DefaultValue("ham") String actualClass,
+                                   @HeaderParam("Accept-Encoding") String acceptEncoding) {
+        if (offset < 0 || limit < 0)
+            return badRequest("offset and limit must not be negative");
+        if (!actualClass.equals("ham") && !actualClass.equals("spam") && !actualClass.equals("all"))
+            return badRequest("class must be ham, spam or all");
 
-        return detector.resultForGetSpam();
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
+
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        return evaluation.resultForGetSpam(offset, limit, actualClass, gzip);
     }
 
     @GET
     @Path("/accuracy")
     @Produces("application/json")
     public Response getAccuracy() {
-//      TODO: return the accuracy of the detector, return in a Response object
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
 
-        return detector.resultForAccuracy();
+        return evaluation.resultForAccuracy();
     }
 
     @GET
     @Path("/precision")
     @Produces("application/json")
     public Response getPrecision() {
-       //      TODO: return the precision of the detector, return in a Response object
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
+
+        return evaluation.resultForPrecision();
+    }
+
+    @GET
+    @Path("/recall")
+    @Produces("application/json")
+    public Response getRecall() {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
+
+        return evaluation.resultForRecall();
+    }
+
+    @GET
+    @Path("/f1")
+    @Produces("application/json")
+    public Response getF1() {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
+
+        return evaluation.resultForF1();
+    }
+
+    /**
+     * Returns the ROC curve of the model on the test emails: the area under the curve and
+     * the true and false positive rates at a range of decision thresholds.
+     * @return the ROC result as JSON
+     */
+    @GET
+    @Path("/roc")
+    @Produces("application/json")
+    public Response getRoc() {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null)
+            return evaluationNotReady();
+
+        return evaluation.resultForRoc();
+    }
+
+    /**
+     * Compares the scoring modes (see ScoringMode) with full scoring on the test emails: accuracy,
+     * agreement with the full verdicts and the mean time per email of each mode.
+     * The first call scores every test email once per mode, on the evaluation threads; later calls return
+     * its results. No request thread waits for the comparison meanwhile.
+     * @param response receives the comparison as JSON, or 503 while the model is still being tested
+     */
+    @GET
+    @Path("/scoring")
+    @Produces("application/json")
+    public void getScoring(@Suspended AsyncResponse response) {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null) {
+            response.resume(evaluationNotReady());
+            return;
+        }
+
+        resume(response, evaluation.scoringJson(modelHolder.getEvaluationExecutor()));
+    }
+
+    /**
+     * Compares hashed models (see HashedSpamModel) of a range of bucket counts with the model on the test
+     * emails: memory, accuracy, accuracy lost and agreement with the model's verdicts of each size.
+     * The first call builds every size and scores every test email once per size, on the evaluation threads;
+     * later calls return its results.
+     * @param response receives the comparison as JSON, or 503 while the model is still being tested
+     */
+    @GET
+    @Path("/hashing")
+    @Produces("application/json")
+    public void getHashing(@Suspended AsyncResponse response) {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null) {
+            response.resume(evaluationNotReady());
+            return;
+        }
+
+        resume(response, evaluation.hashingJson(modelHolder.getEvaluationExecutor()));
+    }
+
+    /**
+     * Compares a model of single words with one that also has bigrams (see BigramTrainer) on the test emails:
+     * accuracy, precision, recall and the mean time to score an email of each, and how the bigrams were found.
+     * The first call trains the model not in use, on the evaluation threads; later calls return its results,
+     * also after the model has learned from feedback.
+     * @param response receives the comparison as JSON, or 503 while the model is still being tested
+     */
+    @GET
+    @Path("/bigrams")
+    @Produces("application/json")
+    public void getBigrams(@Suspended AsyncResponse response) {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null) {
+            response.resume(evaluationNotReady());
+            return;
+        }
+
+        resume(response, modelHolder.getBigrams(evaluation));
+    }
+
+    /**
+     * Compares the model keeping every word with pruned models (see FeatureSelector) on the test emails:
+     * model file size, mean time to score an email, accuracy and accuracy lost at each number of words kept.
+     * The first call trains and prunes the models, on the evaluation threads; later calls return its results,
+     * also after the model has learned from feedback.
+     * @param response receives the comparison as JSON, or 503 while the model is still being tested
+     */
+    @GET
+    @Path("/pruning")
+    @Produces("application/json")
+    public void getPruning(@Suspended AsyncResponse response) {
+        ModelEvaluation evaluation = modelHolder.getEvaluation();
+        if (evaluation == null) {
+            response.resume(evaluationNotReady());
+            return;
+        }
+
+        resume(response, modelHolder.getPruning(evaluation));
+    }
+
+    /**
+     * Ranks a grid of model settings (smoothing, decision threshold, minimum word count and vocabulary size)
+     * by k-fold cross-validation over the training emails (see ParameterSweep). Does not need the model.
+     * The first call runs the sweep, on the evaluation threads; later calls return its results.
+     * @param response receives the ranked settings as JSON
+     */
+    @GET
+    @Path("/sweep")
+    @Produces("application/json")
+    public void getSweep(@Suspended AsyncResponse response) {
+        resume(response, modelHolder.getSweep());
+    }
+
+    /**
+     * Returns the counters and latency histograms of training, tokenizing, scoring and serializing,
+     * in the Prometheus text format. Available while the model is still training.
+     * @return the metrics
+     */
+    @GET
+    @Path("/metrics")
+    @Produces("text/plain; version=0.0.4")
+    public Response getMetrics() {
+        return Response.status(200)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .header("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+                .entity(SpamMetrics.toPrometheus(modelHolder.getScoreCache()))
+                .build();
+    }
+
+    /**
+     * Classifies a single raw email sent as the request body. Emails seen before (up to case, line ends
+     * and spacing) are answered from the score cache until the model changes.
+     * The email is read and scored on the request executor, not on a container thread.
+     * @param message the RFC 822 message
+     * @param response receives the spam probability and verdict of the email, or 429 when overloaded
+     */
+    @POST
+    @Path("/classify")
+    @Consumes({"message/rfc822", "text/plain", "application/octet-stream"})
+    @Produces("application/json")
+    public void classify(InputStream message, @Suspended AsyncResponse response) {
+        SpamModel model = modelHolder.getModel();
+        if (model == null) {
+            response.resume(notReady());
+            return;
+        }
+
+        submit(response, () -> modelHolder.getScoreCache().resultForClassify(model, message));
+    }
+
+    /**
+     * Learns from a raw email the user has labelled as spam or ham, without retraining the model.
+     * Only the counts of the words in the email and of its class are updated.
+     * @param label the class of the email: "spam" or "ham"
+     * @param message the RFC 822 message, streamed straight into the tokenizer
+     * @param response receives the updated email counts of the model, or 429 when overloaded
+     */
+    @POST
+    @Path("/feedback")
+    @Consumes({"message/rfc822", "text/plain", "application/octet-stream"})
+    @Produces("application/json")
+    public void feedback(@QueryParam("label") String label, InputStream message,
+                         @Suspended AsyncResponse response) {
+        if (!"spam".equals(label) && !"ham".equals(label)) {
+            response.resume(badRequest("The label must be spam or ham"));
+            return;
+        }
+
+        LearningModel model = modelHolder.getLearningModel();
+        if (model == null) {
+            response.resume(notReady());
+            return;
+        }
+
+        submit(response, () -> model.resultForFeedback(message, "spam".equals(label)));
+    }
+
+    /**
+     * Classifies a batch of emails sent as NDJSON, one email per line: either a JSON string with the raw
+     * email or an object {"id": "...", "email": "..."}. The emails are scored in parallel and the results
+     * are streamed back as NDJSON in the order the emails were sent.
+     * @param emails the NDJSON request body
+     * @param response receives one result line per email, or 429 when overloaded
+     */
+    @POST
+    @Path("/classify/batch")
+    @Consumes("application/x-ndjson")
+    @Produces("application/x-ndjson")
+    public void classifyBatch(InputStream emails, @Suspended AsyncResponse response) {
+        SpamModel model = modelHolder.getModel();
+        if (model == null) {
+            response.resume(notReady());
+            return;
+        }
+
+        StreamingOutput results = out -> modelHolder.getBatchClassifier().classifyNdjson(model, emails, out);
+        submit(response, () -> Response.status(200)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .entity(results)
+                .build());
+    }
 
-        return detector.resultForPrecision();
+    /**
+     * Classifies a batch of emails uploaded as a multipart body, one email per part.
+     * The results are streamed back as NDJSON in the order of the parts.
+     * @param contentType the Content-Type header, which holds the multipart boundary
+     * @param emails the multipart request body
+     * @param response receives one result line per email, or 429 when overloaded
+     */
+    @POST
+    @Path("/classify/batch")
+    @Consumes({"multipart/form-data", "multipart/mixed"})
+    @Produces("application/x-ndjson")
+    public void classifyBatchMultipart(@HeaderParam("Content-Type") String contentType, InputStream emails,
+                                       @Suspended AsyncResponse response) {
+        SpamModel model = modelHolder.getModel();
+        if (model == null) {
+            response.resume(notReady());
+            return;
+        }
+
+        String boundary = MultipartReader.boundaryOf(contentType);
+        if (boundary == null) {
+            response.resume(badRequest("The multipart Content-Type has no boundary"));
+            return;
+        }
+
+        int maxEmailBytes = modelHolder.getBatchClassifier().getMaxEmailBytes();
+        MultipartReader parts = new MultipartReader(emails, boundary, maxEmailBytes);
+        StreamingOutput results = out -> modelHolder.getBatchClassifier().classifyMultipart(model, parts, out);
+        submit(response, () -> Response.status(200)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .entity(results)
+                .build());
+    }
+
+    /**
+     * Runs a request on the request executor and resumes the suspended response with its result.
+     * Resuming writes the response, so a streamed response is written on the executor thread as well.
+     * When too many requests are running or waiting, the response is a 429 instead.
+     * @param response the suspended response
+     * @param request builds the response; exceptions it throws are mapped to error responses by JAX-RS
+     */
+    private void submit(AsyncResponse response, Supplier<Response> request) {
+        boolean accepted = modelHolder.getRequestExecutor().submit(() -> {
+            try {
+                response.resume(request.get());
+            } catch (RuntimeException | Error e) {
+                response.resume(e);
+            }
+        });
+
+        if (!accepted)
+            response.resume(tooBusy());
+    }
+
+    /**
+     * Resumes the suspended response with a report once it has been built, as JSON, or with the error that
+     * stopped building it, which JAX-RS maps to an error response.
+     * @param response the suspended response
+     * @param report the report as JSON, once it is ready
+     */
+    private void resume(AsyncResponse response, CompletableFuture<String> report) {
+        report.whenComplete((json, error) -> {
+            if (error == null) {
+                response.resume(Response.status(200)
+                        .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                        .header("Content-Type", "application/json")
+                        .entity(json)
+                        .build());
+            } else {
+                response.resume(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+    }
+
+    /**
+     * Builds the response returned while the model is still training (503 with Retry-After),
+     * or a 500 if training failed.
+     * @return the error response
+     */
+    private Response notReady() {
+        if (modelHolder.getFailure() != null) {
+            return failed("Training the model failed: " + modelHolder.getFailure().getMessage());
+        }
+
+        return retryLater("The model is still training, please retry later");
     }
 
+    /**
+     * Builds the response returned while the model is still being trained or tested (503 with Retry-After),
+     * or a 500 if either failed.
+     * @return the error response
+     */
+    private Response evaluationNotReady() {
+        if (modelHolder.getEvaluationFailure() != null)
+            return failed("Testing the model failed: " + modelHolder.getEvaluationFailure().getMessage());
 
-}
\ No newline at end of file
+        if (!modelHolder.isReady())
+            return notReady();
+
+        return retryLater("The model is still being tested, please retry later");
+    }
+
+    private Response badRequest(String message) {
+        return Response.status(400)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .type("text/plain")
+                .entity(message)
+                .build();
+    }
+
+    private Response tooBusy() {
+        return Response.status(429)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .header("Retry-After", 1)
+                .type("text/plain")
+                .entity("Too many requests are being classified, please retry later")
+                .build();
+    }
+
+    private Response failed(String message) {
+        return Response.status(500)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .type("text/plain")
+                .entity(message)
+                .build();
+    }
+
+    private Response retryLater(String message) {
+        return Response.status(503)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                .header("Retry-After", SpamModelHolder.RETRY_AFTER_SECONDS)
+                .type("text/plain")
+                .entity(message)
+                .build();
+    }
+}
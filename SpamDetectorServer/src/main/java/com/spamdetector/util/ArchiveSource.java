@@ -0,0 +1,289 @@
+package com.spamdetector.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A .zip, .tar, .tar.gz or .tgz archive of emails, e.g. a snapshot of a Maildir or a directory of emails.
+ * Every file entry is an email, except entries named *.mbox (or mbox), which are split into their emails.
+ * Dot files and the tmp folders of Maildirs are left out.
+ *
+ * The archive is read as one stream, entry after entry; only the email being read is held in memory and
+ * nothing is extracted to disk.
+ */
+class ArchiveSource implements CorpusSource {
+
+    // Tar archives are made of 512-byte blocks: a header block per entry, then its data padded to a block
+    private static final int BLOCK = 512;
+
+    private final String location;
+    private final Path file;
+
+    ArchiveSource(String location, Path file) {
+        this.location = location;
+        this.file = file;
+    }
+
+    @Override
+    public String getLocation() { return location; }
+
+    /**
+     * @return the archive file
+     */
+    Path getFile() { return file; }
+
+    @Override
+    public void forEach(Consumer<Message> handler) throws IOException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            if (name.endsWith(".zip")) {
+                readZip(in, handler);
+            } else if (name.endsWith(".tar")) {
+                readTar(in, handler);
+            } else {
+                readTar(new GZIPInputStream(in, 64 * 1024), handler);
+            }
+        }
+    }
+
+    private void readZip(InputStream in, Consumer<Message> handler) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            // The zip stream ends at the end of the entry
+            if (!entry.isDirectory())
+                entry(entry.getName(), zip, entry.getSize(), handler);
+        }
+    }
+
+    private void readTar(InputStream in, Consumer<Message> handler) throws IOException {
+        byte[] header = new byte[BLOCK];
+        String longName = null;
+
+        while (readBlock(in, header)) {
+            // The archive ends with empty blocks
+            if (isEmpty(header))
+                break;
+
+            String name = longName != null ? longName : headerName(header);
+            longName = null;
+            long size = headerSize(header);
+            byte type = header[156];
+
+            if (type == 'L') {
+                // GNU long name: the data is the name of the next entry
+                longName = readString(in, size);
+            } else if (type == 'x') {
+                // POSIX extended header: may hold the full path of the next entry
+                longName = paxPath(readString(in, size));
+            } else if (type == '0' || type == 0 || type == '7') {
+                // A regular file
+                EntryInputStream data = new EntryInputStream(in, size);
+                entry(name, data, size, handler);
+                data.skipRest();
+            } else {
+                skipFully(in, size);
+            }
+            skipFully(in, padding(size));
+        }
+    }
+
+    /**
+     * Passes on the email, or the emails, of a file entry.
+     * @param size the size of the entry, or -1 if the archive does not say
+     */
+    private void entry(String name, InputStream data, long size, Consumer<Message> handler) throws IOException {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        if (fileName.isEmpty() || fileName.startsWith(".") || name.startsWith("__MACOSX/")
+                || name.startsWith("tmp/") || name.contains("/tmp/"))
+            return;
+
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        if (lower.equals("mbox") || lower.endsWith(".mbox")) {
+            MboxSource.split(data, name, handler);
+            return;
+        }
+
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IOException("Email too large: " + name + " in " + location);
+        byte[] bytes = size >= 0 ? data.readNBytes((int) size) : data.readAllBytes();
+        handler.accept(Message.ofBytes(name, bytes, bytes.length));
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int read = in.readNBytes(block, 0, BLOCK);
+        if (read == 0)
+            return false;
+        if (read < BLOCK)
+            throw new EOFException("Truncated tar archive");
+        return true;
+    }
+
+    private static boolean isEmpty(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the path of a tar entry: its name, after the ustar prefix if there is one
+     */
+    private static String headerName(byte[] header) {
+        String name = string(header, 0, 100);
+        boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r';
+        if (ustar) {
+            String prefix = string(header, 345, 155);
+            if (!prefix.isEmpty())
+                return prefix + "/" + name;
+        }
+        return name;
+    }
+
+    /**
+     * @return the size field of a tar header: octal digits, or a big-endian binary number if the first
+     *         byte has its high bit set (GNU, for entries of 8 GB and more)
+     */
+    private static long headerSize(byte[] header) throws IOException {
+        long size = 0;
+        if ((header[124] & 0x80) != 0) {
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+
+        for (int i = 124; i < 136; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ')
+                continue;
+            if (b < '0' || b > '7')
+                throw new IOException("Corrupt tar header size");
+            size = (size << 3) | (b - '0');
+        }
+        return size;
+    }
+
+    private static String string(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0)
+            end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(InputStream in, long size) throws IOException {
+        if (size > 1 << 20)
+            throw new IOException("Tar header entry too large: " + size + " bytes");
+        byte[] bytes = in.readNBytes((int) size);
+        if (bytes.length < size)
+            throw new EOFException("Truncated tar archive");
+        return string(bytes, 0, bytes.length).trim();
+    }
+
+    /**
+     * @return the path of a POSIX extended header, made of records like "30 path=some/long/file/name\n",
+     *         or null if it has none
+     */
+    private static String paxPath(String records) {
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if (space > 0 && record.startsWith("path=", space + 1))
+                return record.substring(space + 1 + "path=".length());
+        }
+        return null;
+    }
+
+    private static long padding(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // skip may give up early; read to tell the end of the stream apart
+                if (in.read() == -1)
+                    throw new EOFException("Truncated tar archive");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * The data of one tar entry: the archive stream, up to the end of the entry.
+     */
+    private static final class EntryInputStream extends FilterInputStream {
+        private long remaining;
+
+        EntryInputStream(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int read = in.read(bytes, offset, (int) Math.min(length, remaining));
+            if (read > 0)
+                remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            if (skipped > 0)
+                remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The archive stream goes on with the next entry
+        }
+
+        /**
+         * Skips what the handler did not read of the entry.
+         */
+        void skipRest() throws IOException {
+            skipFully(in, remaining);
+            remaining = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "archive " + location;
+    }
+}
@@ -0,0 +1,307 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores many emails in parallel and writes one NDJSON result line per email, in the order the emails arrived.
+ * Emails are read one at a time and handed to a fixed pool of scoring threads; only a small window of
+ * emails is in flight at any moment, so memory use does not grow with the size of the batch.
+ *
+ * Settings:
+ * spamdetector.batch.parallelism   - number of scoring threads (default: number of cores)
+ * spamdetector.batch.maxSize       - maximum number of emails in one batch (default: 100000)
+ * spamdetector.batch.maxEmailBytes - largest email accepted in a batch (default: 10 MiB)
+ *
+ * An email that is missing, too large or cannot be scored gets a line with an "error" instead of a verdict,
+ * and the rest of the batch is still scored.
+ *
+ * Emails are scored through a ScoreCache, so copies of an email already seen are not scored again.
+ */
+public class BatchClassifier {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Threads that score the emails, shared by all batch requests
+    private final ExecutorService executor;
+
+    private final int parallelism;
+    private final int maxBatchSize;
+    private final int maxEmailBytes;
+
+    // Scores of emails already seen, shared with single classification
+    private final ScoreCache scoreCache;
+
+    /**
+     * @param parallelism the number of threads scoring emails at the same time
+     * @param maxBatchSize the maximum number of emails accepted in one batch
+     * @param maxEmailBytes the largest email accepted in a batch, in bytes
+     * @param scoreCache the cache the emails are scored through
+     */
+    public BatchClassifier(int parallelism, int maxBatchSize, int maxEmailBytes, ScoreCache scoreCache) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Batch parallelism must be at least 1: " + parallelism);
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Batch size limit must be at least 1: " + maxBatchSize);
+        if (maxEmailBytes < 1)
+            throw new IllegalArgumentException("Batch email size limit must be at least 1: " + maxEmailBytes);
+
+        this.parallelism = parallelism;
+        this.maxBatchSize = maxBatchSize;
+        this.maxEmailBytes = maxEmailBytes;
+        this.scoreCache = scoreCache;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "spam-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a batch classifier using the spamdetector.batch.* settings.
+     * @param scoreCache the cache the emails are scored through
+     * @return the batch classifier
+     */
+    public static BatchClassifier fromConfig(ScoreCache scoreCache) {
+        return new BatchClassifier(
+                SpamConfig.getInt("spamdetector.batch.parallelism", Runtime.getRuntime().availableProcessors()),
+                SpamConfig.getInt("spamdetector.batch.maxSize", 100_000),
+                SpamConfig.getInt("spamdetector.batch.maxEmailBytes", 10 << 20),
+                scoreCache);
+    }
+
+    /**
+     * @return the number of threads scoring emails at the same time
+     */
+    public int getParallelism() { return parallelism; }
+
+    /**
+     * @return the maximum number of emails accepted in one batch
+     */
+    public int getMaxBatchSize() { return maxBatchSize; }
+
+    /**
+     * @return the largest email accepted in a batch, in bytes; pass it to the MultipartReader of a batch
+     */
+    public int getMaxEmailBytes() { return maxEmailBytes; }
+
+    /**
+     * Scores an NDJSON batch. Each line is either a JSON string holding the raw email,
+     * or an object of the form {"id": "...", "email": "..."}.
+     *
+     * @param model the trained model
+     * @param in the NDJSON request body
+     * @param out where the NDJSON results are written
+     * @throws IOException if the request cannot be read or the results cannot be written
+     */
+    public void classifyNdjson(SpamModel model, InputStream in, OutputStream out) throws IOException {
+        try (MappingIterator<JsonNode> lines = objectMapper.readerFor(JsonNode.class).readValues(in)) {
+            classify(model, () -> {
+                if (!lines.hasNextValue())
+                    return null;
+
+                JsonNode line = lines.nextValue();
+                if (line.isTextual())
+                    return item(null, line.asText().getBytes(StandardCharsets.UTF_8));
+
+                JsonNode id = line.get("id");
+                JsonNode email = line.get("email");
+                return item(id == null || id.isNull() ? null : id.asText(),
+                        email == null || email.isNull() ? null : email.asText().getBytes(StandardCharsets.UTF_8));
+            }, out);
+        }
+    }
+
+    /**
+     * Scores a multipart batch, one email per part. The id of each result is the part's file name,
+     * or its field name when it has no file name.
+     *
+     * @param model the trained model
+     * @param parts the multipart request body
+     * @param out where the NDJSON results are written
+     * @throws IOException if the request cannot be read or the results cannot be written
+     */
+    public void classifyMultipart(SpamModel model, MultipartReader parts, OutputStream out) throws IOException {
+        classify(model, () -> {
+            MultipartReader.Part part = parts.nextPart();
+            if (part == null)
+                return null;
+
+            String id = part.getFilename() != null ? part.getFilename() : part.getName();
+            if (part.isOversized())
+                return new BatchItem(id, null, tooLarge());
+            return new BatchItem(id, part.getBody(), null);
+        }, out);
+    }
+
+    /**
+     * @return the email of an NDJSON line, or the error to report if it is too large
+     */
+    private BatchItem item(String id, byte[] email) {
+        if (email != null && email.length > maxEmailBytes)
+            return new BatchItem(id, null, tooLarge());
+        return new BatchItem(id, email, null);
+    }
+
+    private String tooLarge() {
+        return "Email larger than the limit of " + maxEmailBytes + " bytes";
+    }
+
+    /**
+     * Reads the emails one by one, scores them on the executor and writes the results in arrival order.
+     */
+    private void classify(SpamModel model, BatchSource source, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+        // Results still being computed, oldest first. Keeping a few per thread keeps all threads busy
+        // while the oldest result is waited for.
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        int window = parallelism * 4;
+
+        int index = 0;
+        BatchItem item;
+        while ((item = source.next()) != null) {
+            if (index >= maxBatchSize) {
+                drain(pending, writer);
+                writeLine(writer, errorLine(index, item.id, "Batch size limit of " + maxBatchSize + " emails exceeded"));
+                break;
+            }
+
+            int itemIndex = index++;
+            BatchItem current = item;
+            pending.add(executor.submit(() -> score(model, itemIndex, current)));
+
+            // Write the oldest result once the window is full
+            if (pending.size() >= window)
+                writeLine(writer, await(pending.poll()));
+        }
+
+        drain(pending, writer);
+        writer.flush();
+    }
+
+    /**
+     * Scores one email and turns the result into an NDJSON line. An email that cannot be scored gets an
+     * error line, and the rest of the batch is still scored.
+     */
+    private String score(SpamModel model, int index, BatchItem item) throws IOException {
+        if (item.error != null)
+            return errorLine(index, item.id, item.error);
+        if (item.email == null)
+            return errorLine(index, item.id, "Missing email");
+
+        // The email is not needed after scoring, so the cache may normalize it in place
+        double spamProbability;
+        try {
+            spamProbability = scoreCache.spamProbability(model, item.email, item.email.length);
+        } catch (RuntimeException e) {
+            return errorLine(index, item.id, "Scoring failed: " + e.getMessage());
+        }
+
+        Map<String, Object> line = new TreeMap<>();
+        line.put("index", index);
+        if (item.id != null)
+            line.put("id", item.id);
+        line.put("spamProbability", spamProbability);
+        line.put("spamProbRounded", String.format("%.5f", spamProbability));
+        line.put("verdict", SpamModel.verdictOf(spamProbability));
+
+        long start = System.nanoTime();
+        String json = objectMapper.writeValueAsString(line);
+        SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+        return json;
+    }
+
+    /**
+     * @return an NDJSON line reporting that an email could not be scored
+     */
+    private String errorLine(int index, String id, String message) throws IOException {
+        Map<String, Object> line = new TreeMap<>();
+        line.put("index", index);
+        if (id != null)
+            line.put("id", id);
+        line.put("error", message);
+
+        return objectMapper.writeValueAsString(line);
+    }
+
+    /**
+     * Writes all remaining results in order.
+     */
+    private void drain(Deque<Future<String>> pending, Writer writer) throws IOException {
+        while (!pending.isEmpty())
+            writeLine(writer, await(pending.poll()));
+    }
+
+    /**
+     * Waits for a result line.
+     */
+    private String await(Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring the batch", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Scoring an email of the batch failed", e.getCause());
+        }
+    }
+
+    private void writeLine(Writer writer, String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    /**
+     * Stops the scoring threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Supplies the emails of a batch one at a time.
+     */
+    private interface BatchSource {
+        /**
+         * @return the next email, or null when the batch has no more emails
+         */
+        BatchItem next() throws IOException;
+    }
+
+    /**
+     * One email of a batch.
+     */
+    private static class BatchItem {
+        final String id;
+        final byte[] email;
+        // Why the email cannot be scored, or null
+        final String error;
+
+        BatchItem(String id, byte[] email, String error) {
+            this.id = id;
+            this.email = email;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Picks the bigrams (see Bigrams) that are frequent enough in the training emails to be useful, and adds
+ * them to a model's vocabulary and word counts, so they are scored like words.
+ *
+ * Counting every bigram exactly would make the vocabulary tens of times larger, as most bigrams occur
+ * once. Instead, the training emails are read twice:
+ * 1. Every bigram is counted in a count-min sketch of fixed size. A bigram whose estimate reaches the
+ *    threshold becomes a candidate. The sketch never underestimates, so no frequent bigram is missed,
+ *    but a rare one that shares its counters with frequent ones can get in too.
+ * 2. The candidates, and only them, are counted exactly in each class. Candidates that turn out to be
+ *    below the threshold are dropped; the others are promoted into the vocabulary with their exact counts.
+ * The training memory for bigrams stays within spamdetector.bigrams.memoryBytes: half goes to the sketch,
+ * half to the candidates, which are capped at that half divided by BYTES_PER_CANDIDATE.
+ *
+ * Settings:
+ * spamdetector.model.bigrams        - train SpamDetector with bigrams (default false)
+ * spamdetector.bigrams.minCount     - occurrences in the training emails of both classes a bigram needs to
+ *                                     be promoted (default 5)
+ * spamdetector.bigrams.memoryBytes  - the training memory budget for bigrams (default 8 MiB)
+ * spamdetector.bigrams.sketchDepth  - rows of the count-min sketch (default 4)
+ */
+public class BigramTrainer {
+
+    // What a candidate takes, about: its letters, its vocabulary entry and hash slots, and two counts
+    static final int BYTES_PER_CANDIDATE = 64;
+
+    // Seed of the bigram hashes of the sketch, apart from that of HashedSpamModel
+    private static final int HASH_SEED = 0x2f3a9c1d;
+
+    private final int minCount;
+    private final long memoryBytes;
+    private final int sketchDepth;
+
+    // The results of train, for the reports
+    private long sketchBytes;
+    private int sketchWidth;
+    private int maxCandidates;
+    private int candidates;
+    private int promoted;
+    private long bigramsCounted;
+    private long trainingNanos;
+
+    /**
+     * @param minCount     Occurrences a bigram needs to be promoted.
+     * @param memoryBytes  The training memory budget for bigrams.
+     * @param sketchDepth  Rows of the count-min sketch.
+     */
+    public BigramTrainer(int minCount, long memoryBytes, int sketchDepth) {
+        if (minCount < 1)
+            throw new IllegalArgumentException("spamdetector.bigrams.minCount must be at least 1: " + minCount);
+        if (memoryBytes < 1024)
+            throw new IllegalArgumentException("spamdetector.bigrams.memoryBytes must be at least 1024: " + memoryBytes);
+        this.minCount = minCount;
+        this.memoryBytes = memoryBytes;
+        this.sketchDepth = sketchDepth;
+    }
+
+    /**
+     * @return a trainer with the settings of spamdetector.bigrams.*
+     */
+    public static BigramTrainer fromConfig() {
+        return new BigramTrainer(
+                SpamConfig.getInt("spamdetector.bigrams.minCount", 5),
+                SpamConfig.getLong("spamdetector.bigrams.memoryBytes", 8L << 20),
+                SpamConfig.getInt("spamdetector.bigrams.sketchDepth", 4));
+    }
+
+    /**
+     * Finds the frequent bigrams of the training emails and adds them, with their counts in each class,
+     * to the vocabulary and word counts of a model. The emails themselves are counted by the caller.
+     *
+     * @param hamSources   The ham training emails.
+     * @param spamSources  The spam training emails.
+     * @param hamCounts    The word counts of the ham emails; their vocabulary gets the promoted bigrams.
+     * @param spamCounts   The word counts of the spam emails, on the same vocabulary.
+     */
+    public void train(List<CorpusSource> hamSources, List<CorpusSource> spamSources,
+                      WordCounts hamCounts, WordCounts spamCounts) {
+        long start = System.nanoTime();
+        CountMinSketch sketch = new CountMinSketch(memoryBytes / 2, sketchDepth);
+        sketchBytes = sketch.memoryBytes();
+        sketchWidth = sketch.width();
+        maxCandidates = (int) Math.min(Integer.MAX_VALUE, (memoryBytes - sketchBytes) / BYTES_PER_CANDIDATE);
+
+        // 1. Count every bigram in the sketch, and note those that reach the threshold
+        Vocabulary found = new Vocabulary();
+        long[] counted = {0};
+        read(hamSources, spamSources, null, (word, length) -> {
+            counted[0]++;
+            if (sketch.add(Murmur3.hash64(word, 0, length, HASH_SEED)) >= minCount && found.size() < maxCandidates)
+                found.add(word, 0, length);
+        });
+        bigramsCounted = counted[0];
+        candidates = found.size();
+
+        // 2. Count the candidates exactly, in each class
+        WordCounts hamFound = new WordCounts(found);
+        WordCounts spamFound = new WordCounts(found);
+        read(hamSources, List.of(), hamFound::addEmail, (word, length) -> {
+            int id = found.idOf(word, 0, length);
+            if (id >= 0)
+                hamFound.increment(id);
+        });
+        read(List.of(), spamSources, spamFound::addEmail, (word, length) -> {
+            int id = found.idOf(word, 0, length);
+            if (id >= 0)
+                spamFound.increment(id);
+        });
+
+        // Promote the candidates the sketch did not overestimate into the model
+        Vocabulary vocabulary = hamCounts.getVocabulary();
+        byte[] bigram = new byte[128];
+        promoted = 0;
+        for (int id = 0; id < found.size(); id++) {
+            if (hamFound.get(id) + spamFound.get(id) < minCount)
+                continue;
+            int length = found.lengthOf(id);
+            if (length > bigram.length)
+                bigram = new byte[Math.max(length, bigram.length * 2)];
+            found.copyWord(id, bigram, 0);
+
+            int modelId = vocabulary.add(bigram, 0, length);
+            hamCounts.add(modelId, hamFound.get(id), hamFound.getDocuments(id));
+            spamCounts.add(modelId, spamFound.get(id), spamFound.getDocuments(id));
+            promoted++;
+        }
+        trainingNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Passes every bigram of every email of the sources to a sink, ham sources first.
+     * @param emailDone called after each email, or null
+     */
+    private static void read(List<CorpusSource> hamSources, List<CorpusSource> spamSources, Runnable emailDone,
+                             EmailTokenizer.TokenSink sink) {
+        EmailTokenizer tokenizer = new EmailTokenizer();
+        Bigrams bigrams = new Bigrams();
+        EmailTokenizer.TokenSink pairs = (word, length) -> {
+            int pairLength = bigrams.next(word, length);
+            if (pairLength > 0)
+                sink.token(bigrams.pair(), pairLength);
+        };
+
+        for (List<CorpusSource> sources : List.of(hamSources, spamSources)) {
+            for (CorpusSource source : sources) {
+                try {
+                    source.forEach(email -> {
+                        bigrams.reset();
+                        email.tokenize(tokenizer, pairs);
+                        if (emailDone != null)
+                            emailDone.run();
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read the emails of " + source.getLocation(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return occurrences a bigram needs to be promoted
+     */
+    public int minCount() { return minCount; }
+
+    /**
+     * @return the training memory budget for bigrams, in bytes
+     */
+    public long memoryBytes() { return memoryBytes; }
+
+    /**
+     * @return the memory of the count-min sketch, in bytes
+     */
+    public long sketchBytes() { return sketchBytes; }
+
+    /**
+     * @return the rows of the count-min sketch
+     */
+    public int sketchDepth() { return sketchDepth; }
+
+    /**
+     * @return the counters per row of the count-min sketch
+     */
+    public int sketchWidth() { return sketchWidth; }
+
+    /**
+     * @return the most candidates the memory budget allows
+     */
+    public int maxCandidates() { return maxCandidates; }
+
+    /**
+     * @return the bigrams the sketch let through to be counted exactly
+     */
+    public int candidates() { return candidates; }
+
+    /**
+     * @return the candidates promoted into the vocabulary
+     */
+    public int promoted() { return promoted; }
+
+    /**
+     * @return the bigrams of all training emails, counting repeats
+     */
+    public long bigramsCounted() { return bigramsCounted; }
+
+    /**
+     * @return how long finding and counting the bigrams took, in nanoseconds
+     */
+    public long trainingNanos() { return trainingNanos; }
+}
@@ -0,0 +1,74 @@
+package com.spamdetector.util;
+
+import java.util.Arrays;
+
+/**
+ * Joins the words of an email, as the tokenizer hands them over, into bigrams: every word with the word
+ * before it, such as "click here" or "act now". A bigram is the two words with a space between them, so it
+ * can be kept and looked up like any other word; words only have letters, so it never clashes with one.
+ *
+ * One Bigrams follows one email at a time and reuses its buffers. Not thread-safe.
+ */
+public final class Bigrams {
+
+    // Between the two words of a bigram
+    public static final byte SEPARATOR = ' ';
+
+    // The word before the current one, if the email had one yet
+    private byte[] previous = new byte[64];
+    private int previousLength = -1;
+
+    // The current bigram
+    private byte[] pair = new byte[129];
+
+    /**
+     * Moves on to the next word of the email.
+     *
+     * @param word    The letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The length of the bigram of the previous word and this one, now in pair(),
+     *                or -1 for the first word of the email.
+     */
+    public int next(byte[] word, int length) {
+        int pairLength = -1;
+        if (previousLength >= 0) {
+            pairLength = previousLength + 1 + length;
+            if (pairLength > pair.length)
+                pair = Arrays.copyOf(pair, Math.max(pair.length * 2, pairLength));
+            System.arraycopy(previous, 0, pair, 0, previousLength);
+            pair[previousLength] = SEPARATOR;
+            System.arraycopy(word, 0, pair, previousLength + 1, length);
+        }
+
+        if (length > previous.length)
+            previous = new byte[Math.max(previous.length * 2, length)];
+        System.arraycopy(word, 0, previous, 0, length);
+        previousLength = length;
+        return pairLength;
+    }
+
+    /**
+     * @return the bigram of the last call to next; valid until the next call
+     */
+    public byte[] pair() { return pair; }
+
+    /**
+     * Starts a new email: its first word has no word before it.
+     */
+    public void reset() {
+        previousLength = -1;
+    }
+
+    /**
+     * @param word    The letters of a word, or of a bigram.
+     * @param length  The number of bytes in the array.
+     * @return        True if it is a bigram.
+     */
+    public static boolean isBigram(byte[] word, int length) {
+        for (int i = 0; i < length; i++) {
+            if (word[i] == SEPARATOR)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,323 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores whole mail spools from the command line, with a model file and without the REST API:
+ * <pre>
+ *   java -cp spamDetector-1.0-standalone.jar com.spamdetector.util.BulkScorer [options] model-file spool...
+ * </pre>
+ * A spool is anything CorpusSource.open reads: a directory or Maildir, a .zip, .tar or .tar.gz archive,
+ * or an mbox file. One line per email is written, CSV (index, name, spamProbability, verdict, error)
+ * or NDJSON as the batch endpoint writes it, in the order the emails are read.
+ *
+ * Options:
+ * --format=csv|ndjson  the output format (default csv)
+ * --out=FILE           where to write the results (default standard output)
+ * --scorers=N          threads scoring emails (default: number of cores)
+ * --window=N           emails in the pipeline at most (default 64 per scorer)
+ *
+ * The emails go through three stages, joined by queues of at most window emails:
+ * 1. a reader thread goes through the spools in order. The emails of a directory are only listed here and
+ *    their files are read by the scorers, so they are read in parallel; an mbox file or an archive is one
+ *    stream, which the reader splits into emails.
+ * 2. the scorers tokenize and score the emails, and format their lines, in parallel
+ * 3. the writer (the calling thread) writes the lines in the order of the emails
+ * The reader waits while window emails are not written yet, so memory use stays the same however large
+ * the spools are. At the end the throughput, in emails/s and MB/s, and the percentiles of the time to
+ * score an email are printed to standard error.
+ *
+ * Limitation: mbox files and archives are read serially, one spool after the other, by the single reader.
+ * Reading a later spool ahead would mean holding its lines until the spools before it are written, so
+ * memory would no longer be bounded by the window. Only decompressing and splitting happens on the reader;
+ * tokenizing and scoring do not. That reader splits about 100 MB/s of a gzipped mbox, or 200 MB/s
+ * uncompressed, while one scorer scores about 20 MB/s. Past four to eight scorers, the reader is
+ * what limits them. To score faster, split a large mbox into several files or unpack it into a directory,
+ * whose files the scorers read themselves.
+ */
+public class BulkScorer {
+
+    static final String USAGE = "Usage: BulkScorer [--format=csv|ndjson] [--out=FILE] [--scorers=N] [--window=N]"
+            + " model-file spool...";
+
+    static final String CSV_HEADER = "index,name,spamProbability,verdict,error\n";
+
+    // Put on the queue by the reader after the last email
+    private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final SpamModel model;
+    private final boolean csv;
+    private final int scorers;
+    private final int window;
+
+    // The time to read (for emails in files), tokenize and score each email
+    private final PercentileHistogram latency = new PercentileHistogram();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long emails;
+    private long elapsedNanos;
+
+    /**
+     * @param model    The model to score with.
+     * @param csv      True for CSV lines, false for NDJSON.
+     * @param scorers  Threads scoring emails.
+     * @param window   Emails in the pipeline at most.
+     */
+    public BulkScorer(SpamModel model, boolean csv, int scorers, int window) {
+        if (scorers < 1)
+            throw new IllegalArgumentException("--scorers must be at least 1: " + scorers);
+        if (window < 1)
+            throw new IllegalArgumentException("--window must be at least 1: " + window);
+        this.model = model;
+        this.csv = csv;
+        this.scorers = scorers;
+        this.window = window;
+    }
+
+    public static void main(String[] args) {
+        String format = "csv";
+        String out = null;
+        int scorers = Runtime.getRuntime().availableProcessors();
+        int window = -1;
+        List<String> paths = new ArrayList<>();
+
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--format="))
+                    format = arg.substring("--format=".length());
+                else if (arg.startsWith("--out="))
+                    out = arg.substring("--out=".length());
+                else if (arg.startsWith("--scorers="))
+                    scorers = Integer.parseInt(arg.substring("--scorers=".length()));
+                else if (arg.startsWith("--window="))
+                    window = Integer.parseInt(arg.substring("--window=".length()));
+                else if (arg.startsWith("--"))
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                else
+                    paths.add(arg);
+            }
+            if (!format.equals("csv") && !format.equals("ndjson"))
+                throw new IllegalArgumentException("--format must be csv or ndjson: " + format);
+            if (paths.size() < 2)
+                throw new IllegalArgumentException("A model file and at least one spool are needed");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            SpamModel model = MappedSpamModel.load(Paths.get(paths.get(0)));
+
+            // A path that exists is a spool on disk; anything else may still be a bundled folder, e.g. test/spam
+            List<CorpusSource> spools = new ArrayList<>();
+            for (String spool : paths.subList(1, paths.size())) {
+                Path path = Paths.get(spool);
+                spools.add(CorpusSource.open(Files.exists(path) ? path.toAbsolutePath().toString() : spool));
+            }
+
+            BulkScorer scorer = new BulkScorer(model, format.equals("csv"), scorers,
+                    window > 0 ? window : 64 * scorers);
+            if (out == null) {
+                scorer.score(spools, System.out);
+            } else {
+                try (OutputStream file = Files.newOutputStream(Paths.get(out))) {
+                    scorer.score(spools, file);
+                }
+            }
+            System.err.println(scorer.report());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Scoring failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Scores every email of the spools and writes a line for each, in the order they are read.
+     * An email that cannot be read or scored gets a line with the error; spools that cannot be read
+     * stop the scoring.
+     *
+     * @param spools  The emails to score.
+     * @param out     Where the lines are written; flushed, not closed.
+     * @throws IOException if a spool cannot be read or the lines cannot be written
+     */
+    public void score(List<CorpusSource> spools, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        emails = 0;
+
+        // Lines being scored, in the order of the emails; also bounds the tasks waiting for a scorer
+        BlockingQueue<Future<String>> lines = new ArrayBlockingQueue<>(window);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(scorers, runnable -> {
+            Thread thread = new Thread(runnable, "spam-bulk-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread reader = new Thread(() -> read(spools, pool, lines), "spam-bulk-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+            if (csv)
+                writer.write(CSV_HEADER);
+
+            Future<String> line;
+            while ((line = lines.take()) != END) {
+                writer.write(await(line));
+                emails++;
+            }
+            writer.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring", e);
+        } finally {
+            // Stops the reader too if writing failed
+            reader.interrupt();
+            pool.shutdownNow();
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Hands every email of the spools to the scorers, and their lines to the writer, then ends the queue
+     * with END, or with the error that stopped the reading. The spools are read one after the other, and an
+     * mbox file or archive is read serially, on this one thread (see the class comment).
+     */
+    private void read(List<CorpusSource> spools, ExecutorService pool, BlockingQueue<Future<String>> lines) {
+        try {
+            long[] index = {0};
+            for (CorpusSource spool : spools) {
+                spool.forEach(message -> {
+                    long emailIndex = index[0]++;
+                    put(lines, pool.submit(() -> score(emailIndex, message)));
+                });
+            }
+            put(lines, END);
+        } catch (IOException | RuntimeException e) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            CompletableFuture<String> failure = new CompletableFuture<>();
+            failure.completeExceptionally(e);
+            put(lines, failure);
+        }
+    }
+
+    /**
+     * Waits for room on the queue.
+     */
+    private static void put(BlockingQueue<Future<String>> lines, Future<String> line) {
+        try {
+            lines.put(line);
+        } catch (InterruptedException e) {
+            // The writer has given up
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Scoring was stopped", e);
+        }
+    }
+
+    /**
+     * Scores one email and formats its line.
+     */
+    private String score(long index, CorpusSource.Message message) throws IOException {
+        long start = System.nanoTime();
+        long size;
+        double spamProbability;
+        try {
+            size = message.size();
+            spamProbability = message.spamProbability(model, ScoringMode.getDefault());
+        } catch (RuntimeException e) {
+            errors.increment();
+            return line(index, message.getName(), Double.NaN, String.valueOf(e.getMessage()));
+        }
+        latency.record(System.nanoTime() - start);
+        bytes.add(size);
+
+        return line(index, message.getName(), spamProbability, null);
+    }
+
+    /**
+     * @return the CSV or NDJSON line of an email, with its result or the error that stopped it being scored
+     */
+    private String line(long index, String name, double spamProbability, String error) throws IOException {
+        if (csv) {
+            return index + "," + csvField(name) + ","
+                    + (error == null ? spamProbability + "," + SpamModel.verdictOf(spamProbability) + ","
+                                     : ",," + csvField(error))
+                    + "\n";
+        }
+
+        Map<String, Object> line = new TreeMap<>();
+        line.put("index", index);
+        line.put("id", name);
+        if (error == null) {
+            line.put("spamProbability", spamProbability);
+            line.put("spamProbRounded", String.format("%.5f", spamProbability));
+            line.put("verdict", SpamModel.verdictOf(spamProbability));
+        } else {
+            line.put("error", error);
+        }
+        return objectMapper.writeValueAsString(line) + "\n";
+    }
+
+    /**
+     * @return the field, quoted if it has a comma, a quote or a line break
+     */
+    static String csvField(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0)
+            return field;
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Waits for the line of an email.
+     */
+    private static String await(Future<String> line) throws IOException, InterruptedException {
+        try {
+            return line.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Scoring failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return the throughput and scoring time percentiles of the last call to score
+     */
+    public String report() {
+        double seconds = elapsedNanos / 1e9;
+        double megabytes = bytes.sum() / 1e6;
+        return String.format("Scored %d emails (%.1f MB) in %.3f s with %d scorers: %.1f emails/s, %.2f MB/s, %d errors%n"
+                        + "Time to score an email: %s",
+                emails, megabytes, seconds, scorers, emails / seconds, megabytes / seconds, errors.sum(),
+                latency.summary());
+    }
+}
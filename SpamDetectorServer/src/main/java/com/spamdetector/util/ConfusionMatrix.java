@@ -0,0 +1,89 @@
+package com.spamdetector.util;
+
+/**
+ * Counts how the test emails were classified, with spam as the positive class:
+ * <pre>
+ *                  predicted spam    predicted ham
+ *   actual spam    true positive     false negative
+ *   actual ham     false positive    true negative
+ * </pre>
+ * All the usual quality measures are derived from these four counts.
+ */
+public class ConfusionMatrix {
+
+    private int truePositives;
+    private int falsePositives;
+    private int trueNegatives;
+    private int falseNegatives;
+
+    /**
+     * Counts one classified email.
+     * @param actualSpam true if the email really is spam
+     * @param predictedSpam true if the model classified it as spam
+     */
+    public void add(boolean actualSpam, boolean predictedSpam) {
+        if (actualSpam) {
+            if (predictedSpam) truePositives++;
+            else falseNegatives++;
+        } else {
+            if (predictedSpam) falsePositives++;
+            else trueNegatives++;
+        }
+    }
+
+    /** @return spam emails classified as spam */
+    public int getTruePositives() { return truePositives; }
+
+    /** @return ham emails classified as spam */
+    public int getFalsePositives() { return falsePositives; }
+
+    /** @return ham emails classified as ham */
+    public int getTrueNegatives() { return trueNegatives; }
+
+    /** @return spam emails classified as ham */
+    public int getFalseNegatives() { return falseNegatives; }
+
+    /** @return the number of emails counted */
+    public int total() { return truePositives + falsePositives + trueNegatives + falseNegatives; }
+
+    /**
+     * @return the share of all emails that were classified correctly
+     */
+    public double accuracy() {
+        return ratio(truePositives + trueNegatives, total());
+    }
+
+    /**
+     * @return the share of emails classified as spam that really are spam
+     */
+    public double precision() {
+        return ratio(truePositives, truePositives + falsePositives);
+    }
+
+    /**
+     * @return the share of spam emails that were classified as spam (true positive rate)
+     */
+    public double recall() {
+        return ratio(truePositives, truePositives + falseNegatives);
+    }
+
+    /**
+     * @return the harmonic mean of precision and recall
+     */
+    public double f1() {
+        double precision = precision();
+        double recall = recall();
+        return precision + recall == 0 ? 0.0 : 2 * precision * recall / (precision + recall);
+    }
+
+    /**
+     * @return the share of ham emails that were classified as spam
+     */
+    public double falsePositiveRate() {
+        return ratio(falsePositives, falsePositives + trueNegatives);
+    }
+
+    private static double ratio(int count, int total) {
+        return total == 0 ? 0.0 : (double) count / total;
+    }
+}
@@ -0,0 +1,508 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A corpus source whose emails are kept tokenized on disk, so an email is only read and tokenized again
+ * when it changes. Every email is stored as the sequence of its words' ids in the cache's own vocabulary,
+ * varint-encoded, in one cache file per source, which is memory-mapped when the source is read.
+ *
+ * The emails of a directory are each checked by their name, size and last modified time: unchanged emails
+ * are replayed from the cache, new and changed ones are tokenized, and removed ones are dropped. An mbox
+ * file or an archive is checked as a whole by its own size and last modified time, and is only read at
+ * all when it has changed. The cache file is rewritten, next to the old one and then moved into place,
+ * only when something changed; a cache that cannot be read or written is tokenized around, never fatal.
+ *
+ * Cached emails replay the words of the default tokenizer (spamdetector.tokenizer.mime); a cache written
+ * with the other setting is ignored and replaced.
+ *
+ * All numbers are little-endian. The cache file starts with a 64 byte header:
+ * <pre>
+ *   0  magic "SPAMTOK1"          8 bytes
+ *   8  format version           int
+ *  12  tokenizer flags          int (bit 0: tokenized with MIME parsing)
+ *  16  source file size         long (an mbox file or archive; -1 for a directory)
+ *  24  source last modified     long (milliseconds)
+ *  32  words W                  int
+ *  36  emails E                 int
+ *  40  index offset             long
+ *  48  tokens offset            long
+ *  56  reserved (zero)          8 bytes
+ * </pre>
+ * followed by these sections, one after the other:
+ * <pre>
+ *  words   W times: varint length, then the ASCII letters of the word; the word ids are 0 to W - 1
+ *  index   E times: varint name length, the UTF-8 name, long size, long last modified (-1 for the emails of
+ *          an mbox file or archive), varint number of words, varint number of bytes of its words
+ *  tokens  the words of every email, in index order: one varint word id per word
+ * </pre>
+ */
+class CorpusCache implements CorpusSource {
+
+    static final byte[] MAGIC = "SPAMTOK1".getBytes(StandardCharsets.US_ASCII);
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    // Tokenizer flag: the words were tokenized with spamdetector.tokenizer.mime on
+    static final int FLAG_MIME_PARSING = 1;
+
+    private final CorpusSource source;
+    private final Path file;
+
+    /**
+     * @param source the emails to cache
+     * @param directory where the cache file is kept
+     */
+    CorpusCache(CorpusSource source, Path directory) {
+        this.source = source;
+        this.file = directory.resolve(fileName(source.getLocation()));
+    }
+
+    /**
+     * @return the name of the cache file of a location: the location made safe for a file name, and its
+     *         hash so two locations never share a file
+     */
+    static String fileName(String location) {
+        String safe = location.replaceAll("[^A-Za-z0-9]+", "_");
+        if (safe.length() > 64)
+            safe = safe.substring(safe.length() - 64);
+        return safe + "-" + Integer.toHexString(location.hashCode()) + ".tokens";
+    }
+
+    @Override
+    public String getLocation() { return source.getLocation(); }
+
+    /**
+     * @return the cache file
+     */
+    Path getFile() { return file; }
+
+    @Override
+    public void forEach(Consumer<Message> handler) throws IOException {
+        Contents cached = Contents.read(file);
+
+        Path sourceFile = source instanceof MboxSource ? ((MboxSource) source).getFile()
+                : source instanceof ArchiveSource ? ((ArchiveSource) source).getFile() : null;
+        if (sourceFile != null) {
+            long size = Files.size(sourceFile);
+            long modified = Files.getLastModifiedTime(sourceFile).toMillis();
+            if (cached != null && cached.sourceSize == size && cached.sourceModified == modified) {
+                for (int email = 0; email < cached.emails; email++) {
+                    handler.accept(cached.message(email));
+                }
+                return;
+            }
+
+            // Changed (or never cached): every email is tokenized again, into a fresh vocabulary
+            Builder builder = new Builder(null, size, modified);
+            source.forEach(email -> handler.accept(builder.tokenize(email, -1, -1)));
+            builder.write(file);
+            return;
+        }
+
+        // A directory: every email file is checked on its own
+        Builder builder = new Builder(cached, -1, -1);
+        source.forEach(email -> {
+            if (email.getFile() == null) {
+                handler.accept(builder.tokenize(email, -1, -1));
+                return;
+            }
+            long size;
+            long modified;
+            try {
+                size = Files.size(email.getFile());
+                modified = Files.getLastModifiedTime(email.getFile()).toMillis();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read email file: " + email.getName(), e);
+            }
+
+            int index = cached == null ? -1 : cached.indexOf(email.getName());
+            if (index >= 0 && cached.sizes[index] == size && cached.modified[index] == modified)
+                handler.accept(builder.reuse(index));
+            else
+                handler.accept(builder.tokenize(email, size, modified));
+        });
+        if (builder.hasChanged())
+            builder.write(file);
+    }
+
+    /**
+     * A cache file, memory-mapped: its vocabulary and index are decoded, the words of the emails are read
+     * from the mapping as they are replayed. Only absolute reads are used, so emails can be replayed on
+     * several threads at once.
+     */
+    private static final class Contents {
+        final MappedByteBuffer data;
+        final long sourceSize;
+        final long sourceModified;
+        final byte[][] words;
+        final int emails;
+        final String[] names;
+        final long[] sizes;
+        final long[] modified;
+        final int[] wordCounts;
+        final int[] tokenStarts;
+        final int[] tokenLengths;
+        private Map<String, Integer> indexes;
+
+        private Contents(MappedByteBuffer data) {
+            this.data = data;
+            this.sourceSize = data.getLong(16);
+            this.sourceModified = data.getLong(24);
+            int wordCount = data.getInt(32);
+            this.emails = data.getInt(36);
+            int indexOffset = (int) data.getLong(40);
+            int tokensOffset = (int) data.getLong(48);
+
+            int[] position = {HEADER_SIZE};
+            this.words = new byte[wordCount][];
+            for (int id = 0; id < wordCount; id++) {
+                words[id] = bytes(data, position, readVarint(data, position));
+            }
+
+            position[0] = indexOffset;
+            this.names = new String[emails];
+            this.sizes = new long[emails];
+            this.modified = new long[emails];
+            this.wordCounts = new int[emails];
+            this.tokenStarts = new int[emails];
+            this.tokenLengths = new int[emails];
+            int tokenStart = tokensOffset;
+            for (int email = 0; email < emails; email++) {
+                names[email] = new String(bytes(data, position, readVarint(data, position)), StandardCharsets.UTF_8);
+                sizes[email] = data.getLong(position[0]);
+                modified[email] = data.getLong(position[0] + 8);
+                position[0] += 16;
+                wordCounts[email] = readVarint(data, position);
+                tokenLengths[email] = readVarint(data, position);
+                tokenStarts[email] = tokenStart;
+                tokenStart += tokenLengths[email];
+            }
+            if (tokenStart > data.capacity())
+                throw new IllegalStateException("Truncated corpus cache");
+        }
+
+        /**
+         * Maps a cache file.
+         * @return the cache, or null if there is none, or it cannot be used: unreadable, corrupt, of another
+         *         format version, or tokenized with the other tokenizer setting
+         */
+        static Contents read(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                    return null;
+
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < MAGIC.length; i++) {
+                    if (data.get(i) != MAGIC[i])
+                        return null;
+                }
+                if (data.getInt(8) != FORMAT_VERSION)
+                    return null;
+                boolean mimeParsing = (data.getInt(12) & FLAG_MIME_PARSING) != 0;
+                if (mimeParsing != EmailTokenizer.MIME_PARSING)
+                    return null;
+
+                return new Contents(data);
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring the corpus cache " + file + ": " + e);
+                return null;
+            }
+        }
+
+        /**
+         * @return the index of an email by its name, or -1 if it is not in the cache
+         */
+        int indexOf(String name) {
+            if (indexes == null) {
+                indexes = new HashMap<>(emails * 2);
+                for (int email = 0; email < emails; email++) {
+                    indexes.put(names[email], email);
+                }
+            }
+            return indexes.getOrDefault(name, -1);
+        }
+
+        /**
+         * @return an email of the cache, replayed from the mapping
+         */
+        Message message(int email) {
+            int start = tokenStarts[email];
+            int end = start + tokenLengths[email];
+            return Message.ofWords(names[email], sink -> {
+                int[] position = {start};
+                while (position[0] < end) {
+                    byte[] word = words[readVarint(data, position)];
+                    sink.token(word, word.length);
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects the emails of the source as they are handed out, and writes the new cache file.
+     * New words are added after those of the old cache, so the word ids of the emails reused from it stay valid.
+     */
+    private static final class Builder {
+        private final Contents cached;
+        private final long sourceSize;
+        private final long sourceModified;
+
+        private final Vocabulary vocabulary = new Vocabulary();
+        private byte[][] words;
+
+        // One entry per email, in the order the source listed them
+        private final List<Entry> entries = new ArrayList<>();
+        private int tokenized = 0;
+
+        private final EmailTokenizer tokenizer = new EmailTokenizer();
+        private int[] ids = new int[1024];
+
+        Builder(Contents cached, long sourceSize, long sourceModified) {
+            this.cached = cached;
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.words = cached == null ? new byte[1024][] : Arrays.copyOf(cached.words, Math.max(1024, cached.words.length * 2));
+            if (cached != null) {
+                for (byte[] word : cached.words) {
+                    vocabulary.add(word, 0, word.length);
+                }
+            }
+        }
+
+        /**
+         * Takes an email over from the old cache as it is.
+         */
+        Message reuse(int email) {
+            entries.add(new Entry(cached.names[email], cached.sizes[email], cached.modified[email],
+                    cached.wordCounts[email], null, email));
+            return cached.message(email);
+        }
+
+        /**
+         * Tokenizes an email into the new cache.
+         * @return the email, replayed from its words
+         */
+        Message tokenize(Message email, long size, long modified) {
+            int[] count = {0};
+            email.tokenize(tokenizer, (word, length) -> {
+                int id = vocabulary.add(word, 0, length);
+                if (id == words.length)
+                    words = Arrays.copyOf(words, id * 2);
+                if (words[id] == null)
+                    words[id] = Arrays.copyOf(word, length);
+                if (count[0] == ids.length)
+                    ids = Arrays.copyOf(ids, count[0] * 2);
+                ids[count[0]++] = id;
+            });
+
+            ByteBuffer encoded = ByteBuffer.allocate(5 * count[0]);
+            for (int i = 0; i < count[0]; i++) {
+                writeVarint(encoded, ids[i]);
+            }
+            byte[] tokens = Arrays.copyOf(encoded.array(), encoded.position());
+            entries.add(new Entry(email.getName(), size, modified, count[0], tokens, -1));
+            tokenized++;
+
+            // The words of the email are all in this array; later words may go to a new one
+            byte[][] emailWords = words;
+            return Message.ofWords(email.getName(), sink -> {
+                int[] position = {0};
+                ByteBuffer buffer = ByteBuffer.wrap(tokens);
+                while (position[0] < tokens.length) {
+                    byte[] word = emailWords[readVarint(buffer, position)];
+                    sink.token(word, word.length);
+                }
+            });
+        }
+
+        /**
+         * @return true if the new cache differs from the old one: emails were tokenized or removed
+         */
+        boolean hasChanged() {
+            return cached == null || tokenized > 0 || entries.size() != cached.emails;
+        }
+
+        /**
+         * Writes the cache file. A cache that cannot be written is reported and left out; the emails have
+         * been handed out already.
+         */
+        void write(Path file) {
+            try {
+                writeFile(file);
+                System.out.println("Corpus cache " + file.getFileName() + ": " + tokenized + " of " + entries.size()
+                        + " emails tokenized");
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Writing the corpus cache " + file + " failed: " + e);
+            }
+        }
+
+        private void writeFile(Path file) throws IOException {
+            int wordCount = vocabulary.size();
+            long wordsSize = 0;
+            for (int id = 0; id < wordCount; id++) {
+                wordsSize += 5 + words[id].length;
+            }
+            long indexSize = 0;
+            long tokensSize = 0;
+            byte[][] names = new byte[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                names[i] = entry.name.getBytes(StandardCharsets.UTF_8);
+                indexSize += 5 + names[i].length + 16 + 5 + 5;
+                tokensSize += entry.tokenLength(cached);
+            }
+            long maxSize = HEADER_SIZE + wordsSize + indexSize + tokensSize;
+            if (maxSize > Integer.MAX_VALUE)
+                throw new IOException("The corpus is too large for the cache file format: " + maxSize + " bytes");
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) maxSize).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(HEADER_SIZE);
+            for (int id = 0; id < wordCount; id++) {
+                writeVarint(buffer, words[id].length);
+                buffer.put(words[id]);
+            }
+
+            int indexOffset = buffer.position();
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                writeVarint(buffer, names[i].length);
+                buffer.put(names[i]);
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.modified);
+                writeVarint(buffer, entry.wordCount);
+                writeVarint(buffer, entry.tokenLength(cached));
+            }
+
+            int tokensOffset = buffer.position();
+            for (Entry entry : entries) {
+                if (entry.tokens != null) {
+                    buffer.put(entry.tokens);
+                } else {
+                    // Copied straight from the old mapping
+                    ByteBuffer old = cached.data.duplicate();
+                    old.limit(cached.tokenStarts[entry.cachedEmail] + cached.tokenLengths[entry.cachedEmail]);
+                    old.position(cached.tokenStarts[entry.cachedEmail]);
+                    buffer.put(old);
+                }
+            }
+
+            for (int i = 0; i < MAGIC.length; i++) {
+                buffer.put(i, MAGIC[i]);
+            }
+            buffer.putInt(8, FORMAT_VERSION);
+            buffer.putInt(12, EmailTokenizer.MIME_PARSING ? FLAG_MIME_PARSING : 0);
+            buffer.putLong(16, sourceSize);
+            buffer.putLong(24, sourceModified);
+            buffer.putInt(32, wordCount);
+            buffer.putInt(36, entries.size());
+            buffer.putLong(40, indexOffset);
+            buffer.putLong(48, tokensOffset);
+            buffer.flip();
+
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null)
+                Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+            try {
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * One email of the new cache: its words either newly tokenized, or those of an email of the old cache.
+     */
+    private static final class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final int wordCount;
+        final byte[] tokens;
+        final int cachedEmail;
+
+        Entry(String name, long size, long modified, int wordCount, byte[] tokens, int cachedEmail) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.wordCount = wordCount;
+            this.tokens = tokens;
+            this.cachedEmail = cachedEmail;
+        }
+
+        int tokenLength(Contents cached) {
+            return tokens != null ? tokens.length : cached.tokenLengths[cachedEmail];
+        }
+    }
+
+    /**
+     * Writes a non-negative int as a varint: 7 bits per byte, lowest first, the high bit set on all bytes
+     * but the last.
+     */
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a varint with absolute reads.
+     * @param position where the varint starts; moved past it
+     */
+    static int readVarint(ByteBuffer buffer, int[] position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+            if (shift == 28)
+                throw new IllegalStateException("Corrupt varint in the corpus cache");
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int[] position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position[0] + i);
+        }
+        position[0] += length;
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "cached " + source;
+    }
+}
@@ -0,0 +1,209 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * A collection of emails to train or test on, read one email at a time without extracting anything to disk.
+ *
+ * A location is opened by CorpusSource.open:
+ * - a relative location such as "train/spam" is a folder of the bundled data (see DataFolders), read from
+ *   the exploded WAR or from inside the WAR or JAR itself
+ * - a directory is walked recursively, one email per file; a directory with cur and new subdirectories
+ *   is read as a Maildir
+ * - a .zip, .tar, .tar.gz or .tgz file is read as a stream of entries, one email per file entry
+ *   (entries named *.mbox are split like an mbox file)
+ * - any other file is an mbox file, and may be gzipped (.gz)
+ *
+ * Settings (comma-separated lists of locations):
+ * spamdetector.corpus.trainHam  - ham training emails (default: train/ham,train/ham2)
+ * spamdetector.corpus.trainSpam - spam training emails (default: train/spam)
+ * spamdetector.corpus.testHam   - ham test emails (default: test/ham)
+ * spamdetector.corpus.testSpam  - spam test emails (default: test/spam)
+ * spamdetector.corpus.cacheDir  - keep the emails of these locations tokenized in this directory, so only
+ *                                 new and changed emails are tokenized again (see CorpusCache; default: none)
+ */
+public interface CorpusSource {
+
+    // Where the tokenized emails are cached; empty to tokenize every email every time
+    String CACHE_DIRECTORY = SpamConfig.getString("spamdetector.corpus.cacheDir", "").trim();
+
+    /**
+     * @return where the emails come from, as it was given
+     */
+    String getLocation();
+
+    /**
+     * Reads the emails one after the other and passes each to the handler, always in the same order.
+     * A handler that cannot process an email throws an unchecked exception, which ends the reading.
+     *
+     * @param handler receives every email
+     * @throws IOException if the emails cannot be read
+     */
+    void forEach(Consumer<Message> handler) throws IOException;
+
+    /**
+     * Opens a location; see the class comment for what is accepted.
+     *
+     * @param location a bundled data folder, a directory, an archive or an mbox file
+     * @return the emails at that location
+     */
+    static CorpusSource open(String location) {
+        Path path = Paths.get(location);
+        if (!path.isAbsolute())
+            return DirectorySource.of(location, DataFolders.getPath(location));
+
+        if (Files.isDirectory(path))
+            return DirectorySource.of(location, path);
+        if (!Files.isRegularFile(path))
+            throw new IllegalArgumentException("Corpus not found: " + location);
+
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+            return new ArchiveSource(location, path);
+        return new MboxSource(location, path);
+    }
+
+    /**
+     * Opens the locations of a setting.
+     *
+     * @param setting the setting listing the locations, e.g. "spamdetector.corpus.trainHam"
+     * @param defaultLocations the locations used when the setting is missing
+     * @return the emails of every location, in the order listed
+     */
+    static List<CorpusSource> fromConfig(String setting, String defaultLocations) {
+        List<CorpusSource> sources = new ArrayList<>();
+        for (String location : SpamConfig.getString(setting, defaultLocations).split(",")) {
+            if (location.trim().isEmpty())
+                continue;
+            CorpusSource source = open(location.trim());
+            sources.add(CACHE_DIRECTORY.isEmpty() ? source : new CorpusCache(source, Paths.get(CACHE_DIRECTORY)));
+        }
+        return sources;
+    }
+
+    /**
+     * One email of a corpus: a file, which is tokenized straight from disk, the bytes of an email read
+     * from inside an mbox file or an archive, or the words of an email tokenized before (see CorpusCache).
+     */
+    final class Message {
+        private final String name;
+        private final Path file;
+        private final byte[] bytes;
+        private final int length;
+        private final Consumer<EmailTokenizer.TokenSink> words;
+
+        private Message(String name, Path file, byte[] bytes, int length, Consumer<EmailTokenizer.TokenSink> words) {
+            this.name = name;
+            this.file = file;
+            this.bytes = bytes;
+            this.length = length;
+            this.words = words;
+        }
+
+        /**
+         * @param name the name the email is listed under
+         * @param file the email file
+         * @return the email
+         */
+        public static Message ofFile(String name, Path file) {
+            return new Message(name, file, null, 0, null);
+        }
+
+        /**
+         * @param name the name the email is listed under
+         * @param bytes the raw email; kept, not copied
+         * @param length the number of bytes of the email, starting at index 0
+         * @return the email
+         */
+        public static Message ofBytes(String name, byte[] bytes, int length) {
+            return new Message(name, null, bytes, length, null);
+        }
+
+        /**
+         * @param name the name the email is listed under
+         * @param words passes the words of the email, as the default tokenizer splits them, to a sink
+         * @return the email
+         */
+        static Message ofWords(String name, Consumer<EmailTokenizer.TokenSink> words) {
+            return new Message(name, null, null, 0, words);
+        }
+
+        /**
+         * @return the name of the email: its path in the directory or archive, or its number in an mbox file
+         */
+        public String getName() { return name; }
+
+        /**
+         * @return a copy of the raw email read from inside an mbox file or an archive, or null for an email file
+         *         or the words of an email tokenized before
+         */
+        byte[] copyBytes() {
+            return bytes == null ? null : Arrays.copyOf(bytes, length);
+        }
+
+        /**
+         * @return the email file, or null if the email was not read from a file of its own
+         */
+        Path getFile() { return file; }
+
+        /**
+         * @return the size of the raw email in bytes, or 0 if only its words were kept
+         */
+        long size() {
+            if (file == null)
+                return length;
+            try {
+                return Files.size(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read email file: " + name, e);
+            }
+        }
+
+        /**
+         * Splits the email into words.
+         *
+         * @param tokenizer the tokenizer to use
+         * @param sink receives the words
+         */
+        public void tokenize(EmailTokenizer tokenizer, EmailTokenizer.TokenSink sink) {
+            if (words != null) {
+                if (tokenizer.isMimeParsing() != EmailTokenizer.MIME_PARSING)
+                    throw new IllegalArgumentException("Email " + name + " was tokenized with spamdetector.tokenizer.mime="
+                            + EmailTokenizer.MIME_PARSING);
+                words.accept(sink);
+                return;
+            }
+            if (file == null) {
+                tokenizer.tokenize(bytes, 0, length, sink);
+                return;
+            }
+            try {
+                tokenizer.tokenize(file, sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read email file: " + name, e);
+            }
+        }
+
+        /**
+         * @param model the model to score with
+         * @param mode which words of the email count
+         * @return the probability that the email is spam
+         */
+        public double spamProbability(SpamModel model, ScoringMode mode) {
+            if (words != null)
+                return model.calculateSpamProbability(words, mode);
+            return file == null
+                    ? model.calculateSpamProbability(bytes, 0, length, mode)
+                    : model.calculateSpamProbability(file, mode);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.spamdetector.util;
+
+/**
+ * A count-min sketch: approximate counts of any number of distinct keys in a fixed amount of memory.
+ *
+ * The sketch is a table of depth rows of width int counters. A key is counted in one counter of every row,
+ * picked by its hash; its estimate is the smallest of those counters. Keys that share a counter add to each
+ * other's estimate, so an estimate is never below the true count, only above it. Adding uses the
+ * conservative update: a counter is only raised as far as the key's new estimate, which keeps the
+ * overestimates much smaller than adding 1 to every counter.
+ *
+ * Keys are given as 64-bit hashes (see Murmur3.hash64); the counter of each row is derived from the two
+ * halves of the hash. Not thread-safe.
+ */
+public class CountMinSketch {
+
+    // Bytes per counter
+    static final int COUNTER_BYTES = 4;
+
+    private final int depth;
+    private final int widthMask;
+
+    // Row r holds the counters r * width .. (r + 1) * width - 1
+    private final int[] counters;
+
+    /**
+     * Creates the widest sketch of the given depth that fits in the memory budget.
+     *
+     * @param memoryBytes  The memory the counters may take; rounded down so the width is a power of two.
+     * @param depth        The number of rows, from 1 to 16. More rows make overestimates rarer.
+     */
+    public CountMinSketch(long memoryBytes, int depth) {
+        if (depth < 1 || depth > 16)
+            throw new IllegalArgumentException("The depth must be from 1 to 16: " + depth);
+        // All rows share one array, so the width is also limited by the largest array
+        long width = Long.highestOneBit(Math.max(1, memoryBytes / COUNTER_BYTES / depth));
+        width = Math.min(width, Integer.highestOneBit(Integer.MAX_VALUE / depth));
+        this.depth = depth;
+        this.widthMask = (int) width - 1;
+        this.counters = new int[(int) width * depth];
+    }
+
+    /**
+     * Counts one occurrence of a key.
+     *
+     * @param hash  The 64-bit hash of the key.
+     * @return      The estimated count of the key, including this occurrence.
+     */
+    public int add(long hash) {
+        int estimate = estimate(hash);
+        if (estimate == Integer.MAX_VALUE)
+            return estimate; // saturated
+        estimate++;
+
+        for (int row = 0; row < depth; row++) {
+            int counter = counter(hash, row);
+            if (counters[counter] < estimate)
+                counters[counter] = estimate;
+        }
+        return estimate;
+    }
+
+    /**
+     * @param hash  The 64-bit hash of a key.
+     * @return      The estimated count of the key: at least its true count.
+     */
+    public int estimate(long hash) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[counter(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the index of the key's counter in a row: h1 + row * h2 (double hashing), masked to the width
+     */
+    private int counter(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int depth() { return depth; }
+
+    /**
+     * @return the number of counters in a row
+     */
+    public int width() { return widthMask + 1; }
+
+    /**
+     * @return the memory taken by the counters, in bytes
+     */
+    public long memoryBytes() { return (long) COUNTER_BYTES * counters.length; }
+}
@@ -0,0 +1,86 @@
+package com.spamdetector.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+/**
+ * Finds the bundled training and test folders under the "data" resource directory.
+ */
+public final class DataFolders {
+
+    private DataFolders() {
+    }
+
+    private static URL getResource(String loc) {
+        // Web application class loaders accept the leading slash, plain class loaders only without it
+        URL url = DataFolders.class.getClassLoader().getResource("/data/" + loc);
+        if (url == null)
+            url = DataFolders.class.getClassLoader().getResource("data/" + loc);
+        if (url == null)
+            throw new IllegalStateException("Data folder not found: " + loc);
+        return url;
+    }
+
+    /**
+     * Gets the File object pointing to the directory for given relative location.
+     * This only works while the data is on disk, i.e. the WAR is exploded; see getPath.
+     *
+     * @param loc  Relative path to the folder (e.g. "test/ham")
+     * @return     File object representing that folder
+     */
+    public static File getFileLocation(String loc) {
+        try {
+            return new File(getResource(loc).toURI());
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the Path of the directory for given relative location. If the data is packed inside the WAR or
+     * JAR, the Path points into it through a ZIP file system, so nothing is extracted.
+     *
+     * @param loc  Relative path to the folder (e.g. "test/ham")
+     * @return     Path of that folder
+     */
+    public static Path getPath(String loc) {
+        try {
+            URI uri = getResource(loc).toURI();
+            if (!"jar".equals(uri.getScheme()))
+                return Paths.get(uri);
+
+            // jar:file:/.../app.war!/WEB-INF/classes/data/test/ham; the file system stays open for later calls
+            try {
+                FileSystems.newFileSystem(uri, Collections.emptyMap());
+            } catch (FileSystemAlreadyExistsException e) {
+                // opened by an earlier call
+            }
+            return Paths.get(uri);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the data inside the application archive: " + loc, e);
+        }
+    }
+
+    /**
+     * Returns the number of files (emails) in a given folder.
+     *
+     * @param folderPath  Relative folder path (e.g. "test/ham")
+     * @return            Number of files in the folder
+     */
+    public static int totalFilesInFolder(String folderPath) {
+        File folder = getFileLocation(folderPath);
+        File[] emailFiles = folder.listFiles();
+        return emailFiles.length;
+    }
+}
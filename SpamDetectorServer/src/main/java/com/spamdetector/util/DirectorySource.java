@@ -0,0 +1,69 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A directory of emails, one email per file, walked recursively with Files.walk. The directory may be on
+ * disk or inside a ZIP file system, such as the bundled data inside a packed WAR.
+ *
+ * The files are tokenized straight from the directory, so they are never held in memory as a whole.
+ */
+class DirectorySource implements CorpusSource {
+
+    private final String location;
+    private final Path root;
+
+    DirectorySource(String location, Path root) {
+        this.location = location;
+        this.root = root;
+    }
+
+    /**
+     * @param location the location as it was given
+     * @param root the directory
+     * @return a Maildir if the directory has cur and new subdirectories, else a plain directory of emails
+     */
+    static DirectorySource of(String location, Path root) {
+        if (Files.isDirectory(root.resolve("cur")) && Files.isDirectory(root.resolve("new")))
+            return new MaildirSource(location, root);
+        return new DirectorySource(location, root);
+    }
+
+    @Override
+    public String getLocation() { return location; }
+
+    @Override
+    public void forEach(Consumer<Message> handler) throws IOException {
+        // The walk is lazy, so even a directory of millions of emails is never listed in memory at once
+        try (Stream<Path> files = Files.walk(root)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                Path file = iterator.next();
+                if (Files.isRegularFile(file) && accept(file))
+                    handler.accept(Message.ofFile(root.relativize(file).toString(), file));
+            }
+        } catch (UncheckedIOException e) {
+            // Files.walk reports unreadable directories this way
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param file a regular file in the directory
+     * @return true if the file is an email; every file is
+     */
+    boolean accept(Path file) {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "directory " + location;
+    }
+}
@@ -1,82 +1,300 @@
 package com.spamdetector.util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class EmailParser {
 
+    // Number of threads used to train on a folder; 1 trains serially on the calling thread
+    private static final int TRAINING_WORKERS = SpamConfig.getInt("spamdetector.train.workers",
+            Runtime.getRuntime().availableProcessors());
+
+    // When set, parallel training also trains serially, checks the counts match and reports the speedup
+    private static final boolean COMPARE_WITH_SERIAL = SpamConfig.getBoolean("spamdetector.train.compareSerial", false);
+
+    // Emails handed to a training worker at a time
+    private static final int TRAINING_BATCH = 64;
+
+    // Splits the email files into words; one per parser, since it reuses its buffers
+    private final EmailTokenizer tokenizer = new EmailTokenizer();
+
     /**
      * Reads all email files in the given directory and calculates the total word frequency across all emails.
      * @param emailDirectory the directory containing email files
-     * @return a map of words to their total frequency in all emails
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @return the total frequency of each word in all emails, indexed by word id
      */
-    public Map<String, Integer> getWordFrequency(File emailDirectory){
+    public WordCounts getWordFrequency(File emailDirectory, Vocabulary vocabulary){
+        return getWordFrequency(directory(emailDirectory), vocabulary);
+    }
 
-        // Final map to store the cumulative word frequencies from all emails
-        Map<String, Integer> wordFrequencyMap = new TreeMap<>();
+    /**
+     * Reads all emails of a corpus and calculates the total word frequency across all emails.
+     * @param source the emails
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @return the total frequency of each word in all emails, indexed by word id
+     */
+    public WordCounts getWordFrequency(CorpusSource source, Vocabulary vocabulary){
+        if (TRAINING_WORKERS <= 1)
+            return getWordFrequencySerial(source, vocabulary);
 
-        // Get all files in the directory
-        File[] emailFiles = emailDirectory.listFiles();
-        int emailsFilesCount = emailFiles.length;
+        if (!COMPARE_WITH_SERIAL)
+            return getWordFrequency(source, vocabulary, TRAINING_WORKERS);
 
-        for (File email: emailFiles){
-            // Generate word frequency map for the current email file
-            Map<String, Integer> emailFrequencyMap = calculateWordFrequency(email);
+        // Train both ways on separate vocabularies and report how they compare
+        long serialStart = System.nanoTime();
+        WordCounts serial = getWordFrequencySerial(source, new Vocabulary());
+        long serialTime = System.nanoTime() - serialStart;
 
-            // Merge the current email's word frequencies into the final map
-            Set<String> words = emailFrequencyMap.keySet();
-            Iterator<String> iterator = words.iterator();
+        long parallelStart = System.nanoTime();
+        WordCounts parallel = getWordFrequency(source, vocabulary, TRAINING_WORKERS);
+        long parallelTime = System.nanoTime() - parallelStart;
 
-            while (iterator.hasNext()){
-                String word = iterator.next();
-                int wordCount = emailFrequencyMap.get(word);
+        System.out.printf("Training on %s: serial %d ms, parallel %d ms with %d workers, speedup %.2fx, counts identical: %b%n",
+                source.getLocation(), serialTime / 1_000_000, parallelTime / 1_000_000, TRAINING_WORKERS,
+                (double) serialTime / parallelTime, serial.toSortedMap().equals(parallel.toSortedMap()));
 
-                if (!wordFrequencyMap.containsKey(word)){
-                    wordFrequencyMap.put(word, wordCount);
-                } else {
-                    int oldCount = wordFrequencyMap.get(word);
-                    wordFrequencyMap.put(word, oldCount + wordCount);
-                }
+        return parallel;
+    }
+
+    /**
+     * Reads all email files in the given directory one after the other on the calling thread,
+     * and calculates the total word frequency across all emails.
+     * @param emailDirectory the directory containing email files
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @return the total frequency of each word in all emails, indexed by word id
+     */
+    public WordCounts getWordFrequencySerial(File emailDirectory, Vocabulary vocabulary){
+        return getWordFrequencySerial(directory(emailDirectory), vocabulary);
+    }
+
+    /**
+     * Reads all emails of a corpus one after the other on the calling thread,
+     * and calculates the total word frequency across all emails.
+     * @param source the emails
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @return the total frequency of each word in all emails, indexed by word id
+     */
+    public WordCounts getWordFrequencySerial(CorpusSource source, Vocabulary vocabulary){
+
+        // Final table to store the cumulative word frequencies from all emails
+        WordCounts wordFrequencyMap = new WordCounts(vocabulary);
+
+        // Count the words of every email straight into the final table
+        read(source, email -> calculateWordFrequency(email, wordFrequencyMap));
+
+        return wordFrequencyMap;
+    }
+
+    /**
+     * Reads all email files in the given directory on a pool of worker threads and calculates the total word
+     * frequency across all emails.
+     * @param emailDirectory the directory containing email files
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @param workers the number of threads to train with
+     * @return the total frequency of each word in all emails, indexed by word id
+     */
+    public WordCounts getWordFrequency(File emailDirectory, Vocabulary vocabulary, int workers){
+        return getWordFrequency(directory(emailDirectory), vocabulary, workers);
+    }
+
+    /**
+     * Reads all emails of a corpus on a pool of worker threads and calculates the total word frequency
+     * across all emails. The calling thread reads the corpus and hands the emails to the workers in batches
+     * through a bounded queue, so a corpus read from a stream (an mbox file, an archive) is never in memory
+     * as a whole. Each worker counts into its own local vocabulary and table, and the tables are merged
+     * into the given vocabulary once at the end.
+     * The counts are identical to serial training; only the order in which new words get their ids differs.
+     * @param source the emails
+     * @param vocabulary the vocabulary giving each word its id; new words are added to it
+     * @param workers the number of threads to train with
+     * @return the total frequency of each word in all emails, indexed by word id
+     */
+    public WordCounts getWordFrequency(CorpusSource source, Vocabulary vocabulary, int workers){
+        // A few batches per worker can wait, so the workers never run dry while the reader stays ahead
+        BlockingQueue<List<CorpusSource.Message>> batches = new ArrayBlockingQueue<>(workers * 4);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        CountWorker[] countWorkers = new CountWorker[workers];
+        for (int i = 0; i < workers; i++) {
+            countWorkers[i] = new CountWorker(batches, failure);
+            Thread thread = new Thread(countWorkers[i], "spam-train-" + (i + 1));
+            thread.setDaemon(true);
+            countWorkers[i].thread = thread;
+            thread.start();
+        }
+
+        try {
+            Batcher batcher = new Batcher(batches, failure);
+            read(source, batcher);
+            batcher.flush();
+        } finally {
+            // One end marker per worker
+            for (int i = 0; i < workers; i++) {
+                put(batches, Collections.emptyList(), null);
             }
+        }
 
+        // Merge the workers' counts into the shared vocabulary
+        WordCounts wordFrequencyMap = new WordCounts(vocabulary);
+        for (CountWorker worker : countWorkers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while training", e);
+            }
+            wordFrequencyMap.addAllWords(worker.counts);
         }
 
+        Throwable failed = failure.get();
+        if (failed instanceof RuntimeException)
+            throw (RuntimeException) failed;
+        if (failed instanceof Error)
+            throw (Error) failed;
         return wordFrequencyMap;
     }
 
+    private static CorpusSource directory(File emailDirectory) {
+        return new DirectorySource(emailDirectory.getPath(), emailDirectory.toPath());
+    }
+
     /**
-     * Calculates the word frequency for a single email file.
-     * @param email the email file to analyze
-     * @return a map of words to their frequency in the email
+     * Passes every email of a corpus to a handler, turning read errors into unchecked exceptions.
      */
-    private Map<String, Integer> calculateWordFrequency(File email){
-        Map<String, Integer> emailWordFrequencyMap = new TreeMap<>();
+    private static void read(CorpusSource source, Consumer<CorpusSource.Message> handler) {
+        try {
+            source.forEach(handler);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the emails of " + source.getLocation(), e);
+        }
+    }
 
+    /**
+     * Hands a batch to the workers, waiting while the queue is full. Stops waiting if a worker failed,
+     * as the queue may then never drain; the failure is thrown once the workers are done.
+     */
+    private static void put(BlockingQueue<List<CorpusSource.Message>> batches, List<CorpusSource.Message> batch,
+                            AtomicReference<Throwable> failure) {
         try {
-            Scanner emailScanner = new Scanner(email);
+            while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (failure != null && failure.get() != null)
+                    throw new IllegalStateException("Training failed", failure.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        }
+    }
 
-            while (emailScanner.hasNext()){
-                String word = emailScanner.next().toLowerCase();
+    /**
+     * Collects the emails read into batches for the workers.
+     */
+    private static class Batcher implements Consumer<CorpusSource.Message> {
+        private final BlockingQueue<List<CorpusSource.Message>> batches;
+        private final AtomicReference<Throwable> failure;
+        private List<CorpusSource.Message> batch = new ArrayList<>(TRAINING_BATCH);
 
-                if(isWord(word)){
-                    // If the word is valid and not already counted, initialize its count
-                    if (!emailWordFrequencyMap.containsKey(word)){
-                        emailWordFrequencyMap.put(word, 1);
-                    }
-                    // If word is already counted, increment its frequency
-                    else {
-                        int count = emailWordFrequencyMap.get(word);
-                        emailWordFrequencyMap.put(word, count + 1);
+        Batcher(BlockingQueue<List<CorpusSource.Message>> batches, AtomicReference<Throwable> failure) {
+            this.batches = batches;
+            this.failure = failure;
+        }
+
+        @Override
+        public void accept(CorpusSource.Message email) {
+            batch.add(email);
+            if (batch.size() == TRAINING_BATCH)
+                flush();
+        }
+
+        /**
+         * Hands the emails collected so far to the workers.
+         */
+        void flush() {
+            if (batch.isEmpty())
+                return;
+            put(batches, batch, failure);
+            batch = new ArrayList<>(TRAINING_BATCH);
+        }
+    }
+
+    /**
+     * Counts the words of the batches it takes from the queue into its own vocabulary and table,
+     * until it takes an empty batch.
+     */
+    private static class CountWorker implements Runnable {
+        private final BlockingQueue<List<CorpusSource.Message>> batches;
+        private final AtomicReference<Throwable> failure;
+
+        // With a parser of its own, since parsers reuse their buffers
+        private final EmailParser parser = new EmailParser();
+        final WordCounts counts = new WordCounts(new Vocabulary());
+        Thread thread;
+
+        CountWorker(BlockingQueue<List<CorpusSource.Message>> batches, AtomicReference<Throwable> failure) {
+            this.batches = batches;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<CorpusSource.Message> batch;
+                while (!(batch = batches.take()).isEmpty()) {
+                    // After a failure, keep draining the queue so the reader is not blocked
+                    if (failure.get() != null)
+                        continue;
+                    for (CorpusSource.Message email : batch) {
+                        parser.calculateWordFrequency(email, counts);
                     }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+                drain();
+            }
+        }
+
+        /**
+         * Takes batches until the end marker, so the reader and the other workers can finish.
+         */
+        private void drain() {
+            try {
+                while (!batches.take().isEmpty()) {
+                    // dropped
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
         }
+    }
 
-        // Return the frequency map for the current email
-        return emailWordFrequencyMap;
+    /**
+     * Calculates the word frequency for a single email and adds it to the given table.
+     * @param email the email to analyze
+     * @param wordFrequencyMap the word frequencies the email's words are added to
+     */
+    private void calculateWordFrequency(CorpusSource.Message email, WordCounts wordFrequencyMap){
+        Vocabulary vocabulary = wordFrequencyMap.getVocabulary();
+        long start = System.nanoTime();
+
+        email.tokenize(tokenizer, (word, length) -> {
+            // Only valid, lowercase words reach this point; count this occurrence
+            wordFrequencyMap.increment(vocabulary.add(word, 0, length));
+        });
+        wordFrequencyMap.addEmail();
+
+        SpamMetrics.recordTrainingFile(System.nanoTime() - start);
     }
 
     /**
@@ -88,7 +306,12 @@ public class EmailParser {
         if(word == null || "".equals(word))
             return false;
 
-        String acceptablePattern = "^[a-z]*$";
-        return word.matches(acceptablePattern);
+        // Same as matching "^[a-z]*$", without compiling a regular expression for every word
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c < 'a' || c > 'z')
+                return false;
+        }
+        return true;
     }
 }
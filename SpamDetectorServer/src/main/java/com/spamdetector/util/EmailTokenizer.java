@@ -0,0 +1,519 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * Splits raw email bytes into words without creating a String per word.
+ *
+ * The words are the ones the original Scanner based parsing accepted: the email is read as UTF-8, tokens are
+ * separated by whitespace (as defined by Character.isWhitespace), and a token is a word when its lowercase
+ * form contains only the letters a to z. Each word is lowercased and validated in the same pass over the bytes,
+ * then handed to a TokenSink as a byte array that is reused for the next word.
+ *
+ * Bytes that are not valid UTF-8 count as a non-letter character, like the replacement character a
+ * decoder puts in their place. Email files are the exception. Scanner(File) stops reading a file at the
+ * first invalid UTF-8 sequence, and where exactly it stops depends on its internal buffers. To keep
+ * training and test results identical, files that are not valid UTF-8 are still read by Scanner itself.
+ *
+ * With spamdetector.tokenizer.mime=true the email is first run through a MimeParser: only the headers and
+ * the decoded text of the text parts are tokenized, HTML markup is dropped, and attachments are skipped.
+ * This changes the words of most emails, so a model must be trained and used with the same setting.
+ *
+ * A tokenizer keeps its buffers between calls, so it is not thread-safe; use one per thread.
+ */
+public class EmailTokenizer {
+
+    /**
+     * Receives the words of an email.
+     */
+    @FunctionalInterface
+    public interface TokenSink {
+        /**
+         * Called once for every word of the email.
+         * @param word the lowercase ASCII letters of the word; the array is reused, so copy it to keep it
+         * @param length the number of bytes of the word in the array
+         */
+        void token(byte[] word, int length);
+
+        /**
+         * Lets a sink stop the tokenizer once it needs no more words (see ScoringMode). It is checked
+         * between chunks of the email, so words may still arrive after it returned true.
+         * @return true to stop reading the email
+         */
+        default boolean isDone() {
+            return false;
+        }
+    }
+
+    // Files at least this large are memory-mapped instead of read into the heap buffer
+    private static final long MMAP_THRESHOLD = SpamConfig.getLong("spamdetector.tokenizer.mmapThreshold", 1 << 20);
+
+    // Whether tokenizers parse the MIME structure of emails by default
+    static final boolean MIME_PARSING = SpamConfig.getBoolean("spamdetector.tokenizer.mime", false);
+
+    // Size of the chunks read from streams and direct buffers
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // Emails in memory are tokenized in slices of this size, so a sink can stop the tokenizer in between
+    private static final int SLICE_SIZE = 8 * 1024;
+
+    // ASCII byte -> lowercase letter, or 0 if the byte is not a letter
+    private static final byte[] LOWERCASE = new byte[128];
+
+    // ASCII byte -> true if it separates tokens
+    private static final boolean[] WHITESPACE = new boolean[128];
+
+    // Byte -> the byte normalize() writes for it: a space for ASCII whitespace, lowercase for ASCII letters,
+    // and the byte itself otherwise
+    private static final byte[] NORMALIZED = new byte[256];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            LOWERCASE[c] = (byte) c;
+            LOWERCASE[c - 'a' + 'A'] = (byte) c;
+        }
+        for (int c = 0; c < 128; c++) {
+            WHITESPACE[c] = Character.isWhitespace(c);
+        }
+        for (int b = 0; b < 256; b++) {
+            NORMALIZED[b] = b < 128 && WHITESPACE[b] ? (byte) ' ' : b >= 'A' && b <= 'Z' ? LOWERCASE[b] : (byte) b;
+        }
+    }
+
+    // KELVIN SIGN is the only non-ASCII character that String.toLowerCase() turns into a letter a-z
+    private static final int KELVIN_SIGN = 0x212A;
+
+    // The word being read
+    private byte[] word = new byte[64];
+    private int wordLength;
+
+    // True while the token being read can still be a word
+    private boolean wordValid;
+
+    // True while inside a token (between two whitespace characters)
+    private boolean inToken;
+
+    // State of the multi-byte UTF-8 character being decoded
+    private int codePoint;
+    private int pendingBytes;
+    private int nextByteMin;
+    private int nextByteMax;
+
+    // Chunk buffer for streams and direct buffers
+    private byte[] chunk;
+
+    // Whole-file buffer for files below the memory-mapping threshold
+    private byte[] fileBuffer;
+
+    // Extracts the text of MIME emails before it is tokenized; null to tokenize the raw email
+    private final MimeParser mime;
+
+    // Receives the words of the email being tokenized, while the MIME parser hands over its text
+    private TokenSink mimeSink;
+
+    /**
+     * Creates a tokenizer that parses MIME emails if spamdetector.tokenizer.mime is set.
+     */
+    public EmailTokenizer() {
+        this(MIME_PARSING);
+    }
+
+    /**
+     * @param mimeParsing true to tokenize only the text of MIME emails, false to tokenize the raw email
+     */
+    public EmailTokenizer(boolean mimeParsing) {
+        this.mime = mimeParsing ? new MimeParser((bytes, offset, length) -> scan(bytes, offset, length, mimeSink)) : null;
+    }
+
+    /**
+     * @return true if this tokenizer parses MIME emails, false if it tokenizes the raw email
+     */
+    public boolean isMimeParsing() {
+        return mime != null;
+    }
+
+    /**
+     * Tokenizes an email file. Small files are read into a reusable heap buffer, large files on disk are
+     * memory-mapped. The file may also be inside an archive, through a ZIP file system.
+     * @param file the email file
+     * @param sink receives the words
+     * @throws IOException if the file cannot be read
+     */
+    public void tokenize(Path file, TokenSink sink) throws IOException {
+        ByteBuffer contents;
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= MMAP_THRESHOLD && channel instanceof FileChannel) {
+                contents = ((FileChannel) channel).map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                if (fileBuffer == null || fileBuffer.length < size)
+                    fileBuffer = new byte[Math.max((int) size, CHUNK_SIZE)];
+
+                contents = ByteBuffer.wrap(fileBuffer, 0, (int) size);
+                while (contents.hasRemaining() && channel.read(contents) != -1) {
+                    // keep reading until the whole file is in the buffer
+                }
+                contents.flip();
+            }
+        }
+
+        // The Scanner fallback only matters for compatibility with the original parsing of raw emails
+        if (mime != null || isValidUtf8(contents)) {
+            tokenize(contents, sink);
+        } else {
+            SpamMetrics.recordBytesRead(contents.remaining());
+            tokenizeWithScanner(file, sink);
+        }
+    }
+
+    /**
+     * Tokenizes a stream, reading it in chunks as it arrives.
+     * @param in the raw email
+     * @param sink receives the words
+     * @throws IOException if the stream cannot be read
+     */
+    public void tokenize(InputStream in, TokenSink sink) throws IOException {
+        reset();
+        byte[] buffer = chunk();
+        int read;
+        while (!sink.isDone() && (read = in.read(buffer, 0, buffer.length)) != -1) {
+            feed(buffer, 0, read, sink);
+        }
+        finish(sink);
+    }
+
+    /**
+     * Tokenizes the remaining bytes of a buffer, such as a memory-mapped file.
+     * @param buffer the raw email; its position is not changed
+     * @param sink receives the words
+     */
+    public void tokenize(ByteBuffer buffer, TokenSink sink) {
+        reset();
+        if (buffer.hasArray()) {
+            feedSlices(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), sink);
+        } else {
+            // Copy direct buffers in bulk chunks, which is much faster than reading them byte by byte
+            ByteBuffer source = buffer.duplicate();
+            byte[] bytes = chunk();
+            while (source.hasRemaining() && !sink.isDone()) {
+                int length = Math.min(bytes.length, source.remaining());
+                source.get(bytes, 0, length);
+                feed(bytes, 0, length, sink);
+            }
+        }
+        finish(sink);
+    }
+
+    /**
+     * Tokenizes a byte array.
+     * @param bytes the raw email
+     * @param offset where the email starts in the array
+     * @param length the number of bytes of the email
+     * @param sink receives the words
+     */
+    public void tokenize(byte[] bytes, int offset, int length, TokenSink sink) {
+        reset();
+        feedSlices(bytes, offset, length, sink);
+        finish(sink);
+    }
+
+    /**
+     * Rewrites an email in place into a normalized form that tokenizes into exactly the same words:
+     * uppercase ASCII letters are lowercased, and every run of ASCII whitespace (CR LF line ends included)
+     * becomes a single space. Emails that differ only in case, line ends or spacing normalize to the same
+     * bytes. Nothing else is touched, so multi-byte and invalid UTF-8 sequences keep their meaning.
+     * With MIME parsing on, the email is left as it is: case and line structure matter to base64
+     * and to multipart boundaries.
+     *
+     * @param bytes the raw email, overwritten with the normalized email
+     * @param offset where the email starts in the array
+     * @param length the number of bytes of the email
+     * @return the number of bytes of the normalized email, which starts at offset as well
+     */
+    static int normalize(byte[] bytes, int offset, int length) {
+        if (MIME_PARSING)
+            return length;
+
+        int end = offset + length;
+        int out = offset;
+        boolean inWhitespace = false;
+
+        for (int i = offset; i < end; i++) {
+            byte b = NORMALIZED[bytes[i] & 0xFF];
+            bytes[out] = b;
+
+            // Only the first space of a run is kept; written without a branch, as most bytes are kept
+            boolean whitespace = b == ' ';
+            out += whitespace & inWhitespace ? 0 : 1;
+            inWhitespace = whitespace;
+        }
+        return out - offset;
+    }
+
+    /**
+     * Processes bytes of the email in slices, until they are done or the sink needs no more words.
+     */
+    private void feedSlices(byte[] bytes, int offset, int length, TokenSink sink) {
+        int end = offset + length;
+        while (offset < end && !sink.isDone()) {
+            int slice = Math.min(SLICE_SIZE, end - offset);
+            feed(bytes, offset, slice, sink);
+            offset += slice;
+        }
+    }
+
+    /**
+     * Processes the next chunk of bytes of the email.
+     */
+    private void feed(byte[] bytes, int offset, int length, TokenSink sink) {
+        SpamMetrics.recordBytesRead(length);
+
+        if (mime == null) {
+            scan(bytes, offset, length, sink);
+        } else {
+            mimeSink = sink;
+            mime.feed(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Splits the next chunk of text into words.
+     */
+    private void scan(byte[] bytes, int offset, int length, TokenSink sink) {
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            int b = bytes[i];
+
+            if (pendingBytes == 0 && b >= 0) {
+                // ASCII, by far the most common case
+                ascii(b, sink);
+            } else {
+                decode(b & 0xFF, sink);
+            }
+        }
+    }
+
+    /**
+     * Handles an ASCII character.
+     */
+    private void ascii(int b, TokenSink sink) {
+        if (WHITESPACE[b]) {
+            endToken(sink);
+        } else {
+            inToken = true;
+            byte letter = LOWERCASE[b];
+            if (letter == 0)
+                wordValid = false;
+            else if (wordValid)
+                append(letter);
+        }
+    }
+
+    /**
+     * Decodes one byte of a multi-byte UTF-8 character, with the same rules as the JDK's UTF-8 decoder.
+     */
+    private void decode(int b, TokenSink sink) {
+        if (pendingBytes == 0) {
+            // Lead byte
+            if (b >= 0xC2 && b <= 0xDF) {
+                startCharacter(b & 0x1F, 1, 0x80, 0xBF);
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                // No overlong forms (E0 80..9F) and no surrogates (ED A0..BF)
+                startCharacter(b & 0x0F, 2, b == 0xE0 ? 0xA0 : 0x80, b == 0xED ? 0x9F : 0xBF);
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                // No overlong forms (F0 80..8F) and nothing above U+10FFFF (F4 90..BF)
+                startCharacter(b & 0x07, 3, b == 0xF0 ? 0x90 : 0x80, b == 0xF4 ? 0x8F : 0xBF);
+            } else {
+                malformed();
+            }
+            return;
+        }
+
+        // Continuation byte
+        if (b < nextByteMin || b > nextByteMax) {
+            // The sequence so far is invalid, and this byte starts whatever comes next
+            malformed();
+            if (b < 0x80)
+                ascii(b, sink);
+            else
+                decode(b, sink);
+            return;
+        }
+
+        codePoint = (codePoint << 6) | (b & 0x3F);
+        nextByteMin = 0x80;
+        nextByteMax = 0xBF;
+
+        if (--pendingBytes == 0) {
+            character(codePoint, sink);
+        }
+    }
+
+    private void startCharacter(int bits, int continuationBytes, int secondByteMin, int secondByteMax) {
+        codePoint = bits;
+        pendingBytes = continuationBytes;
+        nextByteMin = secondByteMin;
+        nextByteMax = secondByteMax;
+    }
+
+    /**
+     * Handles a decoded non-ASCII character.
+     */
+    private void character(int c, TokenSink sink) {
+        if (Character.isWhitespace(c)) {
+            endToken(sink);
+            return;
+        }
+
+        inToken = true;
+        if (c == KELVIN_SIGN) {
+            if (wordValid)
+                append((byte) 'k');
+        } else {
+            wordValid = false;
+        }
+    }
+
+    /**
+     * Invalid UTF-8 is a non-letter character, so the token it is part of is not a word.
+     */
+    private void malformed() {
+        pendingBytes = 0;
+        inToken = true;
+        wordValid = false;
+    }
+
+    private void append(byte letter) {
+        if (wordLength == word.length) {
+            byte[] larger = new byte[word.length * 2];
+            System.arraycopy(word, 0, larger, 0, wordLength);
+            word = larger;
+        }
+        word[wordLength++] = letter;
+    }
+
+    /**
+     * Hands the current token to the sink if it is a word, and starts a new token.
+     */
+    private void endToken(TokenSink sink) {
+        if (inToken && wordValid && wordLength > 0) {
+            sink.token(word, wordLength);
+        }
+        inToken = false;
+        wordValid = true;
+        wordLength = 0;
+    }
+
+    /**
+     * Ends the email. A multi-byte character cut off at the end is invalid as well.
+     */
+    private void finish(TokenSink sink) {
+        if (mime != null) {
+            mimeSink = sink;
+            mime.finish();
+            mimeSink = null;
+        }
+
+        if (pendingBytes > 0)
+            malformed();
+        endToken(sink);
+    }
+
+    private void reset() {
+        wordLength = 0;
+        wordValid = true;
+        inToken = false;
+        pendingBytes = 0;
+        if (mime != null)
+            mime.reset();
+    }
+
+    private byte[] chunk() {
+        if (chunk == null)
+            chunk = new byte[CHUNK_SIZE];
+        return chunk;
+    }
+
+    /**
+     * Reads an email file that is not valid UTF-8 exactly the way the original parsing did, with Scanner.
+     */
+    private void tokenizeWithScanner(Path file, TokenSink sink) throws IOException {
+        try (Scanner emailScanner = new Scanner(Files.newByteChannel(file, StandardOpenOption.READ), StandardCharsets.UTF_8)) {
+            while (!sink.isDone() && emailScanner.hasNext()) {
+                String token = emailScanner.next().toLowerCase(Locale.ROOT);
+
+                reset();
+                for (int i = 0; i < token.length() && wordValid; i++) {
+                    char c = token.charAt(i);
+                    if (c >= 'a' && c <= 'z')
+                        append((byte) c);
+                    else
+                        wordValid = false;
+                }
+                inToken = true;
+                endToken(sink);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the remaining bytes of a buffer are valid UTF-8.
+     * @param buffer the bytes to check; its position is not changed
+     * @return true if the bytes are valid UTF-8
+     */
+    static boolean isValidUtf8(ByteBuffer buffer) {
+        int end = buffer.limit();
+        int i = buffer.position();
+
+        while (i < end) {
+            int b = buffer.get(i) & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+
+            int continuationBytes;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuationBytes = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuationBytes = 2;
+                min = b == 0xE0 ? 0xA0 : 0x80;
+                max = b == 0xED ? 0x9F : 0xBF;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuationBytes = 3;
+                min = b == 0xF0 ? 0x90 : 0x80;
+                max = b == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                return false;
+            }
+
+            if (end - i <= continuationBytes)
+                return false;
+
+            for (int k = 1; k <= continuationBytes; k++) {
+                int next = buffer.get(i + k) & 0xFF;
+                if (next < min || next > max)
+                    return false;
+                min = 0x80;
+                max = 0xBF;
+            }
+            i += continuationBytes + 1;
+        }
+        return true;
+    }
+}
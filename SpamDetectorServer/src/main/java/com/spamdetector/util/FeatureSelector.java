@@ -0,0 +1,241 @@
+package com.spamdetector.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Picks the words of a trained model worth keeping, so the scoring table only holds words that carry signal
+ * (see SpamDetector.prune). The stages run in this order:
+ * 1. words found in fewer than minDocuments training emails (ham and spam together) are dropped: typos,
+ *    ids and other one-offs
+ * 2. stop words are dropped: common words such as "the" and "and", whose Pr(S|W) is close to 0.5
+ * 3. optionally, words seen in one class only are dropped; they score 0 anyway (see SpamDetector), so this
+ *    never changes a score, it only shrinks the table
+ * 4. of the rest, only the topK words that rank highest are kept, by the mutual information between the
+ *    word being in an email and the email being spam ("mi"), or by how far Pr(S|W) is from 0.5
+ *    ("distance"). Words that score 0 rank last either way, then ties go to the word seen first.
+ *
+ * Settings:
+ * spamdetector.prune.minDocuments   - emails a word must be in to be kept (default 1: all are)
+ * spamdetector.prune.stopWords      - "default" for the bundled list (stopwords.txt), or a file with one word
+ *                                     per line; empty for none (default)
+ * spamdetector.prune.dropUnscored   - drop the words seen in one class only (default false)
+ * spamdetector.prune.topK           - the number of words to keep at most; 0 keeps all (default)
+ * spamdetector.prune.rankBy         - "mi" or "distance" (default mi)
+ */
+public class FeatureSelector {
+
+    // The stop words bundled with the application
+    static final String DEFAULT_STOP_WORDS = "/stopwords.txt";
+
+    private final int minDocuments;
+    private final Set<String> stopWords;
+    private final boolean dropUnscored;
+    private final int topK;
+    private final String rankBy;
+
+    /**
+     * @param minDocuments  Emails a word must be in to be kept; 1 keeps all.
+     * @param stopWords     Words to drop.
+     * @param dropUnscored  True to drop the words seen in one class only.
+     * @param topK          The number of words to keep at most; 0 keeps all.
+     * @param rankBy        "mi" or "distance".
+     */
+    public FeatureSelector(int minDocuments, Set<String> stopWords, boolean dropUnscored, int topK, String rankBy) {
+        if (!"mi".equals(rankBy) && !"distance".equals(rankBy))
+            throw new IllegalArgumentException("spamdetector.prune.rankBy must be mi or distance: " + rankBy);
+        if (topK < 0)
+            throw new IllegalArgumentException("spamdetector.prune.topK must not be negative: " + topK);
+        this.minDocuments = minDocuments;
+        this.stopWords = Set.copyOf(stopWords);
+        this.dropUnscored = dropUnscored;
+        this.topK = topK;
+        this.rankBy = rankBy;
+    }
+
+    /**
+     * @return a selector with the settings of spamdetector.prune.*
+     */
+    public static FeatureSelector fromConfig() {
+        return new FeatureSelector(
+                SpamConfig.getInt("spamdetector.prune.minDocuments", 1),
+                stopWords(SpamConfig.getString("spamdetector.prune.stopWords", "").trim()),
+                SpamConfig.getBoolean("spamdetector.prune.dropUnscored", false),
+                SpamConfig.getInt("spamdetector.prune.topK", 0),
+                SpamConfig.getString("spamdetector.prune.rankBy", "mi").trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return a selector like this one that keeps at most topK words
+     */
+    public FeatureSelector withTopK(int topK) {
+        return new FeatureSelector(minDocuments, stopWords, dropUnscored, topK, rankBy);
+    }
+
+    /**
+     * @return a selector like this one that ranks the words by "mi" or "distance"
+     */
+    public FeatureSelector rankedBy(String rankBy) {
+        return new FeatureSelector(minDocuments, stopWords, dropUnscored, topK, rankBy);
+    }
+
+    /**
+     * Reads a stop word list: one word per line; blank lines and lines starting with # are skipped.
+     *
+     * @param location  "default" for the bundled list, a file, or empty for none.
+     * @return          The stop words, lowercase.
+     */
+    static Set<String> stopWords(String location) {
+        Set<String> words = new HashSet<>();
+        if (location.isEmpty())
+            return words;
+
+        try (InputStream in = "default".equals(location)
+                ? FeatureSelector.class.getResourceAsStream(DEFAULT_STOP_WORDS)
+                : Files.newInputStream(Paths.get(location))) {
+            if (in == null)
+                throw new IllegalStateException("The bundled stop words are missing: " + DEFAULT_STOP_WORDS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    words.add(line.toLowerCase(Locale.ROOT));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the stop words: " + location, e);
+        }
+        return words;
+    }
+
+    /**
+     * @return true if the selector drops any words at all
+     */
+    public boolean isActive() {
+        return minDocuments > 1 || !stopWords.isEmpty() || dropUnscored || topK > 0;
+    }
+
+    /**
+     * Picks the words of a trained model to keep.
+     *
+     * @param detector  The trained model.
+     * @return          What was kept and dropped; the ids of the words kept are in ascending order.
+     */
+    public Selection select(SpamDetector detector) {
+        Vocabulary vocabulary = detector.vocabulary;
+        int size = vocabulary.size();
+        Selection selection = new Selection(size);
+
+        // 1 to 3: the words that pass the filters
+        int[] passed = new int[size];
+        int passedCount = 0;
+        for (int id = 0; id < size; id++) {
+            int documents = detector.trainHamFreq.getDocuments(id) + detector.trainSpamFreq.getDocuments(id);
+            if (documents < minDocuments)
+                selection.rare++;
+            else if (!stopWords.isEmpty() && stopWords.contains(vocabulary.word(id)))
+                selection.stopWords++;
+            else if (dropUnscored && detector.logOddsTable[id] == 0)
+                selection.unscored++;
+            else
+                passed[passedCount++] = id;
+        }
+
+        // 4: the topK of them that rank highest
+        if (topK == 0 || passedCount <= topK) {
+            selection.kept = Arrays.copyOf(passed, passedCount);
+            return selection;
+        }
+
+        double[] scores = new double[size];
+        Integer[] ranked = new Integer[passedCount];
+        for (int i = 0; i < passedCount; i++) {
+            int id = passed[i];
+            ranked[i] = id;
+            // Words that score 0 rank below all others
+            scores[id] = detector.logOddsTable[id] == 0 ? -1
+                    : "mi".equals(rankBy) ? mutualInformation(detector, id)
+                    : Math.abs(detector.probFileIsSpam[id] - 0.5);
+        }
+        Arrays.sort(ranked, (a, b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a]) : Integer.compare(a, b));
+
+        int[] kept = new int[topK];
+        for (int i = 0; i < topK; i++) {
+            kept[i] = ranked[i];
+        }
+        Arrays.sort(kept);
+        selection.ranked = passedCount - topK;
+        selection.kept = kept;
+        return selection;
+    }
+
+    /**
+     * Calculates the mutual information, in nats, between a word being in a training email and the email
+     * being spam, from the document frequencies of the word in each class.
+     */
+    static double mutualInformation(SpamDetector detector, int id) {
+        double ham = detector.totalHamCount;
+        double spam = detector.trainSpamCount;
+        double hamWith = Math.min(detector.trainHamFreq.getDocuments(id), ham);
+        double spamWith = Math.min(detector.trainSpamFreq.getDocuments(id), spam);
+
+        double all = ham + spam;
+        double with = hamWith + spamWith;
+        return term(spamWith, with, spam, all) + term(hamWith, with, ham, all)
+                + term(spam - spamWith, all - with, spam, all) + term(ham - hamWith, all - with, ham, all);
+    }
+
+    /**
+     * @return p(x, c) ln(p(x, c) / (p(x) p(c))) from the counts of emails, 0 when none have both
+     */
+    private static double term(double both, double withX, double withC, double all) {
+        return both == 0 ? 0 : both / all * Math.log(both * all / (withX * withC));
+    }
+
+    /**
+     * @return the number of words to keep at most; 0 keeps all
+     */
+    public int topK() { return topK; }
+
+    /**
+     * @return "mi" or "distance"
+     */
+    public String rankBy() { return rankBy; }
+
+    @Override
+    public String toString() {
+        return "minDocuments=" + minDocuments + " stopWords=" + stopWords.size() + " dropUnscored=" + dropUnscored
+                + " topK=" + topK + " rankBy=" + rankBy;
+    }
+
+    /**
+     * The words kept by a selection, and how many each stage dropped.
+     */
+    public static final class Selection {
+        final int words;
+        int rare;
+        int stopWords;
+        int unscored;
+        int ranked;
+        int[] kept;
+
+        Selection(int words) {
+            this.words = words;
+        }
+
+        /**
+         * @return the number of words kept
+         */
+        public int kept() { return kept.length; }
+    }
+}
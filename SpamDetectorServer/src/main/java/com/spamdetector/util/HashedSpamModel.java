@@ -0,0 +1,391 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spamdetector.domain.FeedbackResult;
+import jakarta.ws.rs.core.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A spam model with a fixed memory footprint (the hashing trick): words are never stored. Every word is
+ * hashed into one of 2^bits buckets, and the model keeps the ham and spam counts of each bucket, so its
+ * size depends only on the number of buckets, however large the training corpus or its vocabulary gets.
+ *
+ * A bucket is scored like a word of SpamDetector, from the counts of all the words that hash into it:
+ * its log odds are ln(h/s) + ln(S/H) (see OnlineSpamModel). Buckets seen in only one class count as 0,
+ * and empty buckets are unknown words. Words that share a bucket share their evidence, which costs some
+ * accuracy when there are few buckets; GET /api/spam/hashing measures how much at a range of sizes.
+ *
+ * The bucket of a word is the low bits of its Murmur3 hash, so a model can be folded into a smaller one
+ * by adding up the buckets that share their low bits, without reading the corpus again.
+ * The model learns from feedback in place, like OnlineSpamModel: learning never grows it.
+ *
+ * Settings:
+ * spamdetector.model.hashBits - trains this model with 2^hashBits buckets instead of SpamDetector
+ *                               (default: 0, the exact vocabulary model)
+ */
+public class HashedSpamModel extends SpamModel implements LearningModel {
+
+    // Jackson library object to serialize results to JSON
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // The smallest and largest number of bucket bits; 2^26 buckets take 1 GB
+    public static final int MIN_BITS = 4;
+    public static final int MAX_BITS = 26;
+
+    // Bytes of memory per bucket: the ham and spam counts and the log ratio
+    static final int BUCKET_BYTES = 4 + 4 + 8;
+
+    private static final int HASH_SEED = 0x5bd1e995;
+
+    private final StampedLock lock = new StampedLock();
+
+    private final int bits;
+    private final int mask;
+
+    // Occurrences of the words of each bucket in the ham and spam emails
+    private final int[] hamCounts;
+    private final int[] spamCounts;
+
+    // ln(h/s) of every bucket: +-Infinity for buckets seen in only one class, NaN for empty buckets
+    private final double[] bucketLogRatios;
+
+    // Number of ham and spam emails learned from, and ln(S/H)
+    private int hamEmails;
+    private int spamEmails;
+    private double classLogRatio;
+
+    // Counts the emails learned since the model was trained
+    private volatile long version;
+
+    /**
+     * Creates an empty model.
+     *
+     * @param bits  The number of bucket bits: the model has 2^bits buckets.
+     */
+    HashedSpamModel(int bits) {
+        if (bits < MIN_BITS || bits > MAX_BITS)
+            throw new IllegalArgumentException("Hash bits must be between " + MIN_BITS + " and " + MAX_BITS + ": " + bits);
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.hamCounts = new int[1 << bits];
+        this.spamCounts = new int[1 << bits];
+        this.bucketLogRatios = new double[1 << bits];
+    }
+
+    /**
+     * Trains a model on the training emails (spamdetector.corpus.trainHam and trainSpam, see CorpusSource),
+     * counting every word straight into its bucket.
+     *
+     * @param bits  The number of bucket bits.
+     * @return      The trained model.
+     */
+    public static HashedSpamModel train(int bits) {
+        return train(bits, CorpusSource.fromConfig("spamdetector.corpus.trainHam", "train/ham,train/ham2"),
+                CorpusSource.fromConfig("spamdetector.corpus.trainSpam", "train/spam"));
+    }
+
+    /**
+     * Trains a model, counting every word straight into its bucket.
+     *
+     * @param bits         The number of bucket bits.
+     * @param hamSources   The ham training emails.
+     * @param spamSources  The spam training emails.
+     * @return             The trained model.
+     */
+    public static HashedSpamModel train(int bits, List<CorpusSource> hamSources, List<CorpusSource> spamSources) {
+        long start = System.nanoTime();
+        HashedSpamModel model = new HashedSpamModel(bits);
+        int hamEmails = model.count(hamSources, model.hamCounts);
+        int spamEmails = model.count(spamSources, model.spamCounts);
+        model.finish(hamEmails, spamEmails);
+        SpamMetrics.recordTraining(System.nanoTime() - start);
+        return model;
+    }
+
+    /**
+     * Builds a hashed model from the word counts of another model, as if it had been trained on the same
+     * emails. A hashed model can only be folded into one with as many buckets or fewer.
+     *
+     * @param model  A SpamDetector, MappedSpamModel, OnlineSpamModel or HashedSpamModel.
+     * @param bits   The number of bucket bits.
+     * @return       The hashed model.
+     */
+    public static HashedSpamModel of(SpamModel model, int bits) {
+        if (model instanceof HashedSpamModel)
+            return ((HashedSpamModel) model).fold(bits);
+        if (model instanceof OnlineSpamModel)
+            return ((OnlineSpamModel) model).hashed(bits);
+
+        HashedSpamModel hashed = new HashedSpamModel(bits);
+        byte[] word = new byte[64];
+        if (model instanceof SpamDetector) {
+            SpamDetector detector = (SpamDetector) model;
+            for (int id = 0; id < detector.vocabulary.size(); id++) {
+                int length = detector.vocabulary.lengthOf(id);
+                if (length > word.length)
+                    word = new byte[Math.max(length, word.length * 2)];
+                detector.vocabulary.copyWord(id, word, 0);
+                hashed.addWord(word, length, detector.trainHamFreq.get(id), detector.trainSpamFreq.get(id));
+            }
+            hashed.finish(detector.totalHamCount, detector.trainSpamCount);
+        } else if (model instanceof MappedSpamModel) {
+            MappedSpamModel mapped = (MappedSpamModel) model;
+            for (int id = 0; id < mapped.vocabularySize(); id++) {
+                int length = mapped.lengthOf(id);
+                if (length > word.length)
+                    word = new byte[Math.max(length, word.length * 2)];
+                mapped.copyWord(id, word, 0);
+                hashed.addWord(word, length, mapped.hamCount(id), mapped.spamCount(id));
+            }
+            hashed.finish(mapped.hamDocuments(), mapped.spamDocuments());
+        } else {
+            throw new IllegalArgumentException("Cannot hash a " + model.getClass().getSimpleName());
+        }
+        return hashed;
+    }
+
+    /**
+     * Folds the model into a smaller one: a bucket of the smaller model holds the buckets of this one that
+     * share its low bits, which are exactly the words that hash into it.
+     *
+     * @param smallerBits  The number of bucket bits of the smaller model, at most those of this one.
+     * @return             The smaller model.
+     */
+    public HashedSpamModel fold(int smallerBits) {
+        if (smallerBits > bits)
+            throw new IllegalArgumentException("Cannot fold " + bits + " hash bits into " + smallerBits);
+
+        HashedSpamModel folded = new HashedSpamModel(smallerBits);
+        long stamp = lock.readLock();
+        try {
+            for (int bucket = 0; bucket < hamCounts.length; bucket++) {
+                folded.hamCounts[bucket & folded.mask] += hamCounts[bucket];
+                folded.spamCounts[bucket & folded.mask] += spamCounts[bucket];
+            }
+            folded.finish(hamEmails, spamEmails);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return folded;
+    }
+
+    /**
+     * Counts the words of every email of the sources into the counts of one class.
+     * @return the number of emails counted
+     */
+    private int count(List<CorpusSource> sources, int[] counts) {
+        int[] emails = {0};
+        EmailTokenizer.TokenSink sink = (word, length) -> counts[bucketOf(word, length)]++;
+
+        for (CorpusSource source : sources) {
+            long start = System.nanoTime();
+            try {
+                source.forEach(email -> {
+                    long emailStart = System.nanoTime();
+                    email.tokenize(tokenizer(), sink);
+                    emails[0]++;
+                    SpamMetrics.recordTrainingFile(System.nanoTime() - emailStart);
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the emails of " + source.getLocation(), e);
+            }
+            SpamMetrics.recordTrainingFolder(source.getLocation(), System.nanoTime() - start);
+        }
+        return emails[0];
+    }
+
+    /**
+     * Adds the counts of a word to its bucket, while the model is being built. Bigrams are left out, as a
+     * hashed model scores single words only.
+     */
+    void addWord(byte[] word, int length, int hamCount, int spamCount) {
+        if (Bigrams.isBigram(word, length))
+            return;
+        int bucket = bucketOf(word, length);
+        hamCounts[bucket] += hamCount;
+        spamCounts[bucket] += spamCount;
+    }
+
+    /**
+     * @return the bucket of a word: the low bits of its hash
+     */
+    private int bucketOf(byte[] word, int length) {
+        return (int) Murmur3.hash64(word, 0, length, HASH_SEED) & mask;
+    }
+
+    /**
+     * Looks up the log odds of the bucket of a word. Buckets seen in only one class count as 0.
+     *
+     * @param word    The lowercase ASCII letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The log odds of the bucket, 0, or UNKNOWN_WORD for a bucket no word has been counted in.
+     */
+    @Override
+    public double wordLogOdds(byte[] word, int length) {
+        int bucket = bucketOf(word, length);
+
+        // The tables never grow, so an optimistic read can only see stale numbers, which validate catches
+        long stamp = lock.tryOptimisticRead();
+        double bucketLogRatio = bucketLogRatios[bucket];
+        double classTerm = classLogRatio;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                bucketLogRatio = bucketLogRatios[bucket];
+                classTerm = classLogRatio;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // NaN (an empty bucket) stays NaN, which is UNKNOWN_WORD
+        return Double.isInfinite(bucketLogRatio) ? 0.0 : bucketLogRatio + classTerm;
+    }
+
+    /**
+     * Learns from one labelled email: adds its words to the counts of their buckets and counts the email.
+     * The email is tokenized before the lock is taken, so scoring is only held up while the buckets of its
+     * words are updated.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         The number of words counted in the email.
+     */
+    @Override
+    public int learn(InputStream message, boolean spam) {
+        // The bucket of every word of the email, in order
+        int[][] buckets = {new int[256]};
+        int[] words = {0};
+
+        try {
+            tokenizer().tokenize(message, (word, length) -> {
+                if (words[0] == buckets[0].length)
+                    buckets[0] = Arrays.copyOf(buckets[0], words[0] * 2);
+                buckets[0][words[0]++] = bucketOf(word, length);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Email could not be read", e);
+        }
+
+        int[] counts = spam ? spamCounts : hamCounts;
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < words[0]; i++) {
+                int bucket = buckets[0][i];
+                counts[bucket]++;
+                updateBucket(bucket);
+            }
+
+            if (spam)
+                spamEmails++;
+            else
+                hamEmails++;
+            classLogRatio = Math.log((double) spamEmails / hamEmails);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        return words[0];
+    }
+
+    /**
+     * @return the number of emails learned since the model was trained
+     */
+    @Override
+    public long version() { return version; }
+
+    /**
+     * Learns from one labelled email and returns the updated email counts as a JSON response.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         A Response object containing the label, the words learned and the email counts as JSON.
+     */
+    @Override
+    public Response resultForFeedback(InputStream message, boolean spam) {
+        int words = learn(message, spam);
+
+        long stamp = lock.readLock();
+        FeedbackResult feedback;
+        try {
+            feedback = new FeedbackResult(spam ? "spam" : "ham", words, hamEmails, spamEmails);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        try {
+            long start = System.nanoTime();
+            String json = objectMapper.writeValueAsString(feedback);
+            SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+
+            return Response.status(200)
+                    .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                    .header("Content-Type", "application/json")
+                    .entity(json)
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Error processing the result into JSON.", e);
+        }
+    }
+
+    /**
+     * @return the number of bucket bits: the model has 2^bits buckets
+     */
+    public int bits() { return bits; }
+
+    /**
+     * @return the number of buckets
+     */
+    public int buckets() { return hamCounts.length; }
+
+    /**
+     * @return the number of buckets at least one word has been counted in
+     */
+    public int usedBuckets() {
+        long stamp = lock.readLock();
+        try {
+            int used = 0;
+            for (int bucket = 0; bucket < hamCounts.length; bucket++) {
+                if (hamCounts[bucket] != 0 || spamCounts[bucket] != 0)
+                    used++;
+            }
+            return used;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the memory the tables of the model take, in bytes; it does not change as the model learns
+     */
+    public long memoryBytes() { return (long) BUCKET_BYTES * buckets(); }
+
+    /**
+     * Sets the email counts once the bucket counts are built, and calculates ln(h/s) of every bucket and ln(S/H).
+     */
+    void finish(int hamEmails, int spamEmails) {
+        for (int bucket = 0; bucket < bucketLogRatios.length; bucket++) {
+            updateBucket(bucket);
+        }
+        this.hamEmails = hamEmails;
+        this.spamEmails = spamEmails;
+        this.classLogRatio = Math.log((double) spamEmails / hamEmails);
+    }
+
+    /**
+     * Recalculates ln(h/s) of one bucket from its counts: h/s is 0/0 for an empty bucket, so its log is NaN,
+     * and x/0 or 0/x for a bucket seen in one class only, so its log is infinite.
+     * @param bucket the bucket
+     */
+    private void updateBucket(int bucket) {
+        bucketLogRatios[bucket] = Math.log((double) hamCounts[bucket] / spamCounts[bucket]);
+    }
+}
@@ -0,0 +1,79 @@
+package com.spamdetector.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, for the Prometheus metrics.
+ *
+ * Bucket i counts durations up to 2^i microseconds (1 µs, 2 µs, 4 µs, ... about 8.4 s), plus one bucket for
+ * anything longer. Recording finds the bucket with one bit operation and adds to LongAdders, so any number
+ * of threads can record at once without contending on a lock or a single counter.
+ */
+public class LatencyHistogram {
+
+    // Upper bounds of the buckets are 2^0 .. 2^(BUCKETS - 1) microseconds
+    static final int BUCKETS = 24;
+
+    // counts[i] counts the durations of bucket i; counts[BUCKETS] the ones above the last bound
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one duration.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        // Round up to whole microseconds; bucket i holds (2^(i-1), 2^i] microseconds
+        long micros = (nanos + 999) / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+
+        counts[Math.min(bucket, BUCKETS)].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long count() { return count.sum(); }
+
+    /**
+     * @return the sum of all durations recorded, in nanoseconds
+     */
+    public long sumNanos() { return sumNanos.sum(); }
+
+    /**
+     * @param bucket a bucket index, from 0 to BUCKETS - 1
+     * @return the upper bound of the bucket in seconds
+     */
+    static double upperBoundSeconds(int bucket) {
+        return (1L << bucket) / 1_000_000.0;
+    }
+
+    /**
+     * Returns the cumulative bucket counts, as Prometheus expects them: entry i is the number of durations
+     * up to the bound of bucket i, and the last entry (the "+Inf" bucket) is the number of all durations.
+     * The counts are read one by one while other threads may be recording, so they can be off by the
+     * durations recorded meanwhile, but they never decrease from one bucket to the next.
+     * @return the cumulative counts, BUCKETS + 1 entries
+     */
+    long[] cumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+}
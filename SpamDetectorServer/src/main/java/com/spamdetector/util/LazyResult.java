@@ -0,0 +1,62 @@
+package com.spamdetector.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A result that is expensive to build, such as a report that scores every test email again. It is built
+ * once, on an executor, the first time it is asked for; every caller gets a future of that one build.
+ *
+ * No lock is held while the result is built, so callers never block a thread waiting for it: they chain on
+ * the future instead. If the build fails, the callers waiting for it get the error and the next call
+ * starts a new build.
+ *
+ * @param <T> the type of the result
+ */
+public class LazyResult<T> {
+
+    // The build under way or done; null before the first call and after a failed build
+    private final AtomicReference<CompletableFuture<T>> result = new AtomicReference<>();
+
+    /**
+     * Returns the result, starting to build it if nobody has done so yet.
+     * @param build builds the result; only called by the one build that runs
+     * @param executor runs the build
+     * @return a future of the result, completed exceptionally if the build failed
+     */
+    public CompletableFuture<T> get(Supplier<T> build, Executor executor) {
+        while (true) {
+            CompletableFuture<T> current = result.get();
+            if (current != null)
+                return current.copy();
+
+            CompletableFuture<T> building = new CompletableFuture<>();
+            if (!result.compareAndSet(null, building))
+                continue;
+
+            try {
+                executor.execute(() -> {
+                    try {
+                        building.complete(build.get());
+                    } catch (RuntimeException | Error e) {
+                        failed(building, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed(building, e);
+            }
+            return building.copy();
+        }
+    }
+
+    /**
+     * Ends a failed build: its callers get the error, and the next call builds the result again.
+     */
+    private void failed(CompletableFuture<T> building, Throwable error) {
+        result.compareAndSet(building, null);
+        building.completeExceptionally(error);
+    }
+}
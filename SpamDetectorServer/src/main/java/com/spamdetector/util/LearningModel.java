@@ -0,0 +1,30 @@
+package com.spamdetector.util;
+
+import jakarta.ws.rs.core.Response;
+
+import java.io.InputStream;
+
+/**
+ * A spam model that keeps learning from labelled emails (user feedback) after training, without retraining:
+ * an OnlineSpamModel, or a HashedSpamModel, which learns in place.
+ */
+public interface LearningModel {
+
+    /**
+     * Learns from one labelled email: adds its words to the counts of its class and counts the email.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         The number of words counted in the email.
+     */
+    int learn(InputStream message, boolean spam);
+
+    /**
+     * Learns from one labelled email and returns the updated email counts as a JSON response.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         A Response object containing the label, the words learned and the email counts as JSON.
+     */
+    Response resultForFeedback(InputStream message, boolean spam);
+}
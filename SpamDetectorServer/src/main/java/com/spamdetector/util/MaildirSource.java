@@ -0,0 +1,29 @@
+package com.spamdetector.util;
+
+import java.nio.file.Path;
+
+/**
+ * A Maildir: the emails are the files in its cur and new subdirectories, and in those of its Maildir++
+ * subfolders (.Folder/cur, .Folder/new). Emails still being delivered (tmp) and dot files are left out.
+ */
+class MaildirSource extends DirectorySource {
+
+    MaildirSource(String location, Path root) {
+        super(location, root);
+    }
+
+    @Override
+    boolean accept(Path file) {
+        Path parent = file.getParent();
+        if (parent == null || parent.getFileName() == null || file.getFileName().toString().startsWith("."))
+            return false;
+
+        String folder = parent.getFileName().toString();
+        return folder.equals("cur") || folder.equals("new");
+    }
+
+    @Override
+    public String toString() {
+        return "Maildir " + getLocation();
+    }
+}
@@ -0,0 +1,209 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A spam model read from a model file written by ModelFile.
+ *
+ * The file is memory-mapped and words are looked up straight in the mapped hash table, so loading a model
+ * only reads the header and nothing is copied to the heap: the operating system pages the tables in as
+ * emails are scored. Lookups only use absolute reads, so any number of threads can score at once.
+ */
+public class MappedSpamModel extends SpamModel {
+
+    // The whole model file, read-only
+    private final ByteBuffer data;
+
+    private final int vocabularySize;
+    private final int mask;
+    private final int hamDocuments;
+    private final int spamDocuments;
+
+    // Whether the vocabulary has bigrams
+    private final boolean bigrams;
+
+    // Where each section starts in the file
+    private final int logOddsOffset;
+    private final int slotsOffset;
+    private final int startsOffset;
+    private final int hashesOffset;
+    private final int hamCountsOffset;
+    private final int spamCountsOffset;
+    private final int lettersOffset;
+
+    /**
+     * Maps a model file.
+     *
+     * @param file  The model file.
+     * @return      The model, ready to score emails.
+     * @throws IOException if the file cannot be read or is not a model file of a supported version
+     */
+    public static MappedSpamModel load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < ModelFile.HEADER_SIZE || size > Integer.MAX_VALUE)
+                throw new IOException("Not a spam model file: " + file);
+
+            // The mapping stays valid after the channel is closed
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedSpamModel(data, file);
+        }
+    }
+
+    private MappedSpamModel(ByteBuffer data, Path file) throws IOException {
+        this.data = data;
+
+        for (int i = 0; i < ModelFile.MAGIC.length; i++) {
+            if (data.get(i) != ModelFile.MAGIC[i])
+                throw new IOException("Not a spam model file: " + file);
+        }
+        int version = data.getInt(8);
+        if (version != ModelFile.FORMAT_VERSION)
+            throw new IOException("Unsupported model file version " + version + ": " + file);
+
+        vocabularySize = data.getInt(12);
+        int tableSize = data.getInt(16);
+        hamDocuments = data.getInt(20);
+        spamDocuments = data.getInt(24);
+        int lettersLength = data.getInt(28);
+
+        if (vocabularySize < 0 || lettersLength < 0 || tableSize <= vocabularySize
+                || Integer.bitCount(tableSize) != 1)
+            throw new IOException("Corrupt model file header: " + file);
+        mask = tableSize - 1;
+
+        // Emails must be tokenized the way the training emails were, or most words would not be found
+        boolean mimeParsing = (data.getInt(32) & ModelFile.FLAG_MIME_PARSING) != 0;
+        if (mimeParsing != EmailTokenizer.MIME_PARSING)
+            throw new IOException("The model file was trained with spamdetector.tokenizer.mime=" + mimeParsing
+                    + " but the setting is now " + EmailTokenizer.MIME_PARSING + "; delete it to retrain: " + file);
+        bigrams = (data.getInt(32) & ModelFile.FLAG_BIGRAMS) != 0;
+
+        long offset = ModelFile.HEADER_SIZE;
+        logOddsOffset = (int) offset;
+        offset += 8L * vocabularySize;
+        slotsOffset = (int) offset;
+        offset += 4L * tableSize;
+        startsOffset = (int) offset;
+        offset += 4L * (vocabularySize + 1);
+        hashesOffset = (int) offset;
+        offset += 4L * vocabularySize;
+        hamCountsOffset = (int) offset;
+        offset += 4L * vocabularySize;
+        spamCountsOffset = (int) offset;
+        offset += 4L * vocabularySize;
+        lettersOffset = (int) offset;
+        offset += lettersLength;
+
+        if (offset != data.capacity())
+            throw new IOException("Model file has the wrong size (" + data.capacity() + " bytes, expected "
+                    + offset + "): " + file);
+    }
+
+    /**
+     * @return true if the model file has bigrams
+     */
+    @Override
+    public boolean usesBigrams() {
+        return bigrams;
+    }
+
+    /**
+     * Looks up the log odds of a word in the mapped hash table.
+     *
+     * @param word    The lowercase ASCII letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The log odds of the word, or UNKNOWN_WORD for words never seen in training.
+     */
+    @Override
+    public double wordLogOdds(byte[] word, int length) {
+        int id = idOf(word, length);
+        return id < 0 ? UNKNOWN_WORD : data.getDouble(logOddsOffset + 8 * id);
+    }
+
+    /**
+     * @param word    The lowercase ASCII letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The id of the word, or -1 if the model does not know it.
+     */
+    public int idOf(byte[] word, int length) {
+        int hash = Vocabulary.hash(word, 0, length);
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = data.getInt(slotsOffset + 4 * slot);
+            if (id == ModelFile.EMPTY)
+                return -1;
+            if (data.getInt(hashesOffset + 4 * id) == hash && sameWord(id, word, length))
+                return id;
+        }
+    }
+
+    private boolean sameWord(int id, byte[] word, int length) {
+        int start = data.getInt(startsOffset + 4 * id);
+        int end = data.getInt(startsOffset + 4 * (id + 1));
+        if (end - start != length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (data.get(lettersOffset + start + i) != word[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the number of letters of the word
+     */
+    public int lengthOf(int id) {
+        return data.getInt(startsOffset + 4 * (id + 1)) - data.getInt(startsOffset + 4 * id);
+    }
+
+    /**
+     * Copies the letters of a word into an array.
+     * @param id the id of a word
+     * @param destination where the letters are copied
+     * @param offset where in the destination the letters start
+     * @return the number of letters copied
+     */
+    public int copyWord(int id, byte[] destination, int offset) {
+        int start = data.getInt(startsOffset + 4 * id);
+        int length = lengthOf(id);
+        for (int i = 0; i < length; i++) {
+            destination[offset + i] = data.get(lettersOffset + start + i);
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of words in the model; ids go from 0 to vocabularySize() - 1
+     */
+    public int vocabularySize() { return vocabularySize; }
+
+    /**
+     * @return the number of ham emails the model was trained on
+     */
+    public int hamDocuments() { return hamDocuments; }
+
+    /**
+     * @return the number of spam emails the model was trained on
+     */
+    public int spamDocuments() { return spamDocuments; }
+
+    /**
+     * @param id the id of a word
+     * @return the number of times the word occurred in the ham training emails
+     */
+    public int hamCount(int id) { return data.getInt(hamCountsOffset + 4 * id); }
+
+    /**
+     * @param id the id of a word
+     * @return the number of times the word occurred in the spam training emails
+     */
+    public int spamCount(int id) { return data.getInt(spamCountsOffset + 4 * id); }
+}
@@ -0,0 +1,125 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An mbox file: emails one after the other, each starting with a "From " line (the envelope line, which
+ * is not part of the email). Lines of an email that start with "From " were escaped as ">From " when the
+ * file was written; one '>' is taken off again (mboxrd). A .gz file is decompressed as it is read.
+ *
+ * The file is read as a stream, and only the email being read is held in memory.
+ */
+class MboxSource implements CorpusSource {
+
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    private final String location;
+    private final Path file;
+
+    MboxSource(String location, Path file) {
+        this.location = location;
+        this.file = file;
+    }
+
+    @Override
+    public String getLocation() { return location; }
+
+    /**
+     * @return the mbox file
+     */
+    Path getFile() { return file; }
+
+    @Override
+    public void forEach(Consumer<Message> handler) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            boolean gzip = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".gz");
+            split(gzip ? new GZIPInputStream(in, 64 * 1024) : in, file.getFileName().toString(), handler);
+        }
+    }
+
+    /**
+     * Splits an mbox stream into its emails.
+     *
+     * @param in the mbox; read to its end, not closed
+     * @param name the name of the mbox; an email is named after it and its number, e.g. "inbox.mbox#12"
+     * @param handler receives every email
+     * @throws IOException if the stream cannot be read
+     */
+    static void split(InputStream in, String name, Consumer<Message> handler) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        byte[] message = new byte[64 * 1024];
+        int length = 0;      // bytes of the email read so far
+        int lineStart = 0;   // where the line being read starts in message
+        int count = 0;
+
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            int i = 0;
+            while (i < read) {
+                // Copy up to the end of the line, or of the chunk
+                int newline = i;
+                while (newline < read && chunk[newline] != '\n')
+                    newline++;
+                int end = newline < read ? newline + 1 : read;
+
+                if (message.length - length < end - i)
+                    message = Arrays.copyOf(message, Math.max(message.length * 2, length + end - i));
+                System.arraycopy(chunk, i, message, length, end - i);
+                length += end - i;
+                i = end;
+
+                if (message[length - 1] != '\n')
+                    break; // the line goes on in the next chunk
+
+                // A complete line, from lineStart to length
+                if (isFromLine(message, lineStart, length)) {
+                    // The envelope line is dropped, and the email before it is complete
+                    length = lineStart;
+                    if (length > 0)
+                        handler.accept(Message.ofBytes(name + "#" + ++count, Arrays.copyOf(message, length), length));
+                    length = 0;
+                } else if (isEscapedFromLine(message, lineStart, length)) {
+                    System.arraycopy(message, lineStart + 1, message, lineStart, length - lineStart - 1);
+                    length--;
+                }
+                lineStart = length;
+            }
+        }
+
+        // The last email ends with the file
+        if (length > 0)
+            handler.accept(Message.ofBytes(name + "#" + ++count, Arrays.copyOf(message, length), length));
+    }
+
+    private static boolean isFromLine(byte[] line, int from, int end) {
+        if (end - from < FROM.length)
+            return false;
+        for (int i = 0; i < FROM.length; i++) {
+            if (line[from + i] != FROM[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true for ">From ", ">>From " and so on
+     */
+    private static boolean isEscapedFromLine(byte[] line, int from, int end) {
+        int i = from;
+        while (i < end && line[i] == '>')
+            i++;
+        return i > from && isFromLine(line, i, end);
+    }
+
+    @Override
+    public String toString() {
+        return "mbox " + location;
+    }
+}
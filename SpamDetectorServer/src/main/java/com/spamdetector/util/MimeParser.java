@@ -0,0 +1,749 @@
+package com.spamdetector.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Turns a raw email (RFC 822 / MIME message) into the text a reader would see, as the bytes stream in.
+ *
+ * Headers are passed on as they are. The body is split into its MIME parts along the multipart boundaries,
+ * nested multiparts and attached messages included. Text parts are decoded from quoted-printable or base64,
+ * and HTML parts have their tags and entities replaced by spaces. Any other part (images, PDFs, archives,
+ * ...) is skipped without being decoded, so attachment blobs never reach the tokenizer.
+ *
+ * The message is processed line by line in a fixed-size line buffer; longer lines are passed on in pieces.
+ * Memory use per message is therefore bounded, whatever the size of the message or of its parts.
+ *
+ * A parser keeps state between calls, so it is not thread-safe; EmailTokenizer owns one per tokenizer.
+ */
+final class MimeParser {
+
+    /**
+     * Receives the text of the message.
+     */
+    @FunctionalInterface
+    interface TextSink {
+        /**
+         * @param bytes the text; the array is reused, so copy it to keep it
+         * @param offset where the text starts in the array
+         * @param length the number of bytes of text
+         */
+        void text(byte[] bytes, int offset, int length);
+    }
+
+    // Lines are at most 998 bytes plus CR LF (RFC 5322); longer lines are passed on in pieces
+    private static final int MAX_LINE = 1024;
+
+    // Longest header field that is parsed; Content-Type with its parameters easily fits
+    private static final int MAX_FIELD = 1024;
+
+    // Multiparts nested deeper than this are skipped
+    private static final int MAX_DEPTH = 8;
+
+    // Boundaries are at most 70 characters (RFC 2046); longer ones are cut to this length
+    private static final int MAX_BOUNDARY = 256;
+
+    // Longest HTML entity that is recognized, e.g. "&thetasym;"
+    private static final int MAX_ENTITY = 10;
+
+    // Reads eight bytes of an array as one little-endian long
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Base64 character -> its 6-bit value, -1 for characters outside the alphabet, -2 for the padding '='
+    private static final byte[] BASE64 = new byte[256];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+        BASE64['='] = -2;
+    }
+
+    // What is done with the lines of the current part
+    private enum Content {
+        TEXT,       // text/plain and other text: decoded and passed on
+        HTML,       // text/html: decoded, tags stripped and passed on
+        PREAMBLE,   // the text of a multipart before its first part: passed on
+        SKIPPED     // anything else, and what follows a closing boundary: dropped
+    }
+
+    private enum Encoding { IDENTITY, QUOTED_PRINTABLE, BASE64 }
+
+    private final TextSink sink;
+
+    // The line being read
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+
+    // True if part of the current line has already been processed, so the rest is not a line start
+    private boolean lineContinues;
+
+    // True while reading the headers of the message or of a part
+    private boolean inHeaders;
+
+    // The header field being read, if it is one of the Content-* fields that are parsed
+    private final byte[] field = new byte[MAX_FIELD];
+    private int fieldLength;
+    private boolean fieldKept;
+
+    // Content-Type and Content-Transfer-Encoding of the part whose headers are being read
+    private String contentType;
+    private String boundary;
+    private String transferEncoding;
+
+    // How the body of the current part is handled
+    private Content content;
+    private Encoding encoding;
+
+    // Boundaries of the enclosing multiparts, innermost last
+    private final byte[][] boundaries = new byte[MAX_DEPTH][];
+    private int depth;
+
+    // Decoder state: base64 bits not yet output, quoted-printable escape in progress
+    private int base64Bits;
+    private int base64BitCount;
+    private int qpState;
+    private int qpHigh;
+
+    // HTML state: inside a tag, or reading an entity
+    private boolean inTag;
+    private final byte[] entity = new byte[MAX_ENTITY + 1];
+    private int entityLength = -1;
+
+    // Bytes decoded from base64, before they are passed on
+    private final byte[] scratch = new byte[MAX_LINE];
+
+    // Output buffer for the text passed on to the sink
+    private final byte[] out = new byte[4096];
+    private int outLength;
+
+    /**
+     * @param sink receives the text of the message
+     */
+    MimeParser(TextSink sink) {
+        this.sink = sink;
+        reset();
+    }
+
+    /**
+     * Prepares for a new message.
+     */
+    void reset() {
+        lineLength = 0;
+        lineContinues = false;
+        depth = 0;
+        outLength = 0;
+        startHeaders();
+    }
+
+    /**
+     * Processes the next chunk of bytes of the message.
+     * @param bytes the raw message
+     * @param offset where the chunk starts in the array
+     * @param length the number of bytes of the chunk
+     */
+    void feed(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+
+        while (i < end) {
+            if (isDone())
+                return;
+
+            int newline = indexOf(bytes, i, end, '\n');
+            if (newline < 0) {
+                // The line goes on in the next chunk
+                buffer(bytes, i, end - i);
+                break;
+            }
+
+            int lineEnd = newline + 1;
+            if (lineLength == 0) {
+                // The whole line is in the chunk: process it where it is
+                line(bytes, i, lineEnd - i);
+            } else {
+                buffer(bytes, i, lineEnd - i);
+                if (lineLength > 0)
+                    line(line, 0, lineLength);
+                lineLength = 0;
+            }
+            lineContinues = false;
+            i = lineEnd;
+        }
+    }
+
+    /**
+     * Ends the message: processes a last line without line end and flushes the decoders.
+     */
+    void finish() {
+        if (lineLength > 0)
+            line(line, 0, lineLength);
+        lineLength = 0;
+
+        flushEntity();
+        flush();
+        reset();
+    }
+
+    /**
+     * Finds a byte, eight bytes at a time: XOR with the byte repeated turns a match into a zero byte,
+     * and (x - 0x01..01) & ~x & 0x80..80 flags the lowest zero byte of x exactly.
+     */
+    private static int indexOf(byte[] bytes, int from, int end, char c) {
+        long pattern = (c & 0xFFL) * 0x0101010101010101L;
+        int i = from;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            long x = (long) LONGS.get(bytes, i) ^ pattern;
+            long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+            if (found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for (; i < end; i++) {
+            if (bytes[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true once nothing more of the message can be passed on: a skipped part outside any multipart,
+     *         e.g. a single-part attachment, lasts until the end of the message
+     */
+    private boolean isDone() {
+        return depth == 0 && !inHeaders && content == Content.SKIPPED;
+    }
+
+    /**
+     * Adds bytes to the line buffer. When the buffer is full, what it holds is processed as the start of
+     * the line, and the rest of the line is processed in further pieces.
+     */
+    private void buffer(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int room = MAX_LINE - lineLength;
+            if (room == 0) {
+                line(line, 0, lineLength);
+                lineLength = 0;
+                lineContinues = true;
+                room = MAX_LINE;
+            }
+
+            int copied = Math.min(room, length);
+            System.arraycopy(bytes, offset, line, lineLength, copied);
+            lineLength += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    /**
+     * Processes a line, or a piece of a long line, including its line end if it has one.
+     */
+    private void line(byte[] bytes, int offset, int length) {
+        if (!lineContinues && depth > 0 && isBoundaryLine(bytes, offset, length))
+            return;
+
+        if (inHeaders) {
+            headerLine(bytes, offset, length);
+        } else {
+            bodyLine(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Handles a line that starts with "--" followed by the boundary of an enclosing multipart.
+     * @return true if the line was a boundary line
+     */
+    private boolean isBoundaryLine(byte[] bytes, int offset, int length) {
+        if (length < 3 || bytes[offset] != '-' || bytes[offset + 1] != '-')
+            return false;
+
+        // The innermost multipart is by far the most likely; an outer boundary also closes the inner ones
+        for (int level = depth - 1; level >= 0; level--) {
+            byte[] candidate = boundaries[level];
+            if (!startsWith(bytes, offset + 2, length - 2, candidate))
+                continue;
+
+            int after = offset + 2 + candidate.length;
+            int end = offset + length;
+            boolean closing = after + 1 < end && bytes[after] == '-' && bytes[after + 1] == '-';
+            if (closing)
+                after += 2;
+            if (!onlyWhitespace(bytes, after, end))
+                continue;
+
+            endPart();
+            if (closing) {
+                // What follows until the boundary of the enclosing multipart is the epilogue
+                depth = level;
+                inHeaders = false;
+                content = Content.SKIPPED;
+            } else {
+                depth = level + 1;
+                startHeaders();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean onlyWhitespace(byte[] bytes, int from, int end) {
+        for (int i = from; i < end; i++) {
+            byte b = bytes[i];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts reading the headers of the message or of a part, with the defaults of RFC 2045.
+     */
+    private void startHeaders() {
+        inHeaders = true;
+        fieldLength = 0;
+        fieldKept = false;
+        contentType = "text/plain";
+        boundary = null;
+        transferEncoding = "7bit";
+        content = Content.TEXT;
+        encoding = Encoding.IDENTITY;
+    }
+
+    /**
+     * Headers are text, so they are passed on as they are; the Content-* fields are parsed as well.
+     */
+    private void headerLine(byte[] bytes, int offset, int length) {
+        if (!lineContinues) {
+            if (isBlank(bytes, offset, length)) {
+                endField();
+                emit(bytes, offset, length);
+                startBody();
+                return;
+            }
+
+            boolean folded = bytes[offset] == ' ' || bytes[offset] == '\t';
+            if (!folded) {
+                endField();
+                fieldKept = startsWithIgnoreCase(bytes, offset, length, "content-");
+            }
+        }
+
+        if (fieldKept) {
+            int copied = Math.min(length, MAX_FIELD - fieldLength);
+            System.arraycopy(bytes, offset, field, fieldLength, copied);
+            fieldLength += copied;
+        }
+        emit(bytes, offset, length);
+    }
+
+    private static boolean isBlank(byte[] bytes, int offset, int length) {
+        return length == 0 || (length == 1 && bytes[offset] == '\n')
+                || (length == 2 && bytes[offset] == '\r' && bytes[offset + 1] == '\n');
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] bytes, int offset, int length, String prefix) {
+        if (length < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            int b = bytes[offset + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the header field just read, if it is Content-Type or Content-Transfer-Encoding.
+     */
+    private void endField() {
+        if (fieldKept && fieldLength > 0) {
+            // Unfold the field: line ends followed by whitespace are just whitespace
+            String text = new String(field, 0, fieldLength, StandardCharsets.ISO_8859_1).replaceAll("\r?\n", "");
+            int colon = text.indexOf(':');
+            if (colon > 0) {
+                String name = text.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = text.substring(colon + 1).trim();
+
+                if (name.equals("content-type")) {
+                    contentType(value);
+                } else if (name.equals("content-transfer-encoding")) {
+                    transferEncoding = value.toLowerCase(Locale.ROOT);
+                }
+            }
+        }
+        fieldLength = 0;
+        fieldKept = false;
+    }
+
+    /**
+     * Reads the media type and the boundary parameter of a Content-Type value,
+     * e.g. multipart/alternative; boundary="----=_NextPart_000_0001"
+     */
+    private void contentType(String value) {
+        int end = 0;
+        while (end < value.length() && value.charAt(end) != ';' && !Character.isWhitespace(value.charAt(end)))
+            end++;
+        contentType = value.substring(0, end).toLowerCase(Locale.ROOT);
+        boundary = parameter(value, "boundary");
+    }
+
+    /**
+     * @return the value of a Content-Type parameter, unquoted, or null if it is missing
+     */
+    private static String parameter(String value, String name) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        int at = 0;
+        while ((at = lower.indexOf(name, at)) >= 0) {
+            // The name must start a parameter: follow a ';' (and whitespace)
+            int before = at - 1;
+            while (before >= 0 && Character.isWhitespace(value.charAt(before)))
+                before--;
+            int equals = at + name.length();
+            while (equals < value.length() && Character.isWhitespace(value.charAt(equals)))
+                equals++;
+
+            if (before >= 0 && value.charAt(before) == ';' && equals < value.length() && value.charAt(equals) == '=') {
+                int start = equals + 1;
+                while (start < value.length() && Character.isWhitespace(value.charAt(start)))
+                    start++;
+
+                if (start < value.length() && value.charAt(start) == '"') {
+                    int close = value.indexOf('"', start + 1);
+                    return value.substring(start + 1, close < 0 ? value.length() : close);
+                }
+                int stop = start;
+                while (stop < value.length() && value.charAt(stop) != ';' && !Character.isWhitespace(value.charAt(stop)))
+                    stop++;
+                return value.substring(start, stop);
+            }
+            at += name.length();
+        }
+        return null;
+    }
+
+    /**
+     * The headers are over: decides from them how the body is handled.
+     */
+    private void startBody() {
+        inHeaders = false;
+
+        if (contentType.startsWith("multipart/") && boundary != null && !boundary.isEmpty()) {
+            if (depth < MAX_DEPTH) {
+                byte[] delimiter = boundary.getBytes(StandardCharsets.ISO_8859_1);
+                if (delimiter.length > MAX_BOUNDARY)
+                    delimiter = Arrays.copyOf(delimiter, MAX_BOUNDARY);
+                boundaries[depth++] = delimiter;
+                content = Content.PREAMBLE;
+            } else {
+                content = Content.SKIPPED;
+            }
+            encoding = Encoding.IDENTITY;
+            return;
+        }
+
+        if (contentType.equals("message/rfc822")) {
+            // An attached email: its headers follow right away
+            startHeaders();
+            return;
+        }
+
+        if (contentType.equals("text/html")) {
+            content = Content.HTML;
+        } else if (contentType.startsWith("text/") || contentType.startsWith("multipart/")) {
+            // A multipart without a usable boundary can only be read as text
+            content = Content.TEXT;
+        } else {
+            // Binary parts are skipped without decoding them
+            content = Content.SKIPPED;
+            return;
+        }
+
+        switch (transferEncoding) {
+            case "base64":
+                encoding = Encoding.BASE64;
+                break;
+            case "quoted-printable":
+                encoding = Encoding.QUOTED_PRINTABLE;
+                break;
+            default:
+                encoding = Encoding.IDENTITY;
+        }
+        base64Bits = 0;
+        base64BitCount = 0;
+        qpState = 0;
+        inTag = false;
+        entityLength = -1;
+    }
+
+    /**
+     * Ends the current part: whatever a decoder still holds is passed on, and a line end keeps the
+     * last word of the part apart from the first word of the next.
+     */
+    private void endPart() {
+        if (!inHeaders && (content == Content.TEXT || content == Content.HTML)) {
+            if (encoding == Encoding.QUOTED_PRINTABLE && qpState == 1)
+                decoded('=');
+            flushEntity();
+        }
+        text('\n');
+    }
+
+    private void bodyLine(byte[] bytes, int offset, int length) {
+        switch (content) {
+            case SKIPPED:
+                return;
+            case PREAMBLE:
+                emit(bytes, offset, length);
+                return;
+            default:
+                break;
+        }
+
+        int end = offset + length;
+        switch (encoding) {
+            case IDENTITY:
+                decoded(bytes, offset, end);
+                break;
+            case BASE64:
+                base64(bytes, offset, end);
+                break;
+            case QUOTED_PRINTABLE:
+                // Runs without '=' need no decoding and are passed on in one go
+                int i = offset;
+                while (i < end) {
+                    if (qpState != 0) {
+                        quotedPrintable(bytes[i++] & 0xFF);
+                        continue;
+                    }
+                    int escape = indexOf(bytes, i, end, '=');
+                    if (escape < 0) {
+                        decoded(bytes, i, end);
+                        break;
+                    }
+                    decoded(bytes, i, escape);
+                    qpState = 1;
+                    i = escape + 1;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Decodes base64 text through a scratch buffer. Line ends and other characters outside the alphabet
+     * are ignored, and padding ends the current group of four characters.
+     */
+    private void base64(byte[] bytes, int from, int end) {
+        int decodedLength = 0;
+        for (int i = from; i < end; i++) {
+            int value = BASE64[bytes[i] & 0xFF];
+            if (value < 0) {
+                if (value == -2)
+                    base64BitCount = 0;
+                continue;
+            }
+
+            base64Bits = (base64Bits << 6) | value;
+            base64BitCount += 6;
+            if (base64BitCount >= 8) {
+                base64BitCount -= 8;
+                scratch[decodedLength++] = (byte) (base64Bits >> base64BitCount);
+                if (decodedLength == scratch.length) {
+                    decoded(scratch, 0, decodedLength);
+                    decodedLength = 0;
+                }
+            }
+        }
+        decoded(scratch, 0, decodedLength);
+    }
+
+    /**
+     * Decodes one quoted-printable character: =XX is the byte XX, and = at the end of a line is a soft
+     * line break that joins the line to the next. A malformed escape is taken literally.
+     */
+    private void quotedPrintable(int c) {
+        switch (qpState) {
+            case 0:
+                if (c == '=')
+                    qpState = 1;
+                else
+                    decoded(c);
+                return;
+            case 1:
+                if (hexValue(c) >= 0) {
+                    qpHigh = c;
+                    qpState = 2;
+                } else if (c == '\r') {
+                    qpState = 3;
+                } else if (c == '\n') {
+                    qpState = 0;
+                } else {
+                    qpState = 0;
+                    decoded('=');
+                    quotedPrintable(c);
+                }
+                return;
+            case 2:
+                qpState = 0;
+                if (hexValue(c) >= 0) {
+                    decoded(hexValue(qpHigh) << 4 | hexValue(c));
+                } else {
+                    decoded('=');
+                    decoded(qpHigh);
+                    quotedPrintable(c);
+                }
+                return;
+            default:
+                // After "=\r": the soft line break ends with '\n'
+                qpState = 0;
+                if (c != '\n')
+                    quotedPrintable(c);
+        }
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+
+    /**
+     * Takes decoded bytes of a text part. Plain text is passed on in runs; only HTML markup is looked
+     * at byte by byte.
+     */
+    private void decoded(byte[] bytes, int from, int end) {
+        if (content != Content.HTML) {
+            emit(bytes, from, end - from);
+            return;
+        }
+
+        int i = from;
+        while (i < end) {
+            if (inTag) {
+                int close = indexOf(bytes, i, end, '>');
+                if (close < 0)
+                    return;
+                inTag = false;
+                i = close + 1;
+            } else if (entityLength >= 0) {
+                decoded(bytes[i++] & 0xFF);
+            } else {
+                int markup = i;
+                while (markup < end && bytes[markup] != '<' && bytes[markup] != '&')
+                    markup++;
+                emit(bytes, i, markup - i);
+                if (markup < end)
+                    decoded(bytes[markup] & 0xFF);
+                i = markup + 1;
+            }
+        }
+    }
+
+    /**
+     * Takes one decoded byte of a text part; HTML markup is replaced by spaces on the way.
+     */
+    private void decoded(int b) {
+        if (content != Content.HTML) {
+            text(b);
+            return;
+        }
+
+        if (inTag) {
+            if (b == '>')
+                inTag = false;
+            return;
+        }
+
+        if (entityLength >= 0) {
+            if (b == ';') {
+                // A complete entity such as &nbsp; or &#160;
+                entityLength = -1;
+                text(' ');
+                return;
+            }
+            if (entityLength < MAX_ENTITY && (isAsciiLetterOrDigit(b) || (b == '#' && entityLength == 0))) {
+                entity[entityLength++] = (byte) b;
+                return;
+            }
+            // Not an entity after all: pass on what was held back
+            flushEntity();
+        }
+
+        if (b == '<') {
+            inTag = true;
+            text(' ');
+        } else if (b == '&') {
+            entityLength = 0;
+        } else {
+            text(b);
+        }
+    }
+
+    private static boolean isAsciiLetterOrDigit(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+
+    /**
+     * Passes on an '&' and the characters after it that turned out not to be an entity.
+     */
+    private void flushEntity() {
+        if (entityLength < 0)
+            return;
+
+        int length = entityLength;
+        entityLength = -1;
+        text('&');
+        for (int i = 0; i < length; i++) {
+            text(entity[i]);
+        }
+    }
+
+    /**
+     * Passes on text as it is, through the output buffer.
+     */
+    private void emit(byte[] bytes, int offset, int length) {
+        if (length >= out.length) {
+            flush();
+            sink.text(bytes, offset, length);
+            return;
+        }
+        if (outLength + length > out.length)
+            flush();
+        System.arraycopy(bytes, offset, out, outLength, length);
+        outLength += length;
+    }
+
+    private void text(int b) {
+        if (outLength == out.length)
+            flush();
+        out[outLength++] = (byte) b;
+    }
+
+    private void flush() {
+        if (outLength > 0) {
+            sink.text(out, 0, outLength);
+            outLength = 0;
+        }
+    }
+}
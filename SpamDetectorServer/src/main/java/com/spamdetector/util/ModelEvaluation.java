@@ -0,0 +1,734 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests a trained SpamModel on the test emails: by default the bundled data/test/ham and data/test/spam,
+ * or the corpora of spamdetector.corpus.testHam and testSpam (see CorpusSource).
+ *
+ * Every test email is scored exactly once, when the evaluation is built. The scores fill a confusion matrix
+ * and a ROC curve, and every metric the endpoints serve (accuracy, precision, recall, F1, false positive rate
+ * and ROC) is derived from them up front, so the endpoints only read them. The results table is kept as
+ * plain arrays and streamed to the client row by row.
+ * The emails are scored with the default ScoringMode; how the other modes compare with full scoring is
+ * measured on first request, on an executor given by the caller, as it scores every email once per mode.
+ * So is the accuracy a HashedSpamModel of each size would give up. What bigrams gain in accuracy and cost
+ * in time, and what pruning the vocabulary (see FeatureSelector) saves and costs, do not depend on the
+ * evaluation, so bigramsJson and pruningJson only build those reports; SpamModelHolder keeps them.
+ * An evaluation belongs to one version of one model; see isFor(SpamModel).
+ */
+public class ModelEvaluation {
+    // Jackson library object to serialize results to JSON
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    // Thresholds the ROC curve is reported at. The scores of this model are mostly very close to 0 or 1,
+    // so the thresholds get denser towards both ends.
+    static final double[] ROC_THRESHOLDS = {
+            0.0, 1e-12, 1e-9, 1e-6, 1e-3, 0.01, 0.05, 0.1, 0.2, 0.3, 0.4, 0.5,
+            0.6, 0.7, 0.8, 0.9, 0.95, 0.99, 1 - 1e-3, 1 - 1e-6, 1 - 1e-9, 1 - 1e-12, 1.0
+    };
+
+    // Bucket bits of the hashed models compared with the model (2^22 buckets take 64 MB)
+    static final List<Integer> HASHING_BITS = List.of(10, 12, 14, 16, 18, 20, 22);
+
+    // Numbers of words the pruned models compared with the model keep at most
+    static final List<Integer> PRUNING_TOP_K = List.of(20000, 10000, 5000, 2000, 1000, 500, 200);
+
+    // The test emails (spamdetector.corpus.testHam and testSpam, see CorpusSource)
+    private final List<CorpusSource> hamSources;
+    private final List<CorpusSource> spamSources;
+
+    // The model being tested, and its version when it was tested
+    private final SpamModel model;
+    private final long modelVersion;
+
+    // One row per test email, ham first then spam, in the order the folders list them:
+    // file name, spam probability, the probability rounded to 5 decimals, and whether it really is spam
+    private final String[] files;
+    private final double[] probabilities;
+    private final String[] rounded;
+    private final boolean[] actualSpam;
+    private final int hamCount;
+
+    // Test results, computed once when the evaluation is built so the endpoints only read them
+    public final ConfusionMatrix matrix;
+    public final Double accuracy;
+    public final Double precision;
+    public final Double recall;
+    public final Double f1;
+    public final Double falsePositiveRate;
+    public final Double rocAuc;
+    public final String rocJson;
+
+    // The scoring modes compared with full scoring as JSON, built on first use by scoringJson
+    private final LazyResult<String> scoringReport = new LazyResult<>();
+
+    // Hashed models of a range of sizes compared with this model as JSON, built on first use by hashingJson
+    private final LazyResult<String> hashingReport = new LazyResult<>();
+
+    /**
+     * Scores the test emails with the given model and calculates all its test results.
+     *
+     * @param model  The trained model to test.
+     * @return       The evaluation of that model.
+     */
+    public static ModelEvaluation test(SpamModel model) {
+        return new ModelEvaluation(model);
+    }
+
+    /**
+     * Scores the test emails and calculates the results. Private, so no subclass can see the evaluation
+     * half built through the public methods called here; see test.
+     *
+     * @param model  The trained model to test.
+     */
+    private ModelEvaluation(SpamModel model) {
+        this.model = model;
+        // Read the version first: if the model learns while we score, this evaluation counts as outdated
+        this.modelVersion = model.version();
+
+        this.hamSources = CorpusSource.fromConfig("spamdetector.corpus.testHam", "test/ham");
+        this.spamSources = CorpusSource.fromConfig("spamdetector.corpus.testSpam", "test/spam");
+
+        // Score every test email once; ham rows come first
+        Rows rows = new Rows();
+        scoreAll(model, ScoringMode.DEFAULT, rows);
+        this.hamCount = rows.hamCount;
+        this.files = Arrays.copyOf(rows.files, rows.count);
+        this.probabilities = Arrays.copyOf(rows.probabilities, rows.count);
+        this.actualSpam = Arrays.copyOf(rows.actualSpam, rows.count);
+        this.rounded = new String[rows.count];
+        for (int row = 0; row < rows.count; row++) {
+            // Formatted once here instead of for every request
+            rounded[row] = String.format("%.5f", probabilities[row]);
+        }
+
+        this.matrix = confusionMatrix(0.5);
+        this.accuracy = matrix.accuracy();
+        this.precision = matrix.precision();
+        this.recall = matrix.recall();
+        this.f1 = matrix.f1();
+        this.falsePositiveRate = matrix.falsePositiveRate();
+        this.rocAuc = rocAuc();
+        this.rocJson = toJson(rocResult());
+    }
+
+    /**
+     * Checks whether this evaluation still describes a model: the same model, and no learning since.
+     *
+     * @param current  The model currently in use.
+     * @return         True if this evaluation is up to date for that model.
+     */
+    public boolean isFor(SpamModel current) {
+        return current == model && current.version() == modelVersion;
+    }
+
+    /**
+     * Receives the test emails as they are scored.
+     */
+    private interface ScoredEmail {
+        void scored(String name, boolean spam, double spamProbability);
+    }
+
+    /**
+     * Scores every test email once, the ham emails first, in the order their sources list them.
+     *
+     * @param model   The model to score with: the model being tested, or one compared with it.
+     * @param mode    Which words of the emails count.
+     * @param scored  Receives every email with its score.
+     */
+    private void scoreAll(SpamModel model, ScoringMode mode, ScoredEmail scored) {
+        scoreSources(model, hamSources, false, mode, scored);
+        scoreSources(model, spamSources, true, mode, scored);
+    }
+
+    private void scoreSources(SpamModel model, List<CorpusSource> sources, boolean spam, ScoringMode mode,
+                              ScoredEmail scored) {
+        for (CorpusSource source : sources) {
+            try {
+                source.forEach(email -> scored.scored(email.getName(), spam, email.spamProbability(model, mode)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the test emails of " + source.getLocation(), e);
+            }
+        }
+    }
+
+    /**
+     * The rows of the results table while they are collected; the test sources do not say up front how
+     * many emails they hold.
+     */
+    private static final class Rows implements ScoredEmail {
+        String[] files = new String[1024];
+        double[] probabilities = new double[1024];
+        boolean[] actualSpam = new boolean[1024];
+        int count;
+        int hamCount;
+
+        @Override
+        public void scored(String name, boolean spam, double spamProbability) {
+            if (count == files.length) {
+                files = Arrays.copyOf(files, count * 2);
+                probabilities = Arrays.copyOf(probabilities, count * 2);
+                actualSpam = Arrays.copyOf(actualSpam, count * 2);
+            }
+            files[count] = name;
+            probabilities[count] = spamProbability;
+            actualSpam[count] = spam;
+            count++;
+            if (!spam)
+                hamCount++;
+        }
+    }
+
+    /**
+     * Returns the spam probability of every email in a test folder, as scored when the evaluation was built.
+     *
+     * @param folder The test folder, "test/ham" or "test/spam".
+     * @return A map with filenames as keys and their calculated spam probabilities as values.
+     */
+    public Map<String, Double> getTestWordFrequency(String folder) {
+        boolean spam = folder.endsWith("spam");
+        Map<String, Double> scores = new TreeMap<>();
+        for (int row = 0; row < files.length; row++) {
+            if (actualSpam[row] == spam)
+                scores.put(files[row], probabilities[row]);
+        }
+        return scores;
+    }
+
+    /**
+     * Builds the confusion matrix for a decision threshold: an email counts as spam
+     * when its probability is above the threshold (0.5 is the model's own verdict).
+     *
+     * @param threshold  The decision threshold.
+     * @return           The confusion matrix of the test emails.
+     */
+    public ConfusionMatrix confusionMatrix(double threshold) {
+        ConfusionMatrix confusion = new ConfusionMatrix();
+        for (int row = 0; row < files.length; row++) {
+            confusion.add(actualSpam[row], probabilities[row] > threshold);
+        }
+        return confusion;
+    }
+
+    /**
+     * Calculates the area under the full ROC curve: the chance that a random spam email scores higher
+     * than a random ham email, ties counting half. It is computed from the ranks of all scores
+     * (Mann-Whitney U), which equals the trapezoid area over every possible threshold.
+     *
+     * @return The ROC AUC, between 0 and 1.
+     */
+    private double rocAuc() {
+        int spamCount = files.length - hamCount;
+        if (spamCount == 0 || hamCount == 0)
+            return 0.0;
+
+        // All rows sorted by score, so tied scores can share their average rank
+        Integer[] order = new Integer[files.length];
+        for (int row = 0; row < order.length; row++) {
+            order[row] = row;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(row -> probabilities[row]));
+
+        double spamRankSum = 0;
+        for (int start = 0; start < order.length; ) {
+            int end = start;
+            while (end + 1 < order.length && probabilities[order[end + 1]] == probabilities[order[start]])
+                end++;
+
+            // Ranks are 1-based; tied scores all get the average of their ranks
+            double averageRank = (start + end) / 2.0 + 1;
+            for (int k = start; k <= end; k++) {
+                if (actualSpam[order[k]])
+                    spamRankSum += averageRank;
+            }
+            start = end + 1;
+        }
+
+        return (spamRankSum - spamCount * (spamCount + 1) / 2.0) / ((double) spamCount * hamCount);
+    }
+
+    /**
+     * Builds the ROC result: the AUC, and the true and false positive rate at each of ROC_THRESHOLDS.
+     *
+     * @return The ROC result, ready to serialize.
+     */
+    private Map<String, Object> rocResult() {
+        List<Map<String, Object>> points = new ArrayList<>();
+        for (double threshold : ROC_THRESHOLDS) {
+            ConfusionMatrix confusion = confusionMatrix(threshold);
+
+            Map<String, Object> point = new TreeMap<>();
+            point.put("threshold", threshold);
+            point.put("truePositiveRate", confusion.recall());
+            point.put("falsePositiveRate", confusion.falsePositiveRate());
+            points.add(point);
+        }
+
+        Map<String, Object> roc = new TreeMap<>();
+        roc.put("auc", rocAuc);
+        roc.put("points", points);
+        return roc;
+    }
+
+    /**
+     * Scores the test emails again with full scoring, the top and early modes at their default settings and
+     * the configured default mode, and compares the verdicts of each with those of full scoring.
+     *
+     * @return The comparison, ready to serialize.
+     */
+    private Map<String, Object> scoringResult() {
+        Map<String, ScoringMode> modes = new LinkedHashMap<>();
+        for (ScoringMode mode : new ScoringMode[]{ScoringMode.FULL, ScoringMode.top(15), ScoringMode.early(30),
+                ScoringMode.getDefault()}) {
+            modes.putIfAbsent(mode.toString(), mode);
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        boolean[] fullVerdicts = null;
+        for (ScoringMode mode : modes.values()) {
+            boolean[] verdicts = new boolean[files.length];
+            ConfusionMatrix confusion = new ConfusionMatrix();
+
+            // The sources list the emails in the same order every time
+            int[] row = {0};
+            long start = System.nanoTime();
+            scoreAll(model, mode, (name, spam, spamProbability) -> {
+                if (row[0] < verdicts.length)
+                    verdicts[row[0]++] = spamProbability > 0.5;
+                confusion.add(spam, spamProbability > 0.5);
+            });
+            long nanos = System.nanoTime() - start;
+
+            // Full scoring comes first, and every mode is compared with it
+            if (fullVerdicts == null)
+                fullVerdicts = verdicts;
+            int agreeing = 0;
+            for (int i = 0; i < verdicts.length; i++) {
+                if (verdicts[i] == fullVerdicts[i])
+                    agreeing++;
+            }
+
+            Map<String, Object> result = new TreeMap<>();
+            result.put("mode", mode.toString());
+            result.put("accuracy", confusion.accuracy());
+            result.put("precision", confusion.precision());
+            result.put("recall", confusion.recall());
+            result.put("falsePositiveRate", confusion.falsePositiveRate());
+            result.put("agreementWithFull", files.length == 0 ? 1.0 : (double) agreeing / files.length);
+            result.put("meanMicrosPerEmail", files.length == 0 ? 0.0 : nanos / 1e3 / files.length);
+            results.add(result);
+        }
+
+        Map<String, Object> scoring = new TreeMap<>();
+        scoring.put("active", ScoringMode.getDefault().toString());
+        scoring.put("modes", results);
+        return scoring;
+    }
+
+    /**
+     * Builds hashed models of a range of sizes from the counts of this model (see HashedSpamModel.of), scores
+     * the test emails with each, and compares them with this model. A hashed model can only be compared with
+     * smaller ones, as its buckets cannot be split again.
+     *
+     * @return The comparison, ready to serialize.
+     */
+    private Map<String, Object> hashingResult() {
+        int activeBits = model instanceof HashedSpamModel ? ((HashedSpamModel) model).bits() : 0;
+        SortedSet<Integer> sizes = new TreeSet<>(HASHING_BITS);
+        if (activeBits > 0) {
+            sizes.add(activeBits);
+            sizes = sizes.headSet(activeBits + 1);
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int bits : sizes) {
+            HashedSpamModel hashed = HashedSpamModel.of(model, bits);
+            ConfusionMatrix confusion = new ConfusionMatrix();
+
+            // The sources list the emails in the same order as when this model was tested
+            int[] row = {0};
+            int[] agreeing = {0};
+            scoreAll(hashed, ScoringMode.DEFAULT, (name, spam, spamProbability) -> {
+                if (row[0] < files.length && (spamProbability > 0.5) == (probabilities[row[0]++] > 0.5))
+                    agreeing[0]++;
+                confusion.add(spam, spamProbability > 0.5);
+            });
+
+            Map<String, Object> result = new TreeMap<>();
+            result.put("hashBits", bits);
+            result.put("buckets", hashed.buckets());
+            result.put("usedBuckets", hashed.usedBuckets());
+            result.put("memoryBytes", hashed.memoryBytes());
+            result.put("accuracy", confusion.accuracy());
+            result.put("accuracyLoss", accuracy - confusion.accuracy());
+            result.put("precision", confusion.precision());
+            result.put("recall", confusion.recall());
+            result.put("falsePositiveRate", confusion.falsePositiveRate());
+            result.put("agreementWithModel", files.length == 0 ? 1.0 : (double) agreeing[0] / files.length);
+            results.add(result);
+        }
+
+        Map<String, Object> hashing = new TreeMap<>();
+        hashing.put("activeHashBits", activeBits);
+        hashing.put("accuracy", accuracy);
+        hashing.put("sizes", results);
+        return hashing;
+    }
+
+    /**
+     * Compares a SpamDetector of single words with one that also has bigrams: the model tested here if it is
+     * one of the two, and the other one trained for the comparison. Both score the test emails twice, and
+     * the second time is measured, so neither is timed before the JIT compiler has warmed up.
+     *
+     * @return The comparison, ready to serialize.
+     */
+    private Map<String, Object> bigramResult() {
+        boolean tested = model instanceof SpamDetector;
+        FeatureSelector selector = FeatureSelector.fromConfig();
+        SpamDetector words = tested && !model.usesBigrams()
+                ? (SpamDetector) model : SpamDetector.train(false, selector);
+        SpamDetector bigrams = tested && model.usesBigrams()
+                ? (SpamDetector) model : SpamDetector.train(true, selector);
+
+        Map<String, Object> wordsResult = compareResult(words);
+        Map<String, Object> bigramsResult = compareResult(bigrams);
+
+        BigramTrainer trainer = bigrams.getBigrams();
+        Map<String, Object> training = new TreeMap<>();
+        training.put("minCount", trainer.minCount());
+        training.put("memoryBudgetBytes", trainer.memoryBytes());
+        training.put("sketchBytes", trainer.sketchBytes());
+        training.put("sketchDepth", trainer.sketchDepth());
+        training.put("sketchWidth", trainer.sketchWidth());
+        training.put("maxCandidates", trainer.maxCandidates());
+        training.put("bigramsCounted", trainer.bigramsCounted());
+        training.put("candidates", trainer.candidates());
+        training.put("promoted", trainer.promoted());
+        // Candidates only the sketch's overestimates let through
+        training.put("falseCandidates", trainer.candidates() - trainer.promoted());
+        training.put("trainingMillis", trainer.trainingNanos() / 1e6);
+
+        double wordsMicros = (Double) wordsResult.get("meanMicrosPerEmail");
+        double bigramsMicros = (Double) bigramsResult.get("meanMicrosPerEmail");
+
+        Map<String, Object> result = new TreeMap<>();
+        result.put("active", model.usesBigrams());
+        result.put("words", wordsResult);
+        result.put("bigrams", bigramsResult);
+        result.put("bigramTraining", training);
+        result.put("accuracyGain", (Double) bigramsResult.get("accuracy") - (Double) wordsResult.get("accuracy"));
+        result.put("latencyRatio", wordsMicros == 0 ? 1.0 : bigramsMicros / wordsMicros);
+        return result;
+    }
+
+    /**
+     * Compares a SpamDetector that keeps every word with pruned ones (see FeatureSelector): first pruned by
+     * the filters of the spamdetector.prune.* settings only, then also down to fewer and fewer words, ranked
+     * both ways. One unpruned model is trained per ranking and pruned further for every row; pruning a pruned
+     * model keeps the same words as pruning the whole model, as each word is ranked on its own counts.
+     *
+     * @return The comparison, ready to serialize.
+     */
+    private Map<String, Object> pruningResult() {
+        FeatureSelector configured = FeatureSelector.fromConfig();
+        SortedSet<Integer> sizes = new TreeSet<>(Comparator.reverseOrder());
+        sizes.addAll(PRUNING_TOP_K);
+        if (configured.topK() > 0)
+            sizes.add(configured.topK());
+
+        Map<String, Object> unpruned = null;
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String rankBy : List.of("mi", "distance")) {
+            SpamDetector detector = SpamDetector.train(model.usesBigrams(), null);
+            if (unpruned == null) {
+                unpruned = compareResult(detector);
+                unpruned.put("modelFileBytes", ModelFile.fileSize(detector));
+            }
+
+            // Top K 0 is the filters alone, if they drop any words
+            FeatureSelector selector = configured.rankedBy(rankBy);
+            List<Integer> rows = new ArrayList<>(sizes);
+            if (selector.withTopK(0).isActive())
+                rows.add(0, 0);
+            // What each stage dropped in all, as every row prunes the model of the row before
+            int rare = 0;
+            int stopWords = 0;
+            int unscored = 0;
+            for (int topK : rows) {
+                if (topK >= detector.vocabulary.size())
+                    continue;
+                detector.prune(selector.withTopK(topK));
+                FeatureSelector.Selection selection = detector.getPruning();
+                rare += selection.rare;
+                stopWords += selection.stopWords;
+                unscored += selection.unscored;
+
+                Map<String, Object> result = compareResult(detector);
+                result.put("rankBy", rankBy);
+                result.put("topK", topK);
+                result.put("active", topK == configured.topK() && rankBy.equals(configured.rankBy()));
+                result.put("modelFileBytes", ModelFile.fileSize(detector));
+                result.put("accuracyLoss", (Double) unpruned.get("accuracy") - (Double) result.get("accuracy"));
+                result.put("droppedRare", rare);
+                result.put("droppedStopWords", stopWords);
+                result.put("droppedUnscored", unscored);
+                results.add(result);
+            }
+        }
+
+        Map<String, Object> pruning = new TreeMap<>();
+        pruning.put("settings", configured.toString());
+        pruning.put("unpruned", unpruned);
+        pruning.put("pruned", results);
+        return pruning;
+    }
+
+    /**
+     * Scores the test emails with a model compared with the one tested here.
+     *
+     * @return The test results of the model and the mean time to score an email, ready to serialize.
+     */
+    private Map<String, Object> compareResult(SpamDetector compared) {
+        // Warm up first; the sources list the emails in the same order every time
+        scoreAll(compared, ScoringMode.DEFAULT, (name, spam, spamProbability) -> { });
+
+        ConfusionMatrix confusion = new ConfusionMatrix();
+        long start = System.nanoTime();
+        scoreAll(compared, ScoringMode.DEFAULT, (name, spam, spamProbability) -> confusion.add(spam, spamProbability > 0.5));
+        long nanos = System.nanoTime() - start;
+
+        Map<String, Object> result = new TreeMap<>();
+        result.put("vocabularySize", compared.vocabulary.size());
+        result.put("accuracy", confusion.accuracy());
+        result.put("precision", confusion.precision());
+        result.put("recall", confusion.recall());
+        result.put("falsePositiveRate", confusion.falsePositiveRate());
+        result.put("meanMicrosPerEmail", files.length == 0 ? 0.0 : nanos / 1e3 / files.length);
+        return result;
+    }
+
+    /**
+     * Counts the rows of the results table that match a class filter.
+     *
+     * @param actualClass  "ham", "spam" or "all".
+     * @return             The number of matching rows.
+     */
+    public int countResults(String actualClass) {
+        switch (actualClass) {
+            case "ham": return hamCount;
+            case "spam": return files.length - hamCount;
+            default: return files.length;
+        }
+    }
+
+    /**
+     * Streams a page of the results table as a JSON array, one row at a time, so the memory used does not
+     * depend on the number of rows. Each row looks like:
+     * {"actualClass":"ham", "file":"00006.654c4", "spamProbRounded":"0.00000", "spamProbability":5.901957E-62}
+     *
+     * @param out          Where the JSON is written. It is flushed, not closed.
+     * @param offset       Number of matching rows to skip.
+     * @param limit        Maximum number of rows to write.
+     * @param actualClass  Which test emails to list: "ham", "spam" or "all".
+     * @throws IOException if the JSON cannot be written
+     */
+    public void writeResults(OutputStream out, int offset, int limit, String actualClass) throws IOException {
+        long startTime = System.nanoTime();
+
+        // Ham rows come first, so every class filter is one contiguous range of rows
+        int from = "spam".equals(actualClass) ? hamCount : 0;
+        int to = "ham".equals(actualClass) ? hamCount : files.length;
+        from = (int) Math.min(to, (long) from + offset);
+        to = (int) Math.min(to, (long) from + limit);
+
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartArray();
+            for (int row = from; row < to; row++) {
+                // Same fields, in the same (alphabetical) order, as the rows used to have
+                json.writeStartObject();
+                json.writeStringField("actualClass", actualSpam[row] ? "spam" : "ham");
+                json.writeStringField("file", files[row]);
+                json.writeStringField("spamProbRounded", rounded[row]);
+                json.writeNumberField("spamProbability", probabilities[row]);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+        out.flush();
+
+        SpamMetrics.SERIALIZE.record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * This method constructs a response that streams a page of the spam results as a JSON array.
+     * The response will be formatted with necessary headers for CORS and content type, and is gzipped
+     * when the client accepts it. The X-Total-Count header holds the number of rows matching the filter.
+     *
+     * @param offset       Number of matching rows to skip.
+     * @param limit        Maximum number of rows to return.
+     * @param actualClass  Which test emails to list: "ham", "spam" or "all".
+     * @param gzip         True to gzip the response.
+     * @return A Response object streaming the results as JSON.
+     */
+    public Response resultForGetSpam(int offset, int limit, String actualClass, boolean gzip) {
+        StreamingOutput results = out -> {
+            if (gzip) {
+                GZIPOutputStream compressed = new GZIPOutputStream(out, 8192);
+                writeResults(compressed, offset, limit, actualClass);
+                compressed.finish();
+            } else {
+                writeResults(out, offset, limit, actualClass);
+            }
+        };
+
+        Response.ResponseBuilder response = Response.status(200)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342") // Allow CORS
+                .header("Access-Control-Expose-Headers", "X-Total-Count")
+                .header("Content-Type", "application/json") // Set content type to JSON
+                .header("X-Total-Count", countResults(actualClass))
+                .header("Vary", "Accept-Encoding")
+                .entity(results);
+        if (gzip)
+            response.header("Content-Encoding", "gzip");
+
+        return response.build();
+    }
+
+    /**
+     * Serializes the given value to a JSON string.
+     *
+     * @param value The value to serialize.
+     * @return The JSON representation of the value.
+     */
+    private String toJson(Object value) {
+        try {
+            long start = System.nanoTime();
+            String json = objectMapper.writeValueAsString(value);
+            SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+            return json;
+        } catch (JsonProcessingException e) {
+            // Handle the exception if JSON processing fails
+            throw new RuntimeException("Error processing the result into JSON.", e);
+        }
+    }
+
+    private Response jsonResponse(String json) {
+        return Response.status(200)
+                .header("Access-Control-Allow-Origin", "http://localhost:63342") // Allow CORS
+                .header("Content-Type", "application/json") // Set content type to JSON
+                .entity(json)
+                .build();
+    }
+
+    /**
+     * This function returns the accuracy value in a response format that can be sent back as JSON.
+     * Accuracy is the share of test emails (ham and spam) that were classified correctly.
+     *
+     * @return A Response object containing the accuracy value as a JSON string.
+     */
+    public Response resultForAccuracy() {
+        return jsonResponse(toJson("Accuracy value :" + accuracy));
+    }
+
+    /**
+     * This function returns the precision value in a response format that can be sent back as JSON.
+     * Precision is the share of emails classified as spam that really are spam.
+     *
+     * @return A Response object containing the precision value as a JSON string.
+     */
+    public Response resultForPrecision() {
+        return jsonResponse(toJson("Precision value :" + precision));
+    }
+
+    /**
+     * This function returns the recall value in a response format that can be sent back as JSON.
+     * Recall is the share of spam emails that were classified as spam.
+     *
+     * @return A Response object containing the recall value as a JSON string.
+     */
+    public Response resultForRecall() {
+        return jsonResponse(toJson("Recall value :" + recall));
+    }
+
+    /**
+     * This function returns the F1 score in a response format that can be sent back as JSON.
+     * F1 is the harmonic mean of precision and recall.
+     *
+     * @return A Response object containing the F1 score as a JSON string.
+     */
+    public Response resultForF1() {
+        return jsonResponse(toJson("F1 value :" + f1));
+    }
+
+    /**
+     * This function returns the ROC curve as JSON: the area under the curve, and the true and
+     * false positive rate at a range of thresholds.
+     *
+     * @return A Response object containing the ROC result as a JSON object.
+     */
+    public Response resultForRoc() {
+        return jsonResponse(rocJson);
+    }
+
+    /**
+     * This function returns how much accuracy hashed models of a range of sizes give up compared with this
+     * model, as JSON: for every size its number of buckets and memory, its accuracy, precision, recall and
+     * false positive rate, and the share of verdicts that agree with this model. It is computed once, on
+     * the given executor, when first asked for; later calls get the same result.
+     *
+     * @param executor Runs the comparison if it has not been computed yet.
+     * @return         The comparison as a JSON object, once it is ready.
+     */
+    public CompletableFuture<String> hashingJson(Executor executor) {
+        return hashingReport.get(() -> toJson(hashingResult()), executor);
+    }
+
+    /**
+     * This function returns what bigrams gain in accuracy and cost in scoring time, as JSON: the test results
+     * and mean time to score an email of a model of single words and of one with bigrams, and how the
+     * bigrams were found. Every call trains the model not in use again, so the caller keeps the result.
+     *
+     * @return The comparison as a JSON object.
+     */
+    public String bigramsJson() {
+        return toJson(bigramResult());
+    }
+
+    /**
+     * This function returns what pruning the vocabulary saves and costs, as JSON: the size of the model file,
+     * the mean time to score an email and the test results of the model with every word, and of pruned
+     * models keeping fewer and fewer words. Every call trains the models again, so the caller keeps the result.
+     *
+     * @return The comparison as a JSON object.
+     */
+    public String pruningJson() {
+        return toJson(pruningResult());
+    }
+
+    /**
+     * This function returns how the scoring modes compare with full scoring on the test emails, as JSON:
+     * for every mode its accuracy, precision, recall, false positive rate, the share of verdicts that
+     * agree with full scoring, and the mean time to score an email. It is computed once, on the given
+     * executor, when first asked for; later calls get the same result.
+     *
+     * @param executor Runs the comparison if it has not been computed yet.
+     * @return         The comparison as a JSON object, once it is ready.
+     */
+    public CompletableFuture<String> scoringJson(Executor executor) {
+        return scoringReport.get(() -> toJson(scoringResult()), executor);
+    }
+}
@@ -0,0 +1,196 @@
+package com.spamdetector.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The binary model file format, and the writer for it. Files are read back by MappedSpamModel.
+ *
+ * All numbers are little-endian. The file starts with a 64 byte header:
+ * <pre>
+ *   0  magic "SPAMMDL1"          8 bytes
+ *   8  format version           int
+ *  12  vocabulary size V        int
+ *  16  hash table size T        int (a power of two)
+ *  20  ham training emails      int
+ *  24  spam training emails     int
+ *  28  letters length L         int
+ *  32  model flags              int (bit 0: trained with MIME parsing, bit 1: has bigrams)
+ *  36  reserved (zero)          28 bytes
+ * </pre>
+ * followed by these sections, one after the other:
+ * <pre>
+ *  log odds       double[V]   ln((1 - Pr(S|W)) / Pr(S|W)) per word id, 0 for words left out of the score
+ *  hash table     int[T]      word ids, -1 for an empty slot (linear probing on the word hash)
+ *  word starts    int[V + 1]  where each word's letters start; word id i spans starts[i] .. starts[i + 1]
+ *  word hashes    int[V]      Vocabulary.hash of each word
+ *  ham counts     int[V]      occurrences of each word in the ham training emails
+ *  spam counts    int[V]      occurrences of each word in the spam training emails
+ *  letters        byte[L]     the ASCII letters of all words
+ * </pre>
+ * The log odds come first so they stay 8 byte aligned.
+ */
+public final class ModelFile {
+
+    static final byte[] MAGIC = "SPAMMDL1".getBytes(StandardCharsets.US_ASCII);
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    // Tokenizer flag: the words were counted with spamdetector.tokenizer.mime on. Files written before the
+    // flag existed have 0 here, which is right: they were trained on raw emails.
+    static final int FLAG_MIME_PARSING = 1;
+
+    // Model flag: the vocabulary has bigrams, words joined by a space (see Bigrams), which are scored too
+    static final int FLAG_BIGRAMS = 2;
+
+    // Marks an empty slot of the hash table
+    static final int EMPTY = -1;
+
+    private ModelFile() {
+    }
+
+    /**
+     * @return the size of the hash table for a vocabulary: the smallest power of two at least twice its size
+     */
+    private static int hashTableSize(int size) {
+        int tableSize = 16;
+        while (tableSize < size * 2) {
+            tableSize *= 2;
+        }
+        return tableSize;
+    }
+
+    /**
+     * @param detector  A trained model.
+     * @return          The size of its model file, in bytes.
+     */
+    public static long fileSize(SpamDetector detector) {
+        Vocabulary vocabulary = detector.vocabulary;
+        return fileSize(vocabulary.size(), hashTableSize(vocabulary.size()), lettersLength(vocabulary));
+    }
+
+    private static long fileSize(int size, int tableSize, int lettersLength) {
+        return HEADER_SIZE + 8L * size + 4L * tableSize + 4L * (size + 1) + 3 * 4L * size + lettersLength;
+    }
+
+    private static int lettersLength(Vocabulary vocabulary) {
+        int lettersLength = 0;
+        for (int id = 0; id < vocabulary.size(); id++) {
+            lettersLength += vocabulary.lengthOf(id);
+        }
+        return lettersLength;
+    }
+
+    /**
+     * Writes a trained model to a file. The file is written next to the target first and then moved
+     * into place, so a model that is being loaded is never seen half written.
+     *
+     * @param detector  The trained model.
+     * @param file      Where to write the model.
+     * @throws IOException if the file could not be written
+     */
+    public static void write(SpamDetector detector, Path file) throws IOException {
+        Vocabulary vocabulary = detector.vocabulary;
+        int size = vocabulary.size();
+
+        int lettersLength = lettersLength(vocabulary);
+        int[] slots = hashTable(vocabulary);
+        long fileSize = fileSize(size, slots.length, lettersLength);
+        if (fileSize > Integer.MAX_VALUE)
+            throw new IOException("The model is too large for the model file format: " + fileSize + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) fileSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Header
+        buffer.put(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(size);
+        buffer.putInt(slots.length);
+        buffer.putInt(detector.totalHamCount);
+        buffer.putInt(detector.trainSpamCount);
+        buffer.putInt(lettersLength);
+        buffer.putInt((EmailTokenizer.MIME_PARSING ? FLAG_MIME_PARSING : 0)
+                | (detector.usesBigrams() ? FLAG_BIGRAMS : 0));
+        buffer.position(HEADER_SIZE);
+
+        // Sections
+        for (int id = 0; id < size; id++) {
+            buffer.putDouble(detector.logOddsTable[id]);
+        }
+        for (int slot : slots) {
+            buffer.putInt(slot);
+        }
+        int start = 0;
+        for (int id = 0; id < size; id++) {
+            buffer.putInt(start);
+            start += vocabulary.lengthOf(id);
+        }
+        buffer.putInt(start);
+        for (int id = 0; id < size; id++) {
+            buffer.putInt(vocabulary.hashOf(id));
+        }
+        for (int id = 0; id < size; id++) {
+            buffer.putInt(detector.trainHamFreq.get(id));
+        }
+        for (int id = 0; id < size; id++) {
+            buffer.putInt(detector.trainSpamFreq.get(id));
+        }
+        byte[] word = new byte[64];
+        for (int id = 0; id < size; id++) {
+            int length = vocabulary.lengthOf(id);
+            if (length > word.length)
+                word = new byte[Math.max(length, word.length * 2)];
+            vocabulary.copyWord(id, word, 0);
+            buffer.put(word, 0, length);
+        }
+        buffer.flip();
+
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null)
+            Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Builds the hash table of word ids: a power of two at least twice the vocabulary size,
+     * so it is at most half full and probe sequences stay short.
+     *
+     * @param vocabulary  The words to put in the table.
+     * @return            The table, with -1 for empty slots.
+     */
+    private static int[] hashTable(Vocabulary vocabulary) {
+        int tableSize = hashTableSize(vocabulary.size());
+        int[] slots = new int[tableSize];
+        Arrays.fill(slots, EMPTY);
+        int mask = tableSize - 1;
+
+        for (int id = 0; id < vocabulary.size(); id++) {
+            int slot = vocabulary.hashOf(id) & mask;
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            slots[slot] = id;
+        }
+
+        return slots;
+    }
+}
@@ -0,0 +1,340 @@
+package com.spamdetector.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads the parts of a multipart body (multipart/form-data or multipart/mixed) one at a time.
+ * Only the part currently being read is kept in memory, so an upload of many emails is never
+ * buffered as a whole. A part body larger than the limit is not kept at all: the rest of it is skipped
+ * up to the next boundary, and the part is returned without a body (see Part.isOversized).
+ */
+public class MultipartReader {
+
+    // Longest header block accepted for a single part
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final InputStream in;
+
+    // Largest part body kept, in bytes
+    private final int maxPartBytes;
+
+    // "\r\n--" + boundary, the byte sequence that ends every part
+    private final byte[] delimiter;
+
+    // KMP failure table of the delimiter, so the boundary search never goes back in the stream
+    private final int[] failure;
+
+    // Read buffer, so the search does not call the underlying stream once per byte
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * @param in the multipart body
+     * @param boundary the boundary parameter of the Content-Type header
+     * @param maxPartBytes the largest part body kept; larger parts are skipped
+     */
+    public MultipartReader(InputStream in, String boundary, int maxPartBytes) {
+        if (maxPartBytes < 0)
+            throw new IllegalArgumentException("Multipart part size limit must not be negative: " + maxPartBytes);
+        this.in = in;
+        this.maxPartBytes = maxPartBytes;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.failure = failureTable(delimiter);
+    }
+
+    /**
+     * Extracts the boundary parameter from a multipart Content-Type header.
+     * @param contentType the Content-Type header value, e.g. multipart/form-data; boundary=abc
+     * @return the boundary, or null if the header has none
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null)
+            return null;
+
+        for (String parameter : contentType.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = trimmed.substring("boundary=".length());
+
+                // The boundary may be quoted
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+                    boundary = boundary.substring(1, boundary.length() - 1);
+
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the next part of the body.
+     * @return the next part, or null when there are no more parts
+     * @throws IOException if the body cannot be read
+     */
+    public Part nextPart() throws IOException {
+        if (finished)
+            return null;
+
+        if (!started) {
+            // Skip the preamble. The first boundary is not preceded by a line break,
+            // so the search starts as if "\r\n" had already been matched.
+            started = true;
+            if (!skipToDelimiter(2)) {
+                finished = true;
+                return null;
+            }
+        }
+
+        // After a boundary comes either "--" (end of the body) or the end of the boundary line
+        int b = read();
+        if (b == '-') {
+            b = read();
+            if (b == '-' || b == -1) {
+                finished = true;
+                return null;
+            }
+        }
+        while (b != '\n') {
+            if (b == -1) {
+                finished = true;
+                return null;
+            }
+            b = read();
+        }
+
+        // Part headers, up to the first empty line
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        int headerBytes = 0;
+
+        String header;
+        while ((header = readLine()) != null && !header.isEmpty()) {
+            headerBytes += header.length();
+            if (headerBytes > MAX_HEADER_BYTES)
+                throw new IOException("Multipart part headers are larger than " + MAX_HEADER_BYTES + " bytes");
+
+            int colon = header.indexOf(':');
+            if (colon < 0)
+                continue;
+
+            String headerName = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String headerValue = header.substring(colon + 1).trim();
+
+            if (headerName.equals("content-disposition")) {
+                name = parameterOf(headerValue, "name");
+                filename = parameterOf(headerValue, "filename");
+            } else if (headerName.equals("content-type")) {
+                contentType = headerValue;
+            }
+        }
+
+        // Part body, up to the next boundary; past the limit the bytes are only counted
+        BoundedBuffer body = new BoundedBuffer(maxPartBytes);
+        if (!readToDelimiter(body, 0))
+            finished = true;
+
+        if (body.overflowed)
+            return new Part(name, filename, contentType, null);
+        return new Part(name, filename, contentType, body.toByteArray());
+    }
+
+    /**
+     * Skips everything up to and including the next delimiter.
+     * @param alreadyMatched how many bytes of the delimiter count as already matched
+     * @return true if a delimiter was found, false if the body ended first
+     */
+    private boolean skipToDelimiter(int alreadyMatched) throws IOException {
+        return readToDelimiter(OutputStream.nullOutputStream(), alreadyMatched);
+    }
+
+    /**
+     * Copies bytes to the sink up to the next delimiter, which is consumed but not copied.
+     * @param sink where the bytes before the delimiter are written
+     * @param alreadyMatched how many bytes of the delimiter count as already matched
+     * @return true if a delimiter was found, false if the body ended first
+     */
+    private boolean readToDelimiter(OutputStream sink, int alreadyMatched) throws IOException {
+        int matched = alreadyMatched;
+        int b;
+
+        while ((b = read()) != -1) {
+            while (matched > 0 && delimiter[matched] != (byte) b) {
+                // The first bytes of the partial match turned out to be part of the body
+                int fallback = failure[matched - 1];
+                sink.write(delimiter, 0, matched - fallback);
+                matched = fallback;
+            }
+
+            if (delimiter[matched] == (byte) b) {
+                matched++;
+                if (matched == delimiter.length)
+                    return true;
+            } else {
+                sink.write(b);
+            }
+        }
+
+        // The body ended in the middle of a partial match
+        sink.write(delimiter, 0, matched);
+        return false;
+    }
+
+    /**
+     * Reads a header line ending with CRLF (or LF) as ISO-8859-1 text.
+     * @return the line without its line break, or null at the end of the body
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+
+        while ((b = read()) != '\n') {
+            if (b == -1)
+                return line.length() == 0 ? null : line.toString();
+            if (line.length() > MAX_HEADER_BYTES)
+                throw new IOException("Multipart header line is longer than " + MAX_HEADER_BYTES + " bytes");
+
+            line.append((char) b);
+        }
+
+        // Drop the carriage return of a CRLF line ending
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r')
+            line.setLength(length - 1);
+
+        return line.toString();
+    }
+
+    /**
+     * @return the next byte of the body, or -1 at its end
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    /**
+     * Finds a parameter such as name="x" in a header value.
+     * @param headerValue the header value
+     * @param parameter the parameter name
+     * @return the parameter value, or null if missing
+     */
+    private static String parameterOf(String headerValue, String parameter) {
+        for (String part : headerValue.split(";")) {
+            String trimmed = part.trim();
+            int equals = trimmed.indexOf('=');
+            if (equals > 0 && trimmed.substring(0, equals).trim().equalsIgnoreCase(parameter)) {
+                String value = trimmed.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                    value = value.substring(1, value.length() - 1);
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the KMP failure table: for each prefix, the length of its longest proper prefix that is also a suffix.
+     * @param pattern the byte pattern
+     * @return the failure table
+     */
+    private static int[] failureTable(byte[] pattern) {
+        int[] table = new int[pattern.length];
+        int k = 0;
+
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k])
+                k = table[k - 1];
+            if (pattern[i] == pattern[k])
+                k++;
+            table[i] = k;
+        }
+        return table;
+    }
+
+    /**
+     * Keeps the bytes written to it up to a limit, and drops the rest.
+     */
+    private static final class BoundedBuffer extends ByteArrayOutputStream {
+        private final int max;
+        boolean overflowed;
+
+        BoundedBuffer(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) {
+            if (count < max)
+                super.write(b);
+            else
+                overflowed = true;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            int kept = Math.min(length, max - count);
+            if (kept < length)
+                overflowed = true;
+            super.write(bytes, offset, kept);
+        }
+    }
+
+    /**
+     * One part of a multipart body.
+     */
+    public static class Part {
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private final byte[] body;
+
+        public Part(String name, String filename, String contentType, byte[] body) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        /**
+         * @return the form field name of the part, or null
+         */
+        public String getName() { return name; }
+
+        /**
+         * @return the file name of the part, or null
+         */
+        public String getFilename() { return filename; }
+
+        /**
+         * @return the Content-Type of the part, or null
+         */
+        public String getContentType() { return contentType; }
+
+        /**
+         * @return the raw bytes of the part, or null if it was larger than the limit
+         */
+        public byte[] getBody() { return body; }
+
+        /**
+         * @return true if the body was larger than the limit and was skipped
+         */
+        public boolean isOversized() { return body == null; }
+    }
+}
@@ -0,0 +1,146 @@
+package com.spamdetector.util;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3, a fast non-cryptographic hash.
+ * The result is the same as other MurmurHash3_x64_128 implementations (e.g. Guava's murmur3_128):
+ * h1 holds the first 8 bytes of the hash and h2 the last 8, both little-endian.
+ */
+final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+    }
+
+    /**
+     * Hashes a range of bytes.
+     * @param data the bytes to hash
+     * @param offset where the bytes start in the array
+     * @param length the number of bytes to hash
+     * @param seed the seed of the hash
+     * @return the two 64-bit halves of the hash, h1 then h2
+     */
+    static long[] hash128(byte[] data, int offset, int length, int seed) {
+        long[] h2 = new long[1];
+        long h1 = hash(data, offset, length, seed, h2);
+        return new long[]{h1, h2[0]};
+    }
+
+    /**
+     * Hashes a range of bytes to the first 64 bits of the 128-bit hash, without allocating.
+     * @param data the bytes to hash
+     * @param offset where the bytes start in the array
+     * @param length the number of bytes to hash
+     * @param seed the seed of the hash
+     * @return h1, the first half of the 128-bit hash
+     */
+    static long hash64(byte[] data, int offset, int length, int seed) {
+        return hash(data, offset, length, seed, null);
+    }
+
+    /**
+     * @param h2Out receives the second half of the hash, unless null
+     * @return the first half of the hash
+     */
+    @SuppressWarnings("fallthrough") // the tail switch falls through on purpose, as in the reference code
+    private static long hash(byte[] data, int offset, int length, int seed, long[] h2Out) {
+        long h1 = seed & 0xFFFFFFFFL;
+        long h2 = seed & 0xFFFFFFFFL;
+
+        // Body: 16-byte blocks
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            int block = offset + i * 16;
+            long k1 = getLong(data, block);
+            long k2 = getLong(data, block + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // Tail: the last 0 to 15 bytes
+        int tail = offset + blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xFFL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xFFL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xFFL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xFFL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xFFL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xFFL) << 8;
+            case 9:
+                k2 ^= data[tail + 8] & 0xFFL;
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= (data[tail + 7] & 0xFFL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xFFL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xFFL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xFFL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xFFL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xFFL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xFFL) << 8;
+            case 1:
+                k1 ^= data[tail] & 0xFFL;
+                h1 ^= mixK1(k1);
+            default:
+                break;
+        }
+
+        // Finalization
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        if (h2Out != null)
+            h2Out[0] = h2;
+        return h1;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Reads 8 bytes as a little-endian long.
+     */
+    private static long getLong(byte[] data, int index) {
+        return (data[index] & 0xFFL)
+                | (data[index + 1] & 0xFFL) << 8
+                | (data[index + 2] & 0xFFL) << 16
+                | (data[index + 3] & 0xFFL) << 24
+                | (data[index + 4] & 0xFFL) << 32
+                | (data[index + 5] & 0xFFL) << 40
+                | (data[index + 6] & 0xFFL) << 48
+                | (data[index + 7] & 0xFFL) << 56;
+    }
+}
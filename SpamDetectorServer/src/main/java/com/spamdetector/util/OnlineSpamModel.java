@@ -0,0 +1,310 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spamdetector.domain.FeedbackResult;
+import jakarta.ws.rs.core.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A spam model that keeps learning from labelled emails (user feedback) after training, without retraining.
+ *
+ * The log odds of a word are ln((1 - Pr(S|W)) / Pr(S|W)) with Pr(S|W) = (s/S) / (s/S + h/H), where s and h
+ * are the word's spam and ham counts and S and H the number of spam and ham emails. That is the same as
+ * ln(h/s) + ln(S/H), so the model keeps ln(h/s) per word and ln(S/H) once: learning an email only
+ * recalculates the words of that email and the one class term, never the whole vocabulary.
+ *
+ * Scoring never blocks on learning. Lookups read optimistically and only retry under the read lock
+ * if an update happened at the same time; updates take the write lock for the length of one email.
+ */
+public class OnlineSpamModel extends SpamModel implements LearningModel {
+
+    // Jackson library object to serialize results to JSON
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final StampedLock lock = new StampedLock();
+
+    // All words seen so far, in training and in feedback; the tables below are indexed by word id
+    private final Vocabulary vocabulary = new Vocabulary();
+    private final WordCounts hamCounts = new WordCounts(vocabulary);
+    private final WordCounts spamCounts = new WordCounts(vocabulary);
+
+    // ln(h/s) of every word, or NaN for words seen in only one class (Pr(S|W) of 0 or 1, left out of the score)
+    private double[] wordLogRatios = new double[1024];
+
+    // Number of ham and spam emails learned from, and ln(S/H)
+    private int hamEmails;
+    private int spamEmails;
+    private double classLogRatio;
+
+    // Counts the emails learned since the model was created
+    private volatile long version;
+
+    // Whether the model has bigrams; it learns more of the bigrams it started with, but no new ones
+    private final boolean bigrams;
+
+    /**
+     * Starts from a model trained on the corpus.
+     *
+     * @param detector  The trained model.
+     */
+    public OnlineSpamModel(SpamDetector detector) {
+        byte[] word = new byte[64];
+        for (int id = 0; id < detector.vocabulary.size(); id++) {
+            int length = detector.vocabulary.lengthOf(id);
+            if (length > word.length)
+                word = new byte[Math.max(length, word.length * 2)];
+            detector.vocabulary.copyWord(id, word, 0);
+
+            addWord(word, length, detector.trainHamFreq.get(id), detector.trainSpamFreq.get(id));
+        }
+        setEmails(detector.totalHamCount, detector.trainSpamCount);
+        this.bigrams = detector.usesBigrams();
+    }
+
+    /**
+     * Starts from a model loaded from a model file. The counts are copied to the heap, since they change.
+     *
+     * @param mapped  The loaded model.
+     */
+    public OnlineSpamModel(MappedSpamModel mapped) {
+        byte[] word = new byte[64];
+        for (int id = 0; id < mapped.vocabularySize(); id++) {
+            int length = mapped.lengthOf(id);
+            if (length > word.length)
+                word = new byte[Math.max(length, word.length * 2)];
+            mapped.copyWord(id, word, 0);
+
+            addWord(word, length, mapped.hamCount(id), mapped.spamCount(id));
+        }
+        setEmails(mapped.hamDocuments(), mapped.spamDocuments());
+        this.bigrams = mapped.usesBigrams();
+    }
+
+    /**
+     * @return true if the model has bigrams
+     */
+    @Override
+    public boolean usesBigrams() {
+        return bigrams;
+    }
+
+    /**
+     * Looks up the log odds of a word. Words seen in only one class count as 0.
+     *
+     * @param word    The lowercase ASCII letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The log odds of the word, 0, or UNKNOWN_WORD for words never seen.
+     */
+    @Override
+    public double wordLogOdds(byte[] word, int length) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                double logOdds = lookUp(word, length);
+                if (lock.validate(stamp))
+                    return logOdds;
+            } catch (RuntimeException e) {
+                // An update grew the tables while we were reading them; read again under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return lookUp(word, length);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private double lookUp(byte[] word, int length) {
+        int id = vocabulary.idOf(word, 0, length);
+        if (id < 0)
+            return UNKNOWN_WORD;
+
+        double wordLogRatio = wordLogRatios[id];
+        return Double.isNaN(wordLogRatio) ? 0.0 : wordLogRatio + classLogRatio;
+    }
+
+    /**
+     * Learns from one labelled email: adds its words to the counts of its class and counts the email.
+     * The email is tokenized before the lock is taken, so scoring is only held up while the counts of
+     * its words are updated.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         The number of words counted in the email.
+     */
+    @Override
+    public int learn(InputStream message, boolean spam) {
+        Vocabulary emailWords = new Vocabulary();
+        WordCounts emailCounts = new WordCounts(emailWords);
+        int[] words = new int[1];
+        Bigrams pairs = bigrams ? new Bigrams() : null;
+
+        try {
+            tokenizer().tokenize(message, (word, length) -> {
+                emailCounts.increment(emailWords.add(word, 0, length));
+                words[0]++;
+                if (pairs != null) {
+                    int pairLength = pairs.next(word, length);
+                    if (pairLength > 0)
+                        emailCounts.increment(emailWords.add(pairs.pair(), 0, pairLength));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Email could not be read", e);
+        }
+
+        byte[] word = new byte[64];
+        long stamp = lock.writeLock();
+        try {
+            for (int emailId = 0; emailId < emailWords.size(); emailId++) {
+                int length = emailWords.lengthOf(emailId);
+                if (length > word.length)
+                    word = new byte[Math.max(length, word.length * 2)];
+                emailWords.copyWord(emailId, word, 0);
+
+                // Only the bigrams frequent enough to be promoted in training are learned
+                int id = pairs != null && Bigrams.isBigram(word, length)
+                        ? vocabulary.idOf(word, 0, length) : vocabulary.add(word, 0, length);
+                if (id < 0)
+                    continue;
+                (spam ? spamCounts : hamCounts).add(id, emailCounts.get(emailId));
+                updateWord(id);
+            }
+
+            if (spam)
+                setEmails(hamEmails, spamEmails + 1);
+            else
+                setEmails(hamEmails + 1, spamEmails);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        return words[0];
+    }
+
+    /**
+     * @return the number of emails learned since the model was created
+     */
+    @Override
+    public long version() { return version; }
+
+    /**
+     * Learns from one labelled email and returns the updated email counts as a JSON response.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @param spam     True if the email is spam, false if it is ham.
+     * @return         A Response object containing the label, the words learned and the email counts as JSON.
+     */
+    @Override
+    public Response resultForFeedback(InputStream message, boolean spam) {
+        int words = learn(message, spam);
+
+        long stamp = lock.readLock();
+        FeedbackResult feedback;
+        try {
+            feedback = new FeedbackResult(spam ? "spam" : "ham", words, hamEmails, spamEmails);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        try {
+            long start = System.nanoTime();
+            String json = objectMapper.writeValueAsString(feedback);
+            SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+
+            return Response.status(200)
+                    .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                    .header("Content-Type", "application/json")
+                    .entity(json)
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Error processing the result into JSON.", e);
+        }
+    }
+
+    /**
+     * Builds a hashed model from the current counts (see HashedSpamModel.of).
+     *
+     * @param bits  The number of bucket bits.
+     * @return      The hashed model.
+     */
+    HashedSpamModel hashed(int bits) {
+        HashedSpamModel hashed = new HashedSpamModel(bits);
+        byte[] word = new byte[64];
+        long stamp = lock.readLock();
+        try {
+            for (int id = 0; id < vocabulary.size(); id++) {
+                int length = vocabulary.lengthOf(id);
+                if (length > word.length)
+                    word = new byte[Math.max(length, word.length * 2)];
+                vocabulary.copyWord(id, word, 0);
+                hashed.addWord(word, length, hamCounts.get(id), spamCounts.get(id));
+            }
+            hashed.finish(hamEmails, spamEmails);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return hashed;
+    }
+
+    /**
+     * @return the number of ham emails the model has learned from
+     */
+    public int hamEmails() {
+        long stamp = lock.readLock();
+        try {
+            return hamEmails;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the number of spam emails the model has learned from
+     */
+    public int spamEmails() {
+        long stamp = lock.readLock();
+        try {
+            return spamEmails;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void addWord(byte[] word, int length, int hamCount, int spamCount) {
+        int id = vocabulary.add(word, 0, length);
+        hamCounts.add(id, hamCount);
+        spamCounts.add(id, spamCount);
+        updateWord(id);
+    }
+
+    /**
+     * Recalculates ln(h/s) of one word from its counts.
+     * @param id the id of the word
+     */
+    private void updateWord(int id) {
+        if (id >= wordLogRatios.length) {
+            double[] larger = new double[Math.max(wordLogRatios.length * 2, id + 1)];
+            System.arraycopy(wordLogRatios, 0, larger, 0, wordLogRatios.length);
+            wordLogRatios = larger;
+        }
+
+        int ham = hamCounts.get(id);
+        int spam = spamCounts.get(id);
+        wordLogRatios[id] = ham > 0 && spam > 0 ? Math.log((double) ham / spam) : Double.NaN;
+    }
+
+    private void setEmails(int ham, int spam) {
+        hamEmails = ham;
+        spamEmails = spam;
+        classLogRatio = Math.log((double) spam / ham);
+    }
+}
@@ -0,0 +1,508 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tunes the model by k-fold cross-validation over the training emails: every combination of a grid of
+ * settings is trained on k - 1 folds and tested on the fold left out, for every fold, and the settings
+ * are ranked by a metric over all the emails tested. GET /api/spam/sweep runs it.
+ *
+ * The settings swept are those of the Naive Bayes model of SpamDetector:
+ * alpha     - Laplace smoothing: Pr(W|S) = (s + alpha) / (S + 2 alpha), where s is the number of times the
+ *             word occurs in the spam emails and S the number of spam emails, and the same for ham.
+ *             0 is the model as it is, where words seen in one class only are left out of the score.
+ * threshold - an email is spam when its spam probability is above it (0.5 is the model's own verdict)
+ * minCount  - words that occur fewer times than this in the training emails are left out
+ * maxWords  - only this many of the most frequent training words are kept; 0 keeps them all
+ * Words never seen in the training folds are left out whatever the settings, as in SpamDetector.
+ *
+ * Every email is read and tokenized once, into the ids and counts of its words; the folds and settings
+ * only add up counts. The folds are stratified: the ham and the spam emails are shuffled (with a fixed
+ * seed, so runs repeat) and dealt out to the folds in turn. Each setting and fold is trained and scored
+ * as one task on a pool of worker threads. Thresholds do not change the model, so they reuse its scores.
+ *
+ * Settings (lists are comma-separated):
+ * spamdetector.sweep.folds      - the number of folds k (default: 5)
+ * spamdetector.sweep.workers    - the number of worker threads (default: number of cores)
+ * spamdetector.sweep.seed       - the seed of the shuffle (default: 1)
+ * spamdetector.sweep.alphas     - default: 0,0.1,0.5,1
+ * spamdetector.sweep.thresholds - default: 0.1,0.3,0.5,0.7,0.9,0.99
+ * spamdetector.sweep.minCounts  - default: 1,2,5
+ * spamdetector.sweep.maxWords   - default: 0,20000,5000,1000
+ * spamdetector.sweep.rankBy     - accuracy, precision, recall, f1 or falsePositiveRate (default: accuracy)
+ */
+public class ParameterSweep {
+
+    // Jackson library object to serialize results to JSON
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final List<String> RANK_METRICS =
+            List.of("accuracy", "precision", "recall", "f1", "falsePositiveRate");
+
+    private final int folds;
+    private final int workers;
+    private final long seed;
+    private final double[] alphas;
+    private final double[] thresholds;
+    private final int[] minCounts;
+    private final int[] maxWords;
+    private final String rankBy;
+
+    // The training emails (spamdetector.corpus.trainHam and trainSpam, see CorpusSource)
+    private final List<CorpusSource> hamSources;
+    private final List<CorpusSource> spamSources;
+
+    /**
+     * @param folds        The number of folds, at least 2.
+     * @param workers      The number of worker threads.
+     * @param seed         The seed of the shuffle that deals the emails out to the folds.
+     * @param alphas       The Laplace smoothing constants to try, 0 or more.
+     * @param thresholds   The decision thresholds to try, from 0 to 1.
+     * @param minCounts    The minimum word counts to try, 1 or more.
+     * @param maxWords     The vocabulary sizes to try, 0 for all words.
+     * @param rankBy       The metric the settings are ranked by.
+     * @param hamSources   The ham training emails.
+     * @param spamSources  The spam training emails.
+     */
+    public ParameterSweep(int folds, int workers, long seed, double[] alphas, double[] thresholds,
+                          int[] minCounts, int[] maxWords, String rankBy,
+                          List<CorpusSource> hamSources, List<CorpusSource> spamSources) {
+        if (folds < 2)
+            throw new IllegalArgumentException("Cross-validation needs at least 2 folds: " + folds);
+        if (workers < 1)
+            throw new IllegalArgumentException("The sweep needs at least 1 worker: " + workers);
+        if (!RANK_METRICS.contains(rankBy))
+            throw new IllegalArgumentException("Settings can only be ranked by " + RANK_METRICS + ": " + rankBy);
+        for (double alpha : alphas) {
+            if (!(alpha >= 0))
+                throw new IllegalArgumentException("Smoothing alpha must be 0 or more: " + alpha);
+        }
+        for (double threshold : thresholds) {
+            if (!(threshold >= 0 && threshold < 1))
+                throw new IllegalArgumentException("Thresholds must be from 0 to 1: " + threshold);
+        }
+        for (int minCount : minCounts) {
+            if (minCount < 1)
+                throw new IllegalArgumentException("Minimum word counts must be at least 1: " + minCount);
+        }
+        for (int size : maxWords) {
+            if (size < 0)
+                throw new IllegalArgumentException("Vocabulary sizes must be 0 (all words) or more: " + size);
+        }
+
+        this.folds = folds;
+        this.workers = workers;
+        this.seed = seed;
+        this.alphas = alphas;
+        this.thresholds = thresholds;
+        this.minCounts = minCounts;
+        this.maxWords = maxWords;
+        this.rankBy = rankBy;
+        this.hamSources = hamSources;
+        this.spamSources = spamSources;
+    }
+
+    /**
+     * Creates a sweep using the spamdetector.sweep.* settings, over the training emails.
+     * @return the sweep
+     */
+    public static ParameterSweep fromConfig() {
+        return new ParameterSweep(
+                SpamConfig.getInt("spamdetector.sweep.folds", 5),
+                SpamConfig.getInt("spamdetector.sweep.workers", Runtime.getRuntime().availableProcessors()),
+                SpamConfig.getLong("spamdetector.sweep.seed", 1),
+                doubles("spamdetector.sweep.alphas", "0,0.1,0.5,1"),
+                doubles("spamdetector.sweep.thresholds", "0.1,0.3,0.5,0.7,0.9,0.99"),
+                ints("spamdetector.sweep.minCounts", "1,2,5"),
+                ints("spamdetector.sweep.maxWords", "0,20000,5000,1000"),
+                SpamConfig.getString("spamdetector.sweep.rankBy", "accuracy"),
+                CorpusSource.fromConfig("spamdetector.corpus.trainHam", "train/ham,train/ham2"),
+                CorpusSource.fromConfig("spamdetector.corpus.trainSpam", "train/spam"));
+    }
+
+    private static double[] doubles(String setting, String defaults) {
+        return Arrays.stream(SpamConfig.getString(setting, defaults).split(","))
+                .map(String::trim).filter(value -> !value.isEmpty())
+                .mapToDouble(Double::parseDouble).toArray();
+    }
+
+    private static int[] ints(String setting, String defaults) {
+        return Arrays.stream(SpamConfig.getString(setting, defaults).split(","))
+                .map(String::trim).filter(value -> !value.isEmpty())
+                .mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * One training email, tokenized once: the ids of its distinct words, sorted, and how often each occurs.
+     */
+    private static final class Document {
+        final int[] ids;
+        final int[] counts;
+        final boolean spam;
+        int fold;
+
+        Document(int[] ids, int[] counts, boolean spam) {
+            this.ids = ids;
+            this.counts = counts;
+            this.spam = spam;
+        }
+    }
+
+    /**
+     * The word counts of the emails of each fold, from which the counts of every training set are derived:
+     * the training set of a fold is every email but the fold's own.
+     */
+    private static final class FoldCounts {
+        final int[][] ham;
+        final int[][] spam;
+        final int[] hamEmails;
+        final int[] spamEmails;
+        final int[] totalHam;
+        final int[] totalSpam;
+        int totalHamEmails;
+        int totalSpamEmails;
+
+        FoldCounts(int folds, int words) {
+            ham = new int[folds][words];
+            spam = new int[folds][words];
+            hamEmails = new int[folds];
+            spamEmails = new int[folds];
+            totalHam = new int[words];
+            totalSpam = new int[words];
+        }
+    }
+
+    /**
+     * One combination of the settings that change the model. Thresholds are applied to its scores.
+     */
+    private static final class Model {
+        final double alpha;
+        final int minCount;
+        final int maxWords;
+
+        // Filled in by the fold tasks: the score ln((1 - P) / P) of every email, indexed like the documents,
+        // the words kept in each fold, and the time spent training and scoring
+        double[] logOdds;
+        long[] wordsKept;
+        long nanos;
+
+        Model(double alpha, int minCount, int maxWords) {
+            this.alpha = alpha;
+            this.minCount = minCount;
+            this.maxWords = maxWords;
+        }
+    }
+
+    /**
+     * Runs the sweep.
+     *
+     * @return The settings ranked by the rankBy metric, with their metrics and time, ready to serialize.
+     */
+    public Map<String, Object> run() {
+        long start = System.nanoTime();
+
+        // Read and tokenize every email once
+        Vocabulary vocabulary = new Vocabulary();
+        List<Document> documents = new ArrayList<>();
+        tokenize(hamSources, false, vocabulary, documents);
+        tokenize(spamSources, true, vocabulary, documents);
+        long tokenizeNanos = System.nanoTime() - start;
+
+        assignFolds(documents);
+        FoldCounts counts = countFolds(documents, vocabulary.size());
+
+        List<Model> models = new ArrayList<>();
+        for (double alpha : alphas) {
+            for (int minCount : minCounts) {
+                for (int size : maxWords) {
+                    models.add(new Model(alpha, minCount, size));
+                }
+            }
+        }
+
+        trainAndScore(models, documents, counts, vocabulary.size());
+
+        // One row per model and threshold
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Model model : models) {
+            for (double threshold : thresholds) {
+                ConfusionMatrix confusion = new ConfusionMatrix();
+                for (int i = 0; i < documents.size(); i++) {
+                    double spamProbability = 1 / (1 + Math.pow(Math.E, model.logOdds[i]));
+                    confusion.add(documents.get(i).spam, spamProbability > threshold);
+                }
+
+                Map<String, Object> row = new TreeMap<>();
+                row.put("alpha", model.alpha);
+                row.put("threshold", threshold);
+                row.put("minCount", model.minCount);
+                row.put("maxWords", model.maxWords);
+                row.put("meanWordsKept", (double) Arrays.stream(model.wordsKept).sum() / folds);
+                row.put("accuracy", confusion.accuracy());
+                row.put("precision", confusion.precision());
+                row.put("recall", confusion.recall());
+                row.put("f1", confusion.f1());
+                row.put("falsePositiveRate", confusion.falsePositiveRate());
+                row.put("millis", model.nanos / 1e6);
+                rows.add(row);
+            }
+        }
+
+        // Best first; a lower false positive rate is better, every other metric is better higher.
+        // Equal settings keep the order of the grid.
+        Comparator<Map<String, Object>> byMetric = Comparator.comparingDouble(row -> (Double) row.get(rankBy));
+        rows.sort("falsePositiveRate".equals(rankBy) ? byMetric : byMetric.reversed());
+        for (int rank = 0; rank < rows.size(); rank++) {
+            rows.get(rank).put("rank", rank + 1);
+        }
+
+        Map<String, Object> sweep = new TreeMap<>();
+        sweep.put("folds", folds);
+        sweep.put("emails", documents.size());
+        sweep.put("words", vocabulary.size());
+        sweep.put("rankBy", rankBy);
+        sweep.put("tokenizeMillis", tokenizeNanos / 1e6);
+        sweep.put("wallMillis", (System.nanoTime() - start) / 1e6);
+        sweep.put("settings", rows);
+        return sweep;
+    }
+
+    /**
+     * Tokenizes every email of the sources into a document.
+     */
+    private static void tokenize(List<CorpusSource> sources, boolean spam, Vocabulary vocabulary,
+                                 List<Document> documents) {
+        EmailTokenizer tokenizer = new EmailTokenizer();
+        int[][] ids = {new int[1024]};
+        int[] length = {0};
+        EmailTokenizer.TokenSink sink = (word, wordLength) -> {
+            if (length[0] == ids[0].length)
+                ids[0] = Arrays.copyOf(ids[0], length[0] * 2);
+            ids[0][length[0]++] = vocabulary.add(word, 0, wordLength);
+        };
+
+        for (CorpusSource source : sources) {
+            try {
+                source.forEach(email -> {
+                    length[0] = 0;
+                    email.tokenize(tokenizer, sink);
+                    documents.add(document(ids[0], length[0], spam));
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the emails of " + source.getLocation(), e);
+            }
+        }
+    }
+
+    /**
+     * Turns the word ids of an email, in the order they occur, into its distinct ids and their counts.
+     */
+    private static Document document(int[] ids, int length, boolean spam) {
+        Arrays.sort(ids, 0, length);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1])
+                distinct++;
+        }
+
+        int[] wordIds = new int[distinct];
+        int[] counts = new int[distinct];
+        int word = -1;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1])
+                wordIds[++word] = ids[i];
+            counts[word]++;
+        }
+        return new Document(wordIds, counts, spam);
+    }
+
+    /**
+     * Shuffles the ham and the spam emails and deals each out to the folds in turn, so every fold holds the
+     * same share of spam.
+     */
+    private void assignFolds(List<Document> documents) {
+        Random random = new Random(seed);
+        for (boolean spam : new boolean[]{false, true}) {
+            List<Document> ofClass = new ArrayList<>();
+            for (Document document : documents) {
+                if (document.spam == spam)
+                    ofClass.add(document);
+            }
+            Collections.shuffle(ofClass, random);
+            for (int i = 0; i < ofClass.size(); i++) {
+                ofClass.get(i).fold = i % folds;
+            }
+        }
+    }
+
+    private FoldCounts countFolds(List<Document> documents, int words) {
+        FoldCounts counts = new FoldCounts(folds, words);
+        for (Document document : documents) {
+            int[] foldCounts = document.spam ? counts.spam[document.fold] : counts.ham[document.fold];
+            int[] total = document.spam ? counts.totalSpam : counts.totalHam;
+            for (int i = 0; i < document.ids.length; i++) {
+                foldCounts[document.ids[i]] += document.counts[i];
+                total[document.ids[i]] += document.counts[i];
+            }
+            if (document.spam) {
+                counts.spamEmails[document.fold]++;
+                counts.totalSpamEmails++;
+            } else {
+                counts.hamEmails[document.fold]++;
+                counts.totalHamEmails++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Trains every model on every fold's training set and scores the fold's own emails, one task per model
+     * and fold on the worker threads.
+     */
+    private void trainAndScore(List<Model> models, List<Document> documents, FoldCounts counts, int words) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "spam-sweep-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            // The rank of every word by its count in each fold's training set, for the vocabulary sizes
+            List<Future<int[]>> ranks = new ArrayList<>();
+            for (int fold = 0; fold < folds; fold++) {
+                int heldOut = fold;
+                ranks.add(executor.submit(() -> rankWords(counts, heldOut, words)));
+            }
+            int[][] wordRanks = new int[folds][];
+            for (int fold = 0; fold < folds; fold++) {
+                wordRanks[fold] = ranks.get(fold).get();
+            }
+
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Model model : models) {
+                model.logOdds = new double[documents.size()];
+                model.wordsKept = new long[folds];
+                for (int fold = 0; fold < folds; fold++) {
+                    int heldOut = fold;
+                    tasks.add(executor.submit(() -> trainAndScore(model, heldOut, documents, counts, wordRanks[heldOut])));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sweeping the settings", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Sweeping the settings failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the rank of every word id by its count in the training set of a fold, most frequent first;
+     *         equal counts are ranked by id
+     */
+    private static int[] rankWords(FoldCounts counts, int fold, int words) {
+        long[] keys = new long[words];
+        for (int id = 0; id < words; id++) {
+            // The count in the high half, inverted so the most frequent words sort first, and the id below it
+            long count = (long) counts.totalHam[id] - counts.ham[fold][id] + counts.totalSpam[id] - counts.spam[fold][id];
+            keys[id] = (Integer.MAX_VALUE - Math.min(count, Integer.MAX_VALUE)) << 32 | id;
+        }
+        Arrays.sort(keys);
+
+        int[] ranks = new int[words];
+        for (int rank = 0; rank < words; rank++) {
+            ranks[(int) keys[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    /**
+     * Trains one model on the training set of a fold and scores the emails of the fold.
+     */
+    private static void trainAndScore(Model model, int fold, List<Document> documents, FoldCounts counts,
+                                      int[] wordRanks) {
+        long start = System.nanoTime();
+        int words = wordRanks.length;
+        int hamEmails = counts.totalHamEmails - counts.hamEmails[fold];
+        int spamEmails = counts.totalSpamEmails - counts.spamEmails[fold];
+
+        // ln((1 - Pr(S|W)) / Pr(S|W)) of every word, computed as SpamDetector does; 0 for words left out
+        double[] logOdds = new double[words];
+        long kept = 0;
+        for (int id = 0; id < words; id++) {
+            int ham = counts.totalHam[id] - counts.ham[fold][id];
+            int spam = counts.totalSpam[id] - counts.spam[fold][id];
+            if (ham + spam == 0 || ham + spam < model.minCount || (model.maxWords > 0 && wordRanks[id] >= model.maxWords))
+                continue;
+            kept++;
+
+            double prSpamWord = (spam + model.alpha) / (spamEmails + 2 * model.alpha);
+            double prHamWord = (ham + model.alpha) / (hamEmails + 2 * model.alpha);
+            double probIsSpam = prSpamWord / (prSpamWord + prHamWord);
+            if (probIsSpam != 0 && probIsSpam != 1)
+                logOdds[id] = Math.log((1 - probIsSpam) / probIsSpam);
+        }
+
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            if (document.fold != fold)
+                continue;
+            double n = 0;
+            for (int w = 0; w < document.ids.length; w++) {
+                n += document.counts[w] * logOdds[document.ids[w]];
+            }
+            model.logOdds[i] = n;
+        }
+
+        model.wordsKept[fold] = kept;
+        synchronized (model) {
+            model.nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * This function returns the settings ranked by cross-validation as JSON: for every combination of
+     * alpha, threshold, minCount and maxWords its accuracy, precision, recall, F1, false positive rate, the
+     * words it kept and the time it took. Every call runs the sweep again; SpamModelHolder keeps the result.
+     *
+     * @return The ranked settings as a JSON object.
+     */
+    public String sweepJson() {
+        return toJson(run());
+    }
+
+    private String toJson(Object value) {
+        try {
+            long start = System.nanoTime();
+            String json = objectMapper.writeValueAsString(value);
+            SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+            return json;
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Error processing the result into JSON.", e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.spamdetector.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations precise enough for percentiles, laid out like an HdrHistogram: values below
+ * SUB_BUCKETS nanoseconds have a counter each, and above that every power of two is split into
+ * SUB_BUCKETS / 2 counters of equal width. A percentile is therefore off by less than 2 / SUB_BUCKETS
+ * (under 1%) at any scale, from nanoseconds to minutes, while the whole histogram takes under 20 KB
+ * however many values it holds. LatencyHistogram, with one bucket per power of two, is coarser but what
+ * Prometheus expects.
+ *
+ * Any number of threads can record at once.
+ */
+public class PercentileHistogram {
+
+    // Counters per power of two of the lowest range; a power of two, which sets the precision
+    static final int SUB_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    // Values from 2^MAX_BITS ns (about 18 minutes) up are counted in the last counter
+    static final int MAX_BITS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + HALF * (MAX_BITS - SUB_BUCKET_BITS));
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one duration.
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(Math.min(indexOf(nanos), counts.length() - 1));
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * @return the counter of a value: the value itself below SUB_BUCKETS, then HALF counters per power of two
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        // The top SUB_BUCKET_BITS bits of the value pick the counter within its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * @return the highest value counted by a counter
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) (HALF + (index - SUB_BUCKETS) % HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long count() { return count.sum(); }
+
+    /**
+     * @return the mean of the durations recorded in nanoseconds, or 0 if there are none
+     */
+    public double meanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sumNanos.sum() / n;
+    }
+
+    /**
+     * @return the longest duration recorded in nanoseconds, exactly
+     */
+    public long maxNanos() { return maxNanos.get(); }
+
+    /**
+     * Returns a percentile of the durations recorded: the highest value of the counter that holds it,
+     * but never more than the longest duration recorded.
+     * @param percentile from 0 to 100, e.g. 99.9
+     * @return the duration in nanoseconds, or 0 if there are none
+     */
+    public long percentileNanos(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        // The rank of the duration to find, from 1 to total
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), maxNanos());
+        }
+        return maxNanos();
+    }
+
+    /**
+     * @return the count, mean, p50, p90, p99, p99.9 and max of the durations, in milliseconds
+     */
+    public String summary() {
+        return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+                count(), meanNanos() / 1e6, percentileNanos(50) / 1e6, percentileNanos(90) / 1e6,
+                percentileNanos(99) / 1e6, percentileNanos(99.9) / 1e6, maxNanos() / 1e6);
+    }
+}
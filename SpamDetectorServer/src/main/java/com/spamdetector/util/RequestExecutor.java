@@ -0,0 +1,186 @@
+package com.spamdetector.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the classification requests off the container's worker threads, so a slow client uploading a large
+ * email only ties up a thread of this executor and the container keeps accepting requests.
+ *
+ * On JDK 21 and later every request gets its own virtual thread: a request blocked reading from a slow
+ * client does not hold a platform thread at all. On older JDKs the requests run on a fixed pool of
+ * platform threads instead.
+ *
+ * Either way, at most maxConcurrent requests run at once and at most queueDepth more wait for their turn.
+ * A request beyond that is turned away at once (submit returns false, and the endpoint answers 429), so an
+ * overload does not pile up requests that would time out anyway. A running request includes reading its
+ * body, so the limit is much higher with virtual threads, where a request waiting for a slow client
+ * costs little more than its stack.
+ *
+ * Settings:
+ * spamdetector.async.maxConcurrent  - requests running at the same time
+ *                                     (default: 4096 with virtual threads, 256 platform threads otherwise)
+ * spamdetector.async.queueDepth     - requests waiting for a free slot (default: 1024)
+ * spamdetector.async.virtualThreads - use virtual threads when the JDK has them (default: true)
+ */
+public class RequestExecutor {
+
+    // Executors.newVirtualThreadPerTaskExecutor, or null before JDK 21
+    private static final Method VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final int maxConcurrent;
+    private final int queueDepth;
+
+    // Requests running or waiting; a request that cannot get a permit is rejected
+    private final Semaphore admitted;
+
+    // Requests running; only needed with virtual threads, as a platform pool has maxConcurrent threads
+    private final Semaphore running;
+
+    /**
+     * @param maxConcurrent the number of requests running at the same time
+     * @param queueDepth the number of requests that may wait for a free slot
+     * @param useVirtualThreads true to use virtual threads if the JDK has them
+     */
+    public RequestExecutor(int maxConcurrent, int queueDepth, boolean useVirtualThreads) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("Request concurrency must be at least 1: " + maxConcurrent);
+        if (queueDepth < 0)
+            throw new IllegalArgumentException("Request queue depth must not be negative: " + queueDepth);
+
+        this.maxConcurrent = maxConcurrent;
+        this.queueDepth = queueDepth;
+        this.admitted = new Semaphore(maxConcurrent + queueDepth);
+
+        ExecutorService virtual = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = virtual != null;
+        if (virtualThreads) {
+            this.executor = virtual;
+            this.running = new Semaphore(maxConcurrent);
+        } else {
+            // The admission semaphore bounds the queue, so the pool's own queue never grows past queueDepth
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+                Thread thread = new Thread(runnable, "spam-request-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.running = null;
+        }
+    }
+
+    /**
+     * Creates a request executor using the spamdetector.async.* settings.
+     * @return the request executor
+     */
+    public static RequestExecutor fromConfig() {
+        boolean useVirtualThreads = SpamConfig.getBoolean("spamdetector.async.virtualThreads", true);
+        int defaultConcurrency = useVirtualThreads && VIRTUAL_THREAD_EXECUTOR != null ? 4096 : 256;
+
+        return new RequestExecutor(
+                SpamConfig.getInt("spamdetector.async.maxConcurrent", defaultConcurrency),
+                SpamConfig.getInt("spamdetector.async.queueDepth", 1024),
+                useVirtualThreads);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() exists from JDK 21 on. The project still targets Java 11,
+     * so it is looked up at run time.
+     * @return the method, or null if this JDK has no virtual threads
+     */
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a new virtual thread per task executor, or null if this JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (VIRTUAL_THREAD_EXECUTOR == null)
+            return null;
+
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs a request, unless too many requests are already running or waiting.
+     *
+     * @param request the request to run
+     * @return true if the request will run, false if it was rejected because of overload
+     */
+    public boolean submit(Runnable request) {
+        if (!admitted.tryAcquire()) {
+            SpamMetrics.recordRejectedRequest();
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    if (running == null) {
+                        request.run();
+                    } else {
+                        runLimited(request);
+                    }
+                } finally {
+                    admitted.release();
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            // Shutting down
+            admitted.release();
+            SpamMetrics.recordRejectedRequest();
+            return false;
+        }
+    }
+
+    /**
+     * Runs a request on a virtual thread once one of the maxConcurrent slots is free.
+     * Waiting blocks only the virtual thread.
+     */
+    private void runLimited(Runnable request) {
+        // Not interruptible: an accepted request always gets its response
+        running.acquireUninterruptibly();
+        try {
+            request.run();
+        } finally {
+            running.release();
+        }
+    }
+
+    /**
+     * @return true if requests run on virtual threads, false if on a pool of platform threads
+     */
+    public boolean usesVirtualThreads() { return virtualThreads; }
+
+    /**
+     * @return the number of requests running at the same time
+     */
+    public int getMaxConcurrent() { return maxConcurrent; }
+
+    /**
+     * @return the number of requests that may wait for a free slot
+     */
+    public int getQueueDepth() { return queueDepth; }
+
+    /**
+     * Stops accepting requests; requests already accepted still finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,306 @@
+package com.spamdetector.util;
+
+import jakarta.ws.rs.core.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the spam probability of emails already scored, so copies of the same bulk email or newsletter
+ * are scored once instead of being tokenized and scored again every time.
+ *
+ * An email is normalized first (see EmailTokenizer.normalize: case, line ends and spacing do not count,
+ * unless MIME parsing is on), and the key is the 128-bit MurmurHash3 of the normalized bytes. The normalized
+ * email always has the same words as the original, so a hit returns exactly the probability scoring would
+ * have calculated.
+ *
+ * Every entry remembers the identity (see SpamModel.identity) and the version of the model that scored it.
+ * Once the model is replaced or learns from feedback, its old entries count as misses and are dropped when
+ * next looked up, so the cache never needs to be cleared by hand. Entries do not hold on to the model itself,
+ * so a replaced model is not kept in memory by the entries it scored.
+ *
+ * The entries are spread over independent stripes by hash, each a small LRU map with its own lock, so
+ * concurrent requests rarely wait for each other and there is no global lock.
+ *
+ * Settings:
+ * spamdetector.cache.maxEntries      - maximum number of emails remembered; 0 turns the cache off (default: 10000)
+ * spamdetector.cache.ttlSeconds      - how long an entry stays valid; 0 means until evicted (default: 0)
+ * spamdetector.cache.maxMessageBytes - larger emails are scored without caching (default: 1 MiB)
+ */
+public class ScoreCache {
+
+    // Number of independent LRU maps for a large cache; a power of two so a stripe is picked with a mask
+    private static final int MAX_STRIPES = 16;
+
+    // Seed of the content hash
+    private static final int HASH_SEED = 0x5eed5eed;
+
+    private final Stripe[] stripes;
+    private final int maxEntries;
+    private final long ttlNanos; // 0 when entries do not expire
+    private final int maxMessageBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    /**
+     * @param maxEntries the maximum number of emails remembered; 0 turns the cache off
+     * @param ttlSeconds how long an entry stays valid, or 0 to keep it until it is evicted
+     * @param maxMessageBytes emails larger than this are scored without caching
+     */
+    public ScoreCache(int maxEntries, long ttlSeconds, int maxMessageBytes) {
+        if (maxEntries < 0)
+            throw new IllegalArgumentException("Score cache size must not be negative: " + maxEntries);
+        if (ttlSeconds < 0)
+            throw new IllegalArgumentException("Score cache TTL must not be negative: " + ttlSeconds);
+        if (maxMessageBytes < 0)
+            throw new IllegalArgumentException("Score cache message size limit must not be negative: " + maxMessageBytes);
+
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxMessageBytes = maxMessageBytes;
+
+        // Small caches get fewer stripes, so every stripe still holds at least one entry
+        int stripeCount = maxEntries == 0 ? 0 : Math.min(MAX_STRIPES, Integer.highestOneBit(maxEntries));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            // Spread the entries over the stripes; the first stripes take the remainder
+            int capacity = maxEntries / stripeCount + (i < maxEntries % stripeCount ? 1 : 0);
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    /**
+     * Creates a score cache using the spamdetector.cache.* settings.
+     * @return the score cache
+     */
+    public static ScoreCache fromConfig() {
+        return new ScoreCache(
+                SpamConfig.getInt("spamdetector.cache.maxEntries", 10_000),
+                SpamConfig.getLong("spamdetector.cache.ttlSeconds", 0),
+                SpamConfig.getInt("spamdetector.cache.maxMessageBytes", 1 << 20));
+    }
+
+    /**
+     * @return true unless the cache was turned off with a size of 0
+     */
+    public boolean isEnabled() { return stripes.length > 0; }
+
+    /**
+     * @return the maximum number of emails remembered
+     */
+    public int getMaxEntries() { return maxEntries; }
+
+    /**
+     * Calculates the probability that a raw email is spam, or looks it up if the same email was scored before.
+     * The email is read into memory to hash it, unless it is larger than the message size limit; then it is
+     * scored as it streams in and not cached.
+     *
+     * @param model    The model to score with.
+     * @param message  The raw email (RFC 822 message).
+     * @return         The probability that the email is spam.
+     */
+    public double spamProbability(SpamModel model, InputStream message) {
+        if (!isEnabled())
+            return model.calculateSpamProbability(message);
+
+        byte[] email;
+        try {
+            // One byte more than the limit tells whether the email is larger than the limit
+            email = message.readNBytes((int) Math.min((long) maxMessageBytes + 1, Integer.MAX_VALUE - 8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Email could not be read", e);
+        }
+
+        if (email.length > maxMessageBytes) {
+            // Too large to keep in memory: score what was read followed by the rest of the stream
+            bypassed.increment();
+            return model.calculateSpamProbability(new SequenceInputStream(new ByteArrayInputStream(email), message));
+        }
+
+        return spamProbability(model, email, email.length);
+    }
+
+    /**
+     * Calculates the probability that a raw email is spam, or looks it up if the same email was scored before.
+     * The bytes are normalized in place, so pass a copy if the original is still needed.
+     *
+     * @param model    The model to score with.
+     * @param message  The raw email, overwritten with its normalized form.
+     * @param length   The number of bytes of the email, starting at index 0.
+     * @return         The probability that the email is spam.
+     */
+    public double spamProbability(SpamModel model, byte[] message, int length) {
+        if (!isEnabled())
+            return model.calculateSpamProbability(message, 0, length);
+        if (length > maxMessageBytes) {
+            bypassed.increment();
+            return model.calculateSpamProbability(message, 0, length);
+        }
+
+        int normalized = EmailTokenizer.normalize(message, 0, length);
+        long[] hash = Murmur3.hash128(message, 0, normalized, HASH_SEED);
+        Key key = new Key(hash[0], hash[1], normalized);
+        Stripe stripe = stripes[(int) hash[1] & (stripes.length - 1)];
+
+        // The version is read before scoring: if the model learns meanwhile, the entry is already outdated
+        long version = model.version();
+        Double cached = stripe.get(key, model.identity(), version);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        double spamProbability = model.calculateSpamProbability(message, 0, normalized);
+        stripe.put(key, new CachedScore(spamProbability, model.identity(), version,
+                ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+        return spamProbability;
+    }
+
+    /**
+     * Classifies a single raw email, through the cache, and returns the result as a JSON response.
+     *
+     * @param model    The model to score with.
+     * @param message  The raw email (RFC 822 message).
+     * @return         A Response object containing the spam probability and the verdict as JSON.
+     */
+    public Response resultForClassify(SpamModel model, InputStream message) {
+        return SpamModel.resultForClassify(spamProbability(model, message));
+    }
+
+    /** @return lookups that found a valid entry */
+    public long hits() { return hits.sum(); }
+
+    /** @return lookups that had to score the email */
+    public long misses() { return misses.sum(); }
+
+    /** @return entries dropped to make room for new ones */
+    public long evictions() { return evictions.sum(); }
+
+    /** @return entries dropped because their TTL had passed */
+    public long expirations() { return expirations.sum(); }
+
+    /** @return entries dropped because the model changed since they were scored */
+    public long invalidations() { return invalidations.sum(); }
+
+    /** @return emails scored without the cache because they were larger than the message size limit */
+    public long bypassed() { return bypassed.sum(); }
+
+    /**
+     * @return the number of entries in the cache, outdated ones that were not looked up since included
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * One LRU map of the cache, guarded by its own lock.
+     */
+    private final class Stripe {
+        private final LinkedHashMap<Key, CachedScore> entries;
+
+        Stripe(int capacity) {
+            // Access order: every get moves the entry to the end, so the eldest entry is the least recently used
+            this.entries = new LinkedHashMap<Key, CachedScore>(capacity * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CachedScore> eldest) {
+                    if (size() <= capacity)
+                        return false;
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * @return the cached probability, or null if there is no valid entry for the model version
+         */
+        synchronized Double get(Key key, long modelIdentity, long version) {
+            CachedScore entry = entries.get(key);
+            if (entry == null)
+                return null;
+
+            if (entry.modelIdentity != modelIdentity || entry.version != version) {
+                entries.remove(key);
+                invalidations.increment();
+                return null;
+            }
+            if (ttlNanos != 0 && System.nanoTime() - entry.expiresAt > 0) {
+                entries.remove(key);
+                expirations.increment();
+                return null;
+            }
+            return entry.spamProbability;
+        }
+
+        synchronized void put(Key key, CachedScore entry) {
+            entries.put(key, entry);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The hash of a normalized email. Its length is kept as well, which makes collisions even less likely.
+     */
+    private static final class Key {
+        final long h1;
+        final long h2;
+        final int length;
+
+        Key(long h1, long h2, int length) {
+            this.h1 = h1;
+            this.h2 = h2;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return h1 == other.h1 && h2 == other.h2 && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            // The stripe is picked from h2, so the maps hash on the other half
+            return Long.hashCode(h1);
+        }
+    }
+
+    /**
+     * A cached score, with the identity and version of the model it is valid for.
+     */
+    private static final class CachedScore {
+        final double spamProbability;
+        final long modelIdentity;
+        final long version;
+        final long expiresAt;
+
+        CachedScore(double spamProbability, long modelIdentity, long version, long expiresAt) {
+            this.spamProbability = spamProbability;
+            this.modelIdentity = modelIdentity;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
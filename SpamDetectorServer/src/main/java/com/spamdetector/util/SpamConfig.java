@@ -0,0 +1,99 @@
+package com.spamdetector.util;
+
+import java.util.Locale;
+
+/**
+ * Reads the tunable settings of the spam detector.
+ * A setting such as "spamdetector.batch.parallelism" is read from the system property of the same name
+ * (e.g. -Dspamdetector.batch.parallelism=8), or from the environment variable SPAMDETECTOR_BATCH_PARALLELISM.
+ * If neither is set, the given default value is used.
+ */
+public final class SpamConfig {
+
+    private SpamConfig() {
+    }
+
+    /**
+     * Returns the raw value of a setting.
+     * @param name the setting name, e.g. "spamdetector.batch.parallelism"
+     * @param defaultValue the value to use when the setting is missing
+     * @return the value of the setting, or the default value
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+
+        if (value == null) {
+            // spamdetector.batch.parallelism -> SPAMDETECTOR_BATCH_PARALLELISM
+            value = System.getenv(name.replace('.', '_').toUpperCase(Locale.ROOT));
+        }
+
+        if (value == null || value.trim().isEmpty())
+            return defaultValue;
+
+        return value.trim();
+    }
+
+    /**
+     * @param name the setting name
+     * @param defaultValue the value to use when the setting is missing
+     * @return the setting as an int
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Setting " + name + " must be an integer: " + value, e);
+        }
+    }
+
+    /**
+     * @param name the setting name
+     * @param defaultValue the value to use when the setting is missing
+     * @return the setting as a long
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Setting " + name + " must be an integer: " + value, e);
+        }
+    }
+
+    /**
+     * @param name the setting name
+     * @param defaultValue the value to use when the setting is missing
+     * @return the setting as a double
+     */
+    public static double getDouble(String name, double defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Setting " + name + " must be a number: " + value, e);
+        }
+    }
+
+    /**
+     * @param name the setting name
+     * @param defaultValue the value to use when the setting is missing
+     * @return the setting as a boolean ("true" ignoring case is true, anything else is false)
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null)
+            return defaultValue;
+
+        return Boolean.parseBoolean(value);
+    }
+}
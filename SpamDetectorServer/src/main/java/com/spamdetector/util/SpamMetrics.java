@@ -0,0 +1,244 @@
+package com.spamdetector.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the hot paths (training, tokenizing, scoring, serializing),
+ * exposed in the Prometheus text format by GET /api/spam/metrics.
+ *
+ * Everything is recorded with LongAdders, so recording never takes a lock and scoring threads do not
+ * contend on shared counters. Timing every word lookup would cost more than the lookup itself, so the
+ * tokenize and lookup stages are only timed for a sample of the emails scored: one in
+ * spamdetector.metrics.lookupSampleRate (default 64). Whole-email scoring is timed for every email.
+ */
+public final class SpamMetrics {
+
+    // Time spent tokenizing an email while scoring it (sampled emails only)
+    public static final LatencyHistogram TOKENIZE = new LatencyHistogram();
+
+    // Time spent looking up the words of an email in the model (sampled emails only)
+    public static final LatencyHistogram LOOKUP = new LatencyHistogram();
+
+    // Time to score one email, tokenizing and lookups included
+    public static final LatencyHistogram SCORE = new LatencyHistogram();
+
+    // Time to serialize one response (or one batch result line) to JSON
+    public static final LatencyHistogram SERIALIZE = new LatencyHistogram();
+
+    // Time to tokenize and count one training email
+    public static final LatencyHistogram TRAIN_FILE = new LatencyHistogram();
+
+    private static final LongAdder EMAILS_SCORED = new LongAdder();
+    private static final LongAdder TOKENS_SCORED = new LongAdder();
+    private static final LongAdder UNKNOWN_TOKENS = new LongAdder();
+    private static final LongAdder BYTES_READ = new LongAdder();
+    private static final LongAdder TRAINING_EMAILS = new LongAdder();
+    private static final LongAdder REJECTED_REQUESTS = new LongAdder();
+    private static final LongAdder EARLY_EXITS = new LongAdder();
+
+    // Duration of the last training run, and of counting each training folder in it (folder -> nanoseconds)
+    private static volatile long trainingNanos = -1;
+    private static final Map<String, Long> TRAINING_FOLDER_NANOS = new ConcurrentSkipListMap<>();
+
+    private static final int LOOKUP_SAMPLE_RATE =
+            Math.max(1, SpamConfig.getInt("spamdetector.metrics.lookupSampleRate", 64));
+
+    private SpamMetrics() {
+    }
+
+    /**
+     * @return true if the tokenize and lookup stages of the next email should be timed
+     */
+    static boolean sampleLookups() {
+        return LOOKUP_SAMPLE_RATE == 1 || ThreadLocalRandom.current().nextInt(LOOKUP_SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * Records one scored email.
+     * @param nanos time to score the email
+     * @param tokens number of words in the email
+     * @param unknownTokens number of words the model did not know
+     * @param lookupNanos time spent in word lookups, or -1 if the email was not sampled
+     */
+    static void recordScore(long nanos, int tokens, int unknownTokens, long lookupNanos) {
+        SCORE.record(nanos);
+        EMAILS_SCORED.increment();
+        TOKENS_SCORED.add(tokens);
+        UNKNOWN_TOKENS.add(unknownTokens);
+
+        if (lookupNanos >= 0) {
+            LOOKUP.record(lookupNanos);
+            TOKENIZE.record(nanos - lookupNanos);
+        }
+    }
+
+    /**
+     * Counts one email whose scoring stopped early, once the verdict could no longer change (see ScoringMode).
+     */
+    static void recordEarlyExit() {
+        EARLY_EXITS.increment();
+    }
+
+    /**
+     * @param bytes number of email bytes read by a tokenizer
+     */
+    static void recordBytesRead(long bytes) {
+        BYTES_READ.add(bytes);
+    }
+
+    /**
+     * Records one tokenized and counted training email.
+     * @param nanos time to tokenize and count it
+     */
+    static void recordTrainingFile(long nanos) {
+        TRAIN_FILE.record(nanos);
+        TRAINING_EMAILS.increment();
+    }
+
+    /**
+     * @param folder the training folder, e.g. "train/spam"
+     * @param nanos time to count the words of all its emails
+     */
+    static void recordTrainingFolder(String folder, long nanos) {
+        TRAINING_FOLDER_NANOS.put(folder, nanos);
+    }
+
+    /**
+     * Counts one request turned away because too many requests were running or waiting.
+     */
+    static void recordRejectedRequest() {
+        REJECTED_REQUESTS.increment();
+    }
+
+    /**
+     * @param nanos time to train the whole model
+     */
+    static void recordTraining(long nanos) {
+        trainingNanos = nanos;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+     * @return the metrics
+     */
+    public static String toPrometheus() {
+        return toPrometheus(null);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version 0.0.4),
+     * including the hit, miss and eviction counts of a score cache.
+     * @param cache the score cache of the deployment, or null
+     * @return the metrics
+     */
+    public static String toPrometheus(ScoreCache cache) {
+        StringBuilder out = new StringBuilder(8192);
+
+        counter(out, "spamdetector_emails_scored_total", "Emails scored", EMAILS_SCORED.sum());
+        counter(out, "spamdetector_tokens_scored_total", "Words in the emails scored", TOKENS_SCORED.sum());
+        counter(out, "spamdetector_unknown_tokens_total", "Words in the emails scored that the model did not know",
+                UNKNOWN_TOKENS.sum());
+
+        counter(out, "spamdetector_scoring_early_exits_total",
+                "Emails whose scoring stopped early at the confidence bound", EARLY_EXITS.sum());
+
+        long tokens = TOKENS_SCORED.sum();
+        gauge(out, "spamdetector_unknown_token_ratio", "Share of scored words the model did not know",
+                tokens == 0 ? 0.0 : (double) UNKNOWN_TOKENS.sum() / tokens);
+
+        counter(out, "spamdetector_bytes_read_total", "Email bytes read by the tokenizer, training included",
+                BYTES_READ.sum());
+        counter(out, "spamdetector_training_emails_total", "Training emails tokenized and counted",
+                TRAINING_EMAILS.sum());
+
+        counter(out, "spamdetector_requests_rejected_total", "Classification requests rejected with 429 (overload)",
+                REJECTED_REQUESTS.sum());
+
+        long training = trainingNanos;
+        if (training >= 0)
+            gauge(out, "spamdetector_training_seconds", "Duration of the last training run", training / 1e9);
+
+        if (!TRAINING_FOLDER_NANOS.isEmpty()) {
+            header(out, "spamdetector_training_folder_seconds", "Time to count the words of a training folder",
+                    "gauge");
+            for (Map.Entry<String, Long> folder : TRAINING_FOLDER_NANOS.entrySet()) {
+                out.append("spamdetector_training_folder_seconds{folder=\"").append(labelValue(folder.getKey())).append("\"} ")
+                        .append(number(folder.getValue() / 1e9)).append('\n');
+            }
+        }
+
+        header(out, "spamdetector_stage_seconds", "Time spent in each stage of the hot path", "histogram");
+        histogram(out, "spamdetector_stage_seconds", "tokenize", TOKENIZE);
+        histogram(out, "spamdetector_stage_seconds", "lookup", LOOKUP);
+        histogram(out, "spamdetector_stage_seconds", "score", SCORE);
+        histogram(out, "spamdetector_stage_seconds", "serialize", SERIALIZE);
+        histogram(out, "spamdetector_stage_seconds", "train_file", TRAIN_FILE);
+
+        if (cache != null && cache.isEnabled()) {
+            counter(out, "spamdetector_score_cache_hits_total", "Emails whose score was found in the cache",
+                    cache.hits());
+            counter(out, "spamdetector_score_cache_misses_total", "Emails scored and added to the cache",
+                    cache.misses());
+            counter(out, "spamdetector_score_cache_evictions_total", "Cache entries dropped to make room",
+                    cache.evictions());
+            counter(out, "spamdetector_score_cache_expirations_total", "Cache entries dropped after their TTL",
+                    cache.expirations());
+            counter(out, "spamdetector_score_cache_invalidations_total",
+                    "Cache entries dropped because the model changed", cache.invalidations());
+            counter(out, "spamdetector_score_cache_bypassed_total", "Emails too large to cache",
+                    cache.bypassed());
+            gauge(out, "spamdetector_score_cache_entries", "Entries in the score cache", cache.size());
+        }
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(number(value)).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String stage, LatencyHistogram histogram) {
+        // The count is the +Inf bucket, so it always agrees with the buckets even while threads record
+        long[] cumulative = histogram.cumulativeCounts();
+        long sumNanos = histogram.sumNanos();
+
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            out.append(name).append("_bucket{stage=\"").append(stage).append("\",le=\"")
+                    .append(number(LatencyHistogram.upperBoundSeconds(i))).append("\"} ")
+                    .append(cumulative[i]).append('\n');
+        }
+        long total = cumulative[LatencyHistogram.BUCKETS];
+        out.append(name).append("_bucket{stage=\"").append(stage).append("\",le=\"+Inf\"} ")
+                .append(total).append('\n');
+        out.append(name).append("_sum{stage=\"").append(stage).append("\"} ").append(number(sumNanos / 1e9))
+                .append('\n');
+        out.append(name).append("_count{stage=\"").append(stage).append("\"} ").append(total).append('\n');
+    }
+
+    private static String number(double value) {
+        return Double.toString(value);
+    }
+
+    /**
+     * Escapes a label value for the text exposition format: backslash, double quote and line feed.
+     * @param value the raw label value, e.g. a folder name
+     * @return the value, safe to put between the double quotes of a label
+     */
+    private static String labelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,383 @@
+package com.spamdetector.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spamdetector.domain.ClassificationResult;
+import jakarta.ws.rs.core.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A trained Naive Bayes spam model that can score emails.
+ *
+ * Every model knows, for each word, the log odds ln((1 - Pr(S|W)) / Pr(S|W)) of that word. Scoring an email
+ * adds up the log odds of all its words into n, and the spam probability is 1 / (1 + e^n).
+ * Implementations only have to provide the per-word log odds; tokenizing and combining is done here.
+ */
+public abstract class SpamModel {
+
+    // Jackson library object to serialize results to JSON
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Tokenizers reuse their buffers, so every scoring thread gets its own
+    private static final ThreadLocal<EmailTokenizer> TOKENIZER = ThreadLocal.withInitial(EmailTokenizer::new);
+
+    // Numbers the models in the order they are created
+    private static final AtomicLong MODELS = new AtomicLong();
+
+    // Tells this model apart from all others, for results that must not keep the model itself alive
+    private final long identity = MODELS.incrementAndGet();
+
+    /**
+     * What wordLogOdds returns for a word the model has never seen. It counts as 0 in the score,
+     * but is told apart so the share of unknown words can be measured.
+     */
+    public static final double UNKNOWN_WORD = Double.NaN;
+
+    /**
+     * Returns the log odds ln((1 - Pr(S|W)) / Pr(S|W)) of a word.
+     * Words seen in only one class carry no usable evidence and return 0; words never seen
+     * return UNKNOWN_WORD.
+     *
+     * @param word    The lowercase ASCII letters of the word.
+     * @param length  The number of letters of the word in the array.
+     * @return        The log odds of the word, 0, or UNKNOWN_WORD.
+     */
+    public abstract double wordLogOdds(byte[] word, int length);
+
+    /**
+     * Tells whether the model also scores bigrams, pairs of adjacent words (see Bigrams). Their log odds
+     * are looked up with wordLogOdds like those of words, in the same pass over the email.
+     *
+     * @return  True if the model has bigrams.
+     */
+    public boolean usesBigrams() {
+        return false;
+    }
+
+    /**
+     * Returns the version of the model. It changes whenever the model learns, so results calculated
+     * with the model can tell when they are out of date. Models that never change always return 0.
+     *
+     * @return  The version of the model.
+     */
+    public long version() {
+        return 0;
+    }
+
+    /**
+     * @return a number no other model of this JVM has
+     */
+    long identity() {
+        return identity;
+    }
+
+    /**
+     * @return the tokenizer of the calling thread
+     */
+    static EmailTokenizer tokenizer() {
+        return TOKENIZER.get();
+    }
+
+    /**
+     * Calculates the probability that a raw email (RFC 822 message) is spam, with the default scoring mode.
+     * The message is tokenized in chunks as it arrives, it is never loaded into memory as a whole.
+     *
+     * @param message  The raw email.
+     * @return         The probability that the email is spam.
+     */
+    public double calculateSpamProbability(InputStream message) {
+        return calculateSpamProbability(message, ScoringMode.DEFAULT);
+    }
+
+    /**
+     * Calculates the probability that a raw email (RFC 822 message) is spam.
+     * The message is tokenized in chunks as it arrives, it is never loaded into memory as a whole.
+     *
+     * @param message  The raw email.
+     * @param mode     Which words of the email count.
+     * @return         The probability that the email is spam.
+     */
+    public double calculateSpamProbability(InputStream message, ScoringMode mode) {
+        long start = System.nanoTime();
+        LogOddsSink logOdds = new LogOddsSink(mode, SpamMetrics.sampleLookups());
+        try {
+            tokenizer().tokenize(message, logOdds);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Email could not be read", e);
+        }
+
+        return logOdds.spamProbability(start);
+    }
+
+    /**
+     * Calculates the probability that an email file is spam, with the default scoring mode.
+     *
+     * @param email  The email file.
+     * @return       The probability that the email is spam.
+     */
+    public double calculateSpamProbability(Path email) {
+        return calculateSpamProbability(email, ScoringMode.DEFAULT);
+    }
+
+    /**
+     * Calculates the probability that an email file is spam.
+     *
+     * @param email  The email file.
+     * @param mode   Which words of the email count.
+     * @return       The probability that the email is spam.
+     */
+    public double calculateSpamProbability(Path email, ScoringMode mode) {
+        long start = System.nanoTime();
+        LogOddsSink logOdds = new LogOddsSink(mode, SpamMetrics.sampleLookups());
+        try {
+            tokenizer().tokenize(email, logOdds);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Email file could not be read: " + email.getFileName(), e);
+        }
+
+        return logOdds.spamProbability(start);
+    }
+
+    /**
+     * Calculates the probability that a raw email held in a byte array is spam, with the default scoring mode.
+     *
+     * @param message  The raw email.
+     * @param offset   Where the email starts in the array.
+     * @param length   The number of bytes of the email.
+     * @return         The probability that the email is spam.
+     */
+    public double calculateSpamProbability(byte[] message, int offset, int length) {
+        return calculateSpamProbability(message, offset, length, ScoringMode.DEFAULT);
+    }
+
+    /**
+     * Calculates the probability that a raw email held in a byte array is spam.
+     *
+     * @param message  The raw email.
+     * @param offset   Where the email starts in the array.
+     * @param length   The number of bytes of the email.
+     * @param mode     Which words of the email count.
+     * @return         The probability that the email is spam.
+     */
+    public double calculateSpamProbability(byte[] message, int offset, int length, ScoringMode mode) {
+        long start = System.nanoTime();
+        LogOddsSink logOdds = new LogOddsSink(mode, SpamMetrics.sampleLookups());
+        tokenizer().tokenize(message, offset, length, logOdds);
+
+        return logOdds.spamProbability(start);
+    }
+
+    /**
+     * Calculates the probability that an email is spam from words that were tokenized before (see CorpusCache).
+     *
+     * @param words  Passes the words of the email to a sink, as the default tokenizer would.
+     * @param mode   Which words of the email count.
+     * @return       The probability that the email is spam.
+     */
+    double calculateSpamProbability(Consumer<EmailTokenizer.TokenSink> words, ScoringMode mode) {
+        long start = System.nanoTime();
+        LogOddsSink logOdds = new LogOddsSink(mode, SpamMetrics.sampleLookups());
+        words.accept(logOdds);
+
+        return logOdds.spamProbability(start);
+    }
+
+    /**
+     * Adds up the Naive Bayes log odds of the words of one email that the scoring mode uses, and counts
+     * its words for the metrics.
+     */
+    private class LogOddsSink implements EmailTokenizer.TokenSink {
+        final ScoringMode.Kind kind;
+        double n = 0.0;
+        int tokens = 0;
+        int unknownTokens = 0;
+
+        // Whether this email's lookups are timed (see SpamMetrics), and their total time
+        final boolean timed;
+        long lookupNanos = 0;
+
+        // Early mode: the bound, and whether the sum has passed it; later words are ignored
+        final double exitLogOdds;
+        boolean done = false;
+
+        // Top mode: the most informative distinct words so far, as their log odds and a hash of the word,
+        // and the slot of the least informative of them
+        final double[] topLogOdds;
+        final long[] topHashes;
+        int topCount = 0;
+        int weakest = 0;
+
+        // Joins each word with the one before it, if the model has bigrams
+        final Bigrams bigrams;
+
+        LogOddsSink(ScoringMode mode, boolean timed) {
+            this.kind = mode.getKind();
+            this.timed = timed;
+            this.exitLogOdds = mode.getExitLogOdds();
+            this.topLogOdds = kind == ScoringMode.Kind.TOP ? new double[mode.getTopTokens()] : null;
+            this.topHashes = kind == ScoringMode.Kind.TOP ? new long[mode.getTopTokens()] : null;
+            this.bigrams = usesBigrams() ? new Bigrams() : null;
+        }
+
+        @Override
+        public void token(byte[] word, int length) {
+            if (done)
+                return;
+
+            double logOdds = lookUp(word, length);
+            tokens++;
+            if (Double.isNaN(logOdds))
+                unknownTokens++;
+            else
+                add(word, length, logOdds);
+
+            // The bigram of the previous word and this one; most bigrams are not in the model, and are
+            // not counted as unknown words
+            if (bigrams != null) {
+                int pairLength = bigrams.next(word, length);
+                if (pairLength > 0 && !done) {
+                    logOdds = lookUp(bigrams.pair(), pairLength);
+                    if (!Double.isNaN(logOdds))
+                        add(bigrams.pair(), pairLength, logOdds);
+                }
+            }
+        }
+
+        private double lookUp(byte[] word, int length) {
+            if (!timed)
+                return wordLogOdds(word, length);
+
+            long start = System.nanoTime();
+            double logOdds = wordLogOdds(word, length);
+            lookupNanos += System.nanoTime() - start;
+            return logOdds;
+        }
+
+        /**
+         * Adds the log odds of a word (or bigram) the model knows to the score, as the mode says.
+         */
+        private void add(byte[] word, int length, double logOdds) {
+            if (kind == ScoringMode.Kind.TOP) {
+                keepIfInformative(word, length, logOdds);
+            } else {
+                n += logOdds;
+                if (kind == ScoringMode.Kind.EARLY && Math.abs(n) >= exitLogOdds)
+                    done = true;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Keeps a word if it is among the most informative distinct words so far.
+         * A word that was pushed out, or not taken, is never more informative than the weakest word kept,
+         * so only the words kept have to be checked for repeats.
+         */
+        private void keepIfInformative(byte[] word, int length, double logOdds) {
+            double size = Math.abs(logOdds);
+            // Ties go to the word seen first
+            if (size == 0 || (topCount == topLogOdds.length && size <= Math.abs(topLogOdds[weakest])))
+                return;
+
+            long hash = hash(word, length);
+            for (int i = 0; i < topCount; i++) {
+                if (topHashes[i] == hash && topLogOdds[i] == logOdds)
+                    return;
+            }
+
+            int slot = topCount < topLogOdds.length ? topCount++ : weakest;
+            topLogOdds[slot] = logOdds;
+            topHashes[slot] = hash;
+
+            weakest = 0;
+            for (int i = 1; i < topCount; i++) {
+                if (Math.abs(topLogOdds[i]) < Math.abs(topLogOdds[weakest]))
+                    weakest = i;
+            }
+        }
+
+        /**
+         * Records the email in the metrics.
+         * @param start when scoring the email started, from System.nanoTime()
+         * @return the final spam probability using sigmoid function: 1 / (1 + e^n)
+         */
+        double spamProbability(long start) {
+            if (kind == ScoringMode.Kind.TOP) {
+                for (int i = 0; i < topCount; i++) {
+                    n += topLogOdds[i];
+                }
+            }
+            if (done)
+                SpamMetrics.recordEarlyExit();
+
+            double probability = 1 / (1 + Math.pow(Math.E, n));
+            SpamMetrics.recordScore(System.nanoTime() - start, tokens, unknownTokens, timed ? lookupNanos : -1);
+            return probability;
+        }
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of a word
+     */
+    private static long hash(byte[] word, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ word[i]) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Turns a spam probability into a verdict: an email is spam when its probability is above 0.5.
+     *
+     * @param spamProbability  The probability that the email is spam.
+     * @return                 "spam" or "ham".
+     */
+    public static String verdictOf(double spamProbability) {
+        return spamProbability > 0.5 ? "spam" : "ham";
+    }
+
+    /**
+     * Classifies a single raw email and returns the result as a JSON response.
+     *
+     * @param message  The raw email (RFC 822 message).
+     * @return         A Response object containing the spam probability and the verdict as JSON.
+     */
+    public Response resultForClassify(InputStream message) {
+        return resultForClassify(calculateSpamProbability(message));
+    }
+
+    /**
+     * Turns the spam probability of an email into the JSON response of POST /classify.
+     *
+     * @param spamProbability  The probability that the email is spam.
+     * @return                 A Response object containing the spam probability and the verdict as JSON.
+     */
+    static Response resultForClassify(double spamProbability) {
+        ClassificationResult classification = new ClassificationResult(spamProbability,
+                String.format("%.5f", spamProbability), verdictOf(spamProbability));
+
+        try {
+            long start = System.nanoTime();
+            String json = objectMapper.writeValueAsString(classification);
+            SpamMetrics.SERIALIZE.record(System.nanoTime() - start);
+
+            return Response.status(200)
+                    .header("Access-Control-Allow-Origin", "http://localhost:63342")
+                    .header("Content-Type", "application/json")
+                    .entity(json)
+                    .build();
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Error processing the result into JSON.", e);
+        }
+    }
+}
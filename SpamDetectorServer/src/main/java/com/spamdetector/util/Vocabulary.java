@@ -0,0 +1,200 @@
+package com.spamdetector.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Gives every word of the training data a dense int id (0, 1, 2, ...), so word counts and probabilities can be
+ * kept in plain arrays indexed by that id instead of maps keyed by String.
+ *
+ * Words are stored as their ASCII bytes in one shared byte array and found through an open-addressing hash
+ * table, so looking up a word straight from the tokenizer's buffer needs no String and no boxing.
+ * Adding words is not thread-safe; lookups are safe from any number of threads once no more words are added.
+ */
+public class Vocabulary {
+
+    // Marks an empty slot of the hash table
+    private static final int EMPTY = -1;
+
+    // The letters of all words, one after the other
+    private byte[] letters = new byte[4096];
+    private int lettersUsed = 0;
+
+    // For each word id: where its letters start, how many there are, and its hash
+    private int[] starts = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] hashes = new int[1024];
+    private int size = 0;
+
+    // Hash table of word ids, kept at most half full so probe sequences stay short
+    private int[] slots;
+    private int mask;
+
+    public Vocabulary() {
+        slots = new int[2048];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+    }
+
+    /**
+     * @return the number of words in the vocabulary; ids go from 0 to size() - 1
+     */
+    public int size() { return size; }
+
+    /**
+     * Looks up a word without adding it.
+     * @param word the array holding the word's lowercase letters
+     * @param offset where the word starts in the array
+     * @param length the number of letters of the word
+     * @return the id of the word, or -1 if the word is not in the vocabulary
+     */
+    public int idOf(byte[] word, int offset, int length) {
+        int hash = hash(word, offset, length);
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY)
+                return -1;
+            if (hashes[id] == hash && sameWord(id, word, offset, length))
+                return id;
+        }
+    }
+
+    /**
+     * @param word the word to look up
+     * @return the id of the word, or -1 if the word is not in the vocabulary
+     */
+    public int idOf(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.US_ASCII);
+        return idOf(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the id of a word, adding the word to the vocabulary first if it is new.
+     * @param word the array holding the word's lowercase letters
+     * @param offset where the word starts in the array
+     * @param length the number of letters of the word
+     * @return the id of the word
+     */
+    public int add(byte[] word, int offset, int length) {
+        int hash = hash(word, offset, length);
+
+        int slot = hash & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY)
+                break;
+            if (hashes[id] == hash && sameWord(id, word, offset, length))
+                return id;
+        }
+
+        // New word: store its letters and give it the next id
+        int id = size++;
+        if (id == starts.length) {
+            starts = Arrays.copyOf(starts, id * 2);
+            lengths = Arrays.copyOf(lengths, id * 2);
+            hashes = Arrays.copyOf(hashes, id * 2);
+        }
+        if (lettersUsed + length > letters.length)
+            letters = Arrays.copyOf(letters, Math.max(letters.length * 2, lettersUsed + length));
+
+        System.arraycopy(word, offset, letters, lettersUsed, length);
+        starts[id] = lettersUsed;
+        lengths[id] = length;
+        hashes[id] = hash;
+        lettersUsed += length;
+
+        slots[slot] = id;
+        if (size * 2 > slots.length)
+            grow();
+
+        return id;
+    }
+
+    /**
+     * @param word the word to add
+     * @return the id of the word
+     */
+    public int add(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.US_ASCII);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the word with that id
+     */
+    public String word(int id) {
+        return new String(letters, starts[id], lengths[id], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the hash of the word, as used by the vocabulary's hash table
+     */
+    public int hashOf(int id) { return hashes[id]; }
+
+    /**
+     * Copies the letters of a word into an array.
+     * @param id the id of a word
+     * @param destination where the letters are copied
+     * @param offset where in the destination the letters start
+     * @return the number of letters copied
+     */
+    public int copyWord(int id, byte[] destination, int offset) {
+        System.arraycopy(letters, starts[id], destination, offset, lengths[id]);
+        return lengths[id];
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the number of letters of the word
+     */
+    public int lengthOf(int id) { return lengths[id]; }
+
+    /**
+     * Hashes a word (FNV-1a, with the high bits folded in since the table uses the low bits).
+     * @param word the array holding the word
+     * @param offset where the word starts in the array
+     * @param length the number of letters of the word
+     * @return the hash of the word
+     */
+    public static int hash(byte[] word, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ word[i]) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean sameWord(int id, byte[] word, int offset, int length) {
+        if (lengths[id] != length)
+            return false;
+
+        int start = starts[id];
+        for (int i = 0; i < length; i++) {
+            if (letters[start + i] != word[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Doubles the hash table and re-inserts every word id.
+     */
+    private void grow() {
+        int[] larger = new int[slots.length * 2];
+        Arrays.fill(larger, EMPTY);
+        int largerMask = larger.length - 1;
+
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & largerMask;
+            while (larger[slot] != EMPTY)
+                slot = (slot + 1) & largerMask;
+            larger[slot] = id;
+        }
+
+        slots = larger;
+        mask = largerMask;
+    }
+}
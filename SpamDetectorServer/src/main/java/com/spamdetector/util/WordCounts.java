@@ -0,0 +1,183 @@
+package com.spamdetector.util;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Counts how often each word of a Vocabulary occurs, in an int array indexed by word id, and how many
+ * emails the words came from. Counts built on the same vocabulary can be merged with a simple array add.
+ * The document frequency of each word, the number of emails it was counted in, is kept alongside: the
+ * words of one email are counted between two calls of addEmail.
+ */
+public class WordCounts {
+
+    private final Vocabulary vocabulary;
+
+    // counts[id] is the number of times the word with that id was counted
+    private int[] counts;
+
+    // documents[id] is the number of emails the word was counted in; lastEmail[id] is the last of them,
+    // numbered from 1, so a word counted several times in one email is in one more document, not several
+    private int[] documents;
+    private int[] lastEmail;
+
+    // The number of emails whose words were counted
+    private int emails;
+
+    /**
+     * @param vocabulary the vocabulary the word ids belong to
+     */
+    public WordCounts(Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        this.counts = new int[Math.max(16, vocabulary.size())];
+        this.documents = new int[counts.length];
+        this.lastEmail = new int[counts.length];
+    }
+
+    /**
+     * @return the vocabulary the word ids belong to
+     */
+    public Vocabulary getVocabulary() { return vocabulary; }
+
+    /**
+     * @return the number of emails whose words were counted
+     */
+    public int getEmails() { return emails; }
+
+    /**
+     * Counts one more email; its words are counted with increment before.
+     */
+    public void addEmail() {
+        emails++;
+    }
+
+    /**
+     * Counts emails whose words are added with add(id, count, documents).
+     * @param count the number of emails
+     */
+    public void addEmails(int count) {
+        emails += count;
+    }
+
+    /**
+     * Adds one occurrence of a word.
+     * @param id the id of the word
+     */
+    public void increment(int id) {
+        add(id, 1);
+    }
+
+    /**
+     * Adds occurrences of a word in the email being counted.
+     * @param id the id of the word
+     * @param count the number of occurrences to add
+     */
+    public void add(int id, int count) {
+        if (id >= counts.length)
+            grow(id);
+        counts[id] += count;
+        if (lastEmail[id] != emails + 1) {
+            lastEmail[id] = emails + 1;
+            documents[id]++;
+        }
+    }
+
+    /**
+     * Adds occurrences of a word counted elsewhere, and the number of emails they were in.
+     * @param id the id of the word
+     * @param count the number of occurrences to add
+     * @param documents the number of emails they were in
+     */
+    public void add(int id, int count, int documents) {
+        if (id >= counts.length)
+            grow(id);
+        counts[id] += count;
+        this.documents[id] += documents;
+    }
+
+    private void grow(int id) {
+        int length = Math.max(counts.length * 2, id + 1);
+        counts = Arrays.copyOf(counts, length);
+        documents = Arrays.copyOf(documents, length);
+        lastEmail = Arrays.copyOf(lastEmail, length);
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the number of times the word was counted
+     */
+    public int get(int id) {
+        return id < counts.length ? counts[id] : 0;
+    }
+
+    /**
+     * @param id the id of a word
+     * @return the number of emails the word was counted in (its document frequency)
+     */
+    public int getDocuments(int id) {
+        return id < documents.length ? documents[id] : 0;
+    }
+
+    /**
+     * Adds all counts and emails of another WordCounts built on the same vocabulary.
+     * @param other the counts to add
+     */
+    public void addAll(WordCounts other) {
+        if (other.vocabulary != vocabulary)
+            throw new IllegalArgumentException("Word counts of different vocabularies cannot be added");
+
+        int length = other.counts.length;
+        if (length > counts.length)
+            grow(length - 1);
+
+        for (int id = 0; id < length; id++) {
+            counts[id] += other.counts[id];
+            documents[id] += other.documents[id];
+        }
+        emails += other.emails;
+    }
+
+    /**
+     * Adds all counts and emails of another WordCounts, which may use a different vocabulary.
+     * Each of its words is looked up (and added if new) in this vocabulary by its letters.
+     * @param other the counts to add
+     */
+    public void addAllWords(WordCounts other) {
+        if (other.vocabulary == vocabulary) {
+            addAll(other);
+            return;
+        }
+
+        Vocabulary otherVocabulary = other.vocabulary;
+        byte[] word = new byte[64];
+
+        for (int otherId = 0; otherId < Math.min(other.counts.length, otherVocabulary.size()); otherId++) {
+            int count = other.counts[otherId];
+            if (count == 0)
+                continue;
+
+            int length = otherVocabulary.lengthOf(otherId);
+            if (length > word.length)
+                word = new byte[Math.max(length, word.length * 2)];
+            otherVocabulary.copyWord(otherId, word, 0);
+
+            add(vocabulary.add(word, 0, length), count, other.documents[otherId]);
+        }
+        emails += other.emails;
+    }
+
+    /**
+     * Builds a map from word to count, sorted by word. Only words with a count are included.
+     * This allocates a String per word, so it is meant for reports and debugging, not the hot path.
+     * @return the sorted word counts
+     */
+    public SortedMap<String, Integer> toSortedMap() {
+        SortedMap<String, Integer> sorted = new TreeMap<>();
+        for (int id = 0; id < Math.min(counts.length, vocabulary.size()); id++) {
+            if (counts[id] != 0)
+                sorted.put(vocabulary.word(id), counts[id]);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,78 @@
+package com.spamdetector.service;
+
+import com.spamdetector.util.SpamConfig;
+import jakarta.ws.rs.ApplicationPath;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+
+/**
+ * Runs the spam detector without an application server: SpamResource is served by Jersey on an embedded
+ * Grizzly HTTP server, under the same /api/spam routes as the WAR on GlassFish. Built by the standalone
+ * profile into a runnable jar:
+ * <pre>
+ *   mvn -Pstandalone package
+ *   java -jar target/spamDetector-1.0-standalone.jar
+ * </pre>
+ * The model is loaded or trained at boot, in the background as on GlassFish, so the endpoints answer 503
+ * until it is ready. How long the server took to listen, and the model to be ready, is printed from the
+ * start of the JVM. All spamdetector.* settings work as with the WAR.
+ *
+ * Settings:
+ * spamdetector.server.host  - the address to listen on (default 0.0.0.0: all of them)
+ * spamdetector.server.port  - the port to listen on (default 8080)
+ */
+public final class StandaloneServer {
+
+    private StandaloneServer() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = SpamConfig.getString("spamdetector.server.host", "0.0.0.0");
+        int port = SpamConfig.getInt("spamdetector.server.port", 8080);
+
+        // Start on the model first, so it trains while the server starts
+        SpamModelHolder modelHolder = new SpamModelHolder();
+        modelHolder.start();
+
+        // The resource gets the holder injected, as CDI does on GlassFish
+        ResourceConfig config = new ResourceConfig(SpamResource.class)
+                .register(new AbstractBinder() {
+                    @Override
+                    protected void configure() {
+                        bind(modelHolder).to(SpamModelHolder.class);
+                    }
+                });
+
+        // Same base path as the WAR: /api
+        String path = SpamApplication.class.getAnnotation(ApplicationPath.class).value();
+        URI uri = URI.create("http://" + host + ":" + port + path + "/");
+        HttpServer server = GrizzlyHttpServerFactory.createHttpServer(uri, config);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdownNow();
+            modelHolder.shutdown();
+        }, "spam-server-shutdown"));
+
+        System.out.println("Listening on " + uri + "spam, " + sinceStart() + " ms after start");
+
+        if (modelHolder.awaitModel())
+            System.out.println("Serving the model, " + sinceStart() + " ms after start");
+        else
+            System.err.println("No model to serve: " + modelHolder.getFailure());
+
+        // The server threads do the rest
+        Thread.currentThread().join();
+    }
+
+    /**
+     * @return the milliseconds since the JVM started
+     */
+    private static long sinceStart() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+}
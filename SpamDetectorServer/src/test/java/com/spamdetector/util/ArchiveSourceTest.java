@@ -0,0 +1,169 @@
+package com.spamdetector.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads tar and zip archives built here with ArchiveSource.
+ */
+class ArchiveSourceTest {
+
+    // Longer than the 100 bytes of the name field of a tar header
+    private static final String LONG_FOLDER = "corpus/" + "very-long-folder-name/".repeat(6);
+
+    @Test
+    void readsGnuLongNames(@TempDir Path directory) throws IOException {
+        Tar tar = new Tar();
+        tar.entry("././@LongLink", 'L', (LONG_FOLDER + "gnu-email\0").getBytes(StandardCharsets.UTF_8));
+        tar.file(LONG_FOLDER.substring(0, 90) + "cut", "Subject: gnu\n\nbody\n");
+        tar.file("short/email", "Subject: short\n\nbody\n");
+
+        List<CorpusSource.Message> emails = read(tar.write(directory.resolve("emails.tar"), false));
+
+        assertEquals(List.of(LONG_FOLDER + "gnu-email", "short/email"), names(emails));
+        assertEquals("Subject: gnu\n\nbody\n", text(emails.get(0)));
+        assertEquals("Subject: short\n\nbody\n", text(emails.get(1)));
+    }
+
+    @Test
+    void readsPaxLongNames(@TempDir Path directory) throws IOException {
+        Tar tar = new Tar();
+        tar.entry("PaxHeaders/pax-email", 'x', paxRecords("mtime=1700000000.5", "path=" + LONG_FOLDER + "pax-email"));
+        tar.file(LONG_FOLDER.substring(0, 90) + "cut", "Subject: pax\n\nbody\n");
+        tar.file("short/email", "Subject: short\n\nbody\n");
+
+        List<CorpusSource.Message> emails = read(tar.write(directory.resolve("emails.tar.gz"), true));
+
+        assertEquals(List.of(LONG_FOLDER + "pax-email", "short/email"), names(emails));
+        assertEquals("Subject: pax\n\nbody\n", text(emails.get(0)));
+    }
+
+    @Test
+    void skipsDotFilesAndMaildirTmpAndSplitsMboxEntries(@TempDir Path directory) throws IOException {
+        Tar tar = new Tar();
+        tar.file("maildir/cur/1.host", "Subject: kept\n\nbody\n");
+        tar.file("maildir/tmp/2.host", "Subject: being delivered\n\nbody\n");
+        tar.file("maildir/.DS_Store", "not an email");
+        tar.entry("maildir/new/", '5', new byte[0]);
+        tar.file("archive/inbox.mbox", "From a@example.com\nSubject: one\n\nFrom b@example.com\nSubject: two\n");
+
+        List<CorpusSource.Message> emails = read(tar.write(directory.resolve("emails.tgz"), true));
+
+        assertEquals(List.of("maildir/cur/1.host", "archive/inbox.mbox#1", "archive/inbox.mbox#2"), names(emails));
+        assertEquals("Subject: two\n", text(emails.get(2)));
+    }
+
+    @Test
+    void readsZipArchives(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("emails.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("spam/"));
+            zip.putNextEntry(new ZipEntry("spam/1"));
+            zip.write("Subject: one\n\nbody\n".getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("__MACOSX/spam/._1"));
+            zip.write(new byte[]{0, 5, 22, 7});
+            zip.putNextEntry(new ZipEntry("spam/2"));
+            zip.write("Subject: two\n\nbody\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<CorpusSource.Message> emails = read(file);
+
+        assertEquals(List.of("spam/1", "spam/2"), names(emails));
+        assertEquals("Subject: two\n\nbody\n", text(emails.get(1)));
+    }
+
+    private static List<CorpusSource.Message> read(Path archive) throws IOException {
+        List<CorpusSource.Message> emails = new ArrayList<>();
+        CorpusSource.open(archive.toString()).forEach(emails::add);
+        return emails;
+    }
+
+    private static List<String> names(List<CorpusSource.Message> emails) {
+        List<String> names = new ArrayList<>();
+        for (CorpusSource.Message email : emails)
+            names.add(email.getName());
+        return names;
+    }
+
+    private static String text(CorpusSource.Message email) {
+        return new String(email.copyBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return POSIX extended header records: "length key=value\n", where the length counts the whole record
+     */
+    private static byte[] paxRecords(String... keyValues) {
+        StringBuilder records = new StringBuilder();
+        for (String keyValue : keyValues) {
+            int length = keyValue.length() + 2;
+            while (length != String.valueOf(length).length() + keyValue.length() + 2)
+                length = String.valueOf(length).length() + keyValue.length() + 2;
+            records.append(length).append(' ').append(keyValue).append('\n');
+        }
+        return records.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a ustar archive: a 512-byte header per entry, the data padded to 512 bytes, two empty blocks.
+     */
+    private static final class Tar {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        void file(String name, String content) {
+            entry(name, '0', content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void entry(String name, char type, byte[] data) {
+            byte[] header = new byte[512];
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, data.length);
+            octal(header, 136, 12, 0);
+            header[156] = (byte) type;
+            System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            // The checksum is the sum of the header bytes, counting its own field as spaces
+            for (int i = 148; i < 156; i++)
+                header[i] = ' ';
+            int checksum = 0;
+            for (byte b : header)
+                checksum += b & 0xFF;
+            octal(header, 148, 7, checksum);
+
+            bytes.writeBytes(header);
+            bytes.writeBytes(data);
+            bytes.writeBytes(new byte[(512 - data.length % 512) % 512]);
+        }
+
+        Path write(Path file, boolean gzip) throws IOException {
+            bytes.writeBytes(new byte[1024]);
+            try (OutputStream out = gzip ? new GZIPOutputStream(Files.newOutputStream(file))
+                                         : Files.newOutputStream(file)) {
+                bytes.writeTo(out);
+            }
+            return file;
+        }
+
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = String.format("%0" + (length - 1) + "o", value);
+            System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+        }
+    }
+}
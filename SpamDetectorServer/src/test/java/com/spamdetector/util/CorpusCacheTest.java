@@ -0,0 +1,125 @@
+package com.spamdetector.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads directories and mbox files through a CorpusCache, and changes them between the reads.
+ */
+class CorpusCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysUnchangedEmailsFromTheCache() throws IOException {
+        Path emails = Files.createDirectory(directory.resolve("emails"));
+        Path first = write(emails.resolve("1"), "Subject: cheap pills\n\nbuy now\n");
+        write(emails.resolve("2"), "Subject: meeting\n\nsee you at noon\n");
+
+        List<String> words = words(cache(emails));
+        assertEquals(List.of("1: cheap pills buy now", "2: meeting see you at noon"), words);
+        assertTrue(Files.exists(cache(emails).getFile()));
+
+        // Same size and last modified time: the email is not read again, so the old words are replayed
+        FileTime modified = Files.getLastModifiedTime(first);
+        write(first, "Subject: other words\n\nsent it\n");
+        Files.setLastModifiedTime(first, modified);
+
+        assertEquals(words, words(cache(emails)));
+    }
+
+    @Test
+    void tokenizesNewChangedAndRemovedEmailsAgain() throws IOException {
+        Path emails = Files.createDirectory(directory.resolve("emails"));
+        Path first = write(emails.resolve("1"), "Subject: cheap pills\n\nbuy now\n");
+        Path second = write(emails.resolve("2"), "Subject: meeting\n\nsee you at noon\n");
+        words(cache(emails));
+
+        write(first, "Subject: changed\n\nlonger than it was before\n");
+        Files.delete(second);
+        write(emails.resolve("3"), "Subject: new email\n");
+
+        List<String> expected = List.of("1: changed longer than it was before", "3: new email");
+        assertEquals(expected, words(cache(emails)));
+        assertEquals(expected, words(CorpusSource.open(emails.toString())));
+
+        // The rewritten cache replays the same words
+        assertEquals(expected, words(cache(emails)));
+    }
+
+    @Test
+    void readsAnMboxFileAgainOnlyWhenItChanged() throws IOException {
+        Path mbox = write(directory.resolve("inbox.mbox"),
+                "From a@example.com\nSubject: one\n\nFrom b@example.com\nSubject: two\n");
+        assertEquals(List.of("inbox.mbox#1: one", "inbox.mbox#2: two"), words(cache(mbox)));
+
+        FileTime modified = Files.getLastModifiedTime(mbox);
+        write(mbox, "From a@example.com\nSubject: six\n\nFrom b@example.com\nSubject: ten\n");
+        Files.setLastModifiedTime(mbox, modified);
+        assertEquals(List.of("inbox.mbox#1: one", "inbox.mbox#2: two"), words(cache(mbox)));
+
+        Files.setLastModifiedTime(mbox, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertEquals(List.of("inbox.mbox#1: six", "inbox.mbox#2: ten"), words(cache(mbox)));
+    }
+
+    @Test
+    void tokenizesAroundACorruptCacheAndReplacesIt() throws IOException {
+        Path emails = Files.createDirectory(directory.resolve("emails"));
+        write(emails.resolve("1"), "Subject: cheap pills\n\nbuy now\n");
+        List<String> expected = words(cache(emails));
+
+        // A valid header followed by a vocabulary that runs past the end of the file
+        Path file = cache(emails).getFile();
+        byte[] corrupt = Arrays.copyOf(Files.readAllBytes(file), CorpusCache.HEADER_SIZE + 3);
+        corrupt[CorpusCache.HEADER_SIZE] = 100;
+        Files.write(file, corrupt);
+        assertEquals(expected, words(cache(emails)));
+
+        byte[] rewritten = Files.readAllBytes(file);
+        assertArrayEquals(CorpusCache.MAGIC, Arrays.copyOf(rewritten, CorpusCache.MAGIC.length));
+        assertTrue(rewritten.length > corrupt.length);
+
+        // Not a cache file at all
+        Files.write(file, "not a cache file".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(expected, words(cache(emails)));
+        assertEquals(expected, words(cache(emails)));
+    }
+
+    private CorpusCache cache(Path location) {
+        return new CorpusCache(CorpusSource.open(location.toString()), directory.resolve("cache"));
+    }
+
+    /**
+     * @return one line per email: its name, then its words
+     */
+    private static List<String> words(CorpusSource source) throws IOException {
+        List<String> emails = new ArrayList<>();
+        EmailTokenizer tokenizer = new EmailTokenizer();
+        source.forEach(email -> {
+            StringBuilder line = new StringBuilder(email.getName()).append(':');
+            email.tokenize(tokenizer, (word, length) ->
+                    line.append(' ').append(new String(word, 0, length, StandardCharsets.US_ASCII)));
+            emails.add(line.toString());
+        });
+        emails.sort(null);
+        return emails;
+    }
+
+    private static Path write(Path file, String content) throws IOException {
+        return Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+    }
+}
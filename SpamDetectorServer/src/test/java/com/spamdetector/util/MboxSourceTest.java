@@ -0,0 +1,92 @@
+package com.spamdetector.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Splits mbox streams and files with MboxSource.
+ */
+class MboxSourceTest {
+
+    private static final String MBOX = String.join("\n",
+            "From alice@example.com Mon Jan  1 00:00:00 2024",
+            "Subject: first",
+            "",
+            ">From the desk of a prince: the first line of this body started with From",
+            ">>From here on, one '>' less",
+            "Not From a line start",
+            "",
+            "From bob@example.com Tue Jan  2 00:00:00 2024",
+            "Subject: second",
+            "",
+            "last line without line end");
+
+    @Test
+    void splitsOnFromLinesAndDropsTheEnvelope() throws IOException {
+        List<CorpusSource.Message> emails = split(MBOX);
+
+        assertEquals(2, emails.size());
+        assertEquals("inbox.mbox#1", emails.get(0).getName());
+        assertEquals("inbox.mbox#2", emails.get(1).getName());
+        assertEquals("Subject: second\n\nlast line without line end", text(emails.get(1)));
+    }
+
+    @Test
+    void unescapesFromLines() throws IOException {
+        String first = text(split(MBOX).get(0));
+
+        assertEquals(String.join("\n",
+                "Subject: first",
+                "",
+                "From the desk of a prince: the first line of this body started with From",
+                ">From here on, one '>' less",
+                "Not From a line start",
+                "",
+                ""), first);
+    }
+
+    @Test
+    void handlesCrLfLineEnds() throws IOException {
+        List<CorpusSource.Message> emails = split(MBOX.replace("\n", "\r\n"));
+
+        assertEquals(2, emails.size());
+        assertEquals(text(split(MBOX).get(0)).replace("\n", "\r\n"), text(emails.get(0)));
+    }
+
+    @Test
+    void readsGzippedFiles(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("inbox.mbox.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(MBOX.getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<CorpusSource.Message> emails = new ArrayList<>();
+        CorpusSource.open(file.toString()).forEach(emails::add);
+
+        assertEquals(2, emails.size());
+        assertEquals("inbox.mbox.gz#1", emails.get(0).getName());
+        assertEquals(text(split(MBOX).get(0)), text(emails.get(0)));
+    }
+
+    private static List<CorpusSource.Message> split(String mbox) throws IOException {
+        List<CorpusSource.Message> emails = new ArrayList<>();
+        MboxSource.split(new ByteArrayInputStream(mbox.getBytes(StandardCharsets.UTF_8)), "inbox.mbox", emails::add);
+        return emails;
+    }
+
+    private static String text(CorpusSource.Message email) {
+        return new String(email.copyBytes(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,167 @@
+package com.spamdetector.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Feeds MIME messages to MimeParser, whole and in small chunks, and checks the text it passes on.
+ */
+class MimeParserTest {
+
+    private static final String NESTED = String.join("\r\n",
+            "From: sender@example.com",
+            "Subject: nested",
+            "MIME-Version: 1.0",
+            "Content-Type: multipart/mixed; boundary=\"outer\"",
+            "",
+            "--outer",
+            "Content-Type: multipart/alternative; boundary=inner",
+            "",
+            "--inner",
+            "Content-Type: text/plain; charset=us-ascii",
+            "",
+            "plainword in the text part",
+            "--inner",
+            "Content-Type: text/html",
+            "",
+            "<html><body><p>htmlword</p></body></html>",
+            "--inner--",
+            "--outer",
+            "Content-Type: image/png",
+            "Content-Transfer-Encoding: base64",
+            "",
+            base64("attachmentword attachmentword attachmentword"),
+            "--outer",
+            "Content-Type: application/pdf; name=\"offer.pdf\"",
+            "Content-Disposition: attachment; filename=\"offer.pdf\"",
+            "",
+            "pdfword pdfword",
+            "--outer",
+            "Content-Type: text/plain",
+            "",
+            "lastword after the attachments",
+            "--outer--",
+            "");
+
+    @Test
+    void passesOnTheTextPartsOfNestedMultiparts() {
+        String text = parse(NESTED, Integer.MAX_VALUE);
+
+        assertTrue(text.contains("Subject: nested"), text);
+        assertTrue(text.contains("plainword in the text part"), text);
+        assertTrue(text.contains("htmlword"), text);
+        assertTrue(text.contains("lastword after the attachments"), text);
+        assertFalse(text.contains("<p>"), text);
+    }
+
+    @Test
+    void skipsAttachments() {
+        String text = parse(NESTED, Integer.MAX_VALUE);
+
+        assertFalse(text.contains("attachmentword"), text);
+        assertFalse(text.contains(base64("attachmentword attachmentword attachmentword")), text);
+        assertFalse(text.contains("pdfword"), text);
+    }
+
+    @Test
+    void skipsASinglePartAttachmentToTheEnd() {
+        String message = String.join("\r\n",
+                "Subject: single",
+                "Content-Type: application/octet-stream",
+                "",
+                "binaryword binaryword",
+                "");
+
+        String text = parse(message, Integer.MAX_VALUE);
+
+        assertTrue(text.contains("Subject: single"), text);
+        assertFalse(text.contains("binaryword"), text);
+    }
+
+    @Test
+    void joinsQuotedPrintableSoftLineBreaks() {
+        String message = String.join("\r\n",
+                "Content-Type: text/plain",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "un=",
+                "believable offer =3D free=",
+                "money=\nnow",
+                "");
+
+        String text = parse(message, Integer.MAX_VALUE);
+
+        assertTrue(text.contains("unbelievable offer = freemoneynow"), text);
+    }
+
+    @Test
+    void decodesBase64SplitAcrossChunks() {
+        String message = String.join("\r\n",
+                "Content-Type: text/plain; charset=utf-8",
+                "Content-Transfer-Encoding: base64",
+                "",
+                base64("Claim your lottery winnings today, dear friend"),
+                "");
+
+        String whole = parse(message, Integer.MAX_VALUE);
+        assertTrue(whole.contains("Claim your lottery winnings today, dear friend"), whole);
+
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            assertEquals(whole, parse(message, chunk), "Chunks of " + chunk + " bytes");
+        }
+    }
+
+    @Test
+    void replacesHtmlEntitiesSplitAcrossChunks() {
+        String message = String.join("\r\n",
+                "Content-Type: text/html",
+                "",
+                "<b>cheap</b>&nbsp;pills&#160;now &amp; fast &notanentityatall here",
+                "");
+
+        String whole = parse(message, Integer.MAX_VALUE);
+        assertTrue(whole.contains(" cheap  pills now   fast "), whole);
+        assertTrue(whole.contains("&notanentityatall here"), whole);
+        assertFalse(whole.contains("nbsp"), whole);
+
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            assertEquals(whole, parse(message, chunk), "Chunks of " + chunk + " bytes");
+        }
+    }
+
+    @Test
+    void nestedMultipartsGiveTheSameTextInAnyChunkSize() {
+        String whole = parse(NESTED, Integer.MAX_VALUE);
+
+        for (int chunk = 1; chunk <= 16; chunk++) {
+            assertEquals(whole, parse(NESTED, chunk), "Chunks of " + chunk + " bytes");
+        }
+    }
+
+    /**
+     * Feeds a message to a parser in chunks of at most the given size.
+     * @return the text the parser passed on
+     */
+    private static String parse(String message, int chunkSize) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        MimeParser parser = new MimeParser(text::write);
+
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            parser.feed(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        }
+        parser.finish();
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String base64(String text) {
+        return Base64.getMimeEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
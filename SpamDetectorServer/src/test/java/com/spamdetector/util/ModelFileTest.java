@@ -0,0 +1,89 @@
+package com.spamdetector.util;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes the model trained on the bundled emails to a model file and maps it back with MappedSpamModel.
+ */
+class ModelFileTest {
+
+    private static SpamDetector detector;
+    private static Path file;
+
+    @BeforeAll
+    static void writeModel(@TempDir Path directory) throws IOException {
+        detector = SpamDetector.fromConfig();
+        file = directory.resolve("spam.model");
+        ModelFile.write(detector, file);
+    }
+
+    @Test
+    void loadedModelScoresEveryTestEmailBitForBit() throws IOException {
+        MappedSpamModel mapped = MappedSpamModel.load(file);
+
+        int emails = 0;
+        for (String folder : new String[]{"test/ham", "test/spam"}) {
+            File[] files = DataFolders.getFileLocation(folder).listFiles();
+            Arrays.sort(files);
+            for (File email : files) {
+                double trained = detector.calculateSpamProbability(email.toPath());
+                double loaded = mapped.calculateSpamProbability(email.toPath());
+                assertEquals(Double.doubleToRawLongBits(trained), Double.doubleToRawLongBits(loaded),
+                        "Score of " + folder + "/" + email.getName());
+                emails++;
+            }
+        }
+        assertTrue(emails > 0, "No test emails found");
+    }
+
+    @Test
+    void loadedModelKeepsTheVocabularyAndCounts() throws IOException {
+        MappedSpamModel mapped = MappedSpamModel.load(file);
+
+        assertEquals(detector.vocabulary.size(), mapped.vocabularySize());
+        assertEquals(detector.totalHamCount, mapped.hamDocuments());
+        assertEquals(detector.trainSpamCount, mapped.spamDocuments());
+
+        byte[] word = new byte[64];
+        for (int id = 0; id < detector.vocabulary.size(); id++) {
+            int length = detector.vocabulary.lengthOf(id);
+            if (length > word.length)
+                word = new byte[length];
+            detector.vocabulary.copyWord(id, word, 0);
+
+            int mappedId = mapped.idOf(word, length);
+            assertEquals(id, mappedId);
+            assertEquals(detector.trainHamFreq.get(id), mapped.hamCount(mappedId));
+            assertEquals(detector.trainSpamFreq.get(id), mapped.spamCount(mappedId));
+        }
+
+        byte[] unknown = "qqqqzzzzunknown".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, mapped.idOf(unknown, unknown.length));
+        assertEquals(SpamModel.UNKNOWN_WORD, mapped.wordLogOdds(unknown, unknown.length));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotWholeModelFiles(@TempDir Path directory) throws IOException {
+        Path notAModel = directory.resolve("not.model");
+        Files.write(notAModel, new byte[ModelFile.HEADER_SIZE]);
+        assertThrows(IOException.class, () -> MappedSpamModel.load(notAModel));
+
+        byte[] bytes = Files.readAllBytes(file);
+        Path truncated = directory.resolve("truncated.model");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> MappedSpamModel.load(truncated));
+    }
+}